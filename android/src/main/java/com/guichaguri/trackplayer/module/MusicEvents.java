@@ -35,6 +35,11 @@ public class MusicEvents extends BroadcastReceiver {
     public static final String PLAYBACK_QUEUE_ENDED = "playback-queue-ended";
     public static final String PLAYBACK_METADATA = "playback-metadata-received";
     public static final String PLAYBACK_ERROR = "playback-error";
+    public static final String PLAYBACK_VISUALIZATION = "playback-visualization";
+    public static final String PLAYBACK_CHAPTERS = "playback-chapters-received";
+
+    // Secondary Player Events
+    public static final String PLAYER_EVENT = "player-event";
 
     private final ReactContext reactContext;
 
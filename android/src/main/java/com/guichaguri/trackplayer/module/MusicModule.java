@@ -13,10 +13,17 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.facebook.react.bridge.*;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Player;
+import com.guichaguri.trackplayer.service.Metrics;
 import com.guichaguri.trackplayer.service.MusicBinder;
 import com.guichaguri.trackplayer.service.MusicService;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.audio.SoundEffectPool;
+import com.guichaguri.trackplayer.service.library.MediaLibrary;
+import com.guichaguri.trackplayer.service.models.Chapter;
+import com.guichaguri.trackplayer.service.models.EqualizerSettings;
+import com.guichaguri.trackplayer.service.models.FadeCurve;
 import com.guichaguri.trackplayer.service.models.NowPlayingMetadata;
+import com.guichaguri.trackplayer.service.models.PitchAlgorithm;
 import com.guichaguri.trackplayer.service.models.Track;
 import com.guichaguri.trackplayer.service.player.ExoPlayback;
 
@@ -34,6 +41,10 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
     private ArrayDeque<Runnable> initCallbacks = new ArrayDeque<>();
     private boolean connecting = false;
     private Bundle options;
+    private SoundEffectPool sounds;
+
+    // The metrics measured without the service, merged into getMetrics()
+    private final Metrics metrics = new Metrics();
 
     public MusicModule(ReactApplicationContext reactContext) {
         super(reactContext);
@@ -64,6 +75,11 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
             manager.unregisterReceiver(eventHandler);
             eventHandler = null;
         }
+
+        if(sounds != null) {
+            sounds.release();
+            sounds = null;
+        }
     }
 
     @Override
@@ -155,6 +171,11 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         constants.put("REPEAT_TRACK", Player.REPEAT_MODE_ONE);
         constants.put("REPEAT_QUEUE", Player.REPEAT_MODE_ALL);
 
+        // Pitch Algorithms
+        constants.put("PITCH_ALGORITHM_LINEAR", PitchAlgorithm.LINEAR.name);
+        constants.put("PITCH_ALGORITHM_MUSIC", PitchAlgorithm.MUSIC.name);
+        constants.put("PITCH_ALGORITHM_VOICE", PitchAlgorithm.VOICE.name);
+
         return constants;
     }
 
@@ -204,58 +225,106 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
     public void add(ReadableArray tracks, final Integer insertBeforeIndex, final Promise callback) {
         final ArrayList bundleList = Arguments.toList(tracks);
 
-        waitForConnection(() -> {
-            List<Track> trackList;
+        waitForConnection(() -> add(binder.getPlayback(), bundleList, insertBeforeIndex, callback));
+    }
 
-            try {
-                trackList = Track.createTracks(getReactApplicationContext(), bundleList, binder.getRatingType());
-            } catch(Exception ex) {
-                callback.reject("invalid_track_object", ex);
-                return;
-            }
+    private void add(ExoPlayback playback, ArrayList bundleList, int insertBeforeIndex, Promise callback) {
+        List<Track> trackList;
 
-            List<Track> queue = binder.getPlayback().getQueue();
-            // -1 means no index was passed and therefore should be inserted at the end.
-            int index = insertBeforeIndex != -1 ? insertBeforeIndex : queue.size();
+        try {
+            trackList = Track.createTracks(getReactApplicationContext(), bundleList, binder.getRatingType());
+        } catch(Exception ex) {
+            callback.reject("invalid_track_object", ex);
+            return;
+        }
 
-            if(index < 0 || index > queue.size()) {
-                callback.reject("index_out_of_bounds", "The track index is out of bounds");
-            } else if(trackList == null || trackList.isEmpty()) {
-                callback.reject("invalid_track_object", "Track is missing a required key");
-            } else if(trackList.size() == 1) {
-                binder.getPlayback().add(trackList.get(0), index, callback);
+        List<Track> queue = playback.getQueue();
+        // -1 means no index was passed and therefore should be inserted at the end.
+        int index = insertBeforeIndex != -1 ? insertBeforeIndex : queue.size();
+
+        if(index < 0 || index > queue.size()) {
+            callback.reject("index_out_of_bounds", "The track index is out of bounds");
+        } else if(trackList == null || trackList.isEmpty()) {
+            callback.reject("invalid_track_object", "Track is missing a required key");
+        } else if(trackList.size() == 1) {
+            playback.add(trackList.get(0), index, callback);
+        } else {
+            playback.add(trackList, index, callback);
+        }
+    }
+
+    @ReactMethod
+    public void scanLibrary(final Promise callback) {
+        waitForConnection(() -> binder.getLibrary().scan(callback));
+    }
+
+    @ReactMethod
+    public void queryLibrary(ReadableMap query, final Promise callback) {
+        final Bundle bundle = Arguments.toBundle(query);
+
+        waitForConnection(() -> callback.resolve(Arguments.fromList(queryLibrary(bundle))));
+    }
+
+    @ReactMethod
+    public void addFromLibrary(ReadableMap query, final Integer insertBeforeIndex, final Promise callback) {
+        final Bundle bundle = Arguments.toBundle(query);
+
+        waitForConnection(() -> {
+            ArrayList bundleList = queryLibrary(bundle);
+
+            if(bundleList.isEmpty()) {
+                callback.reject("no_tracks_found", "No track in the library matches the query");
             } else {
-                binder.getPlayback().add(trackList, index, callback);
+                add(binder.getPlayback(), bundleList, insertBeforeIndex, callback);
             }
         });
     }
 
+    private ArrayList queryLibrary(Bundle query) {
+        ArrayList bundleList = new ArrayList();
+
+        for(MediaLibrary.Item item : binder.getLibrary().query(query)) {
+            bundleList.add(item.toBundle());
+        }
+
+        return bundleList;
+    }
+
+    @ReactMethod
+    public void setBrowseTree(ReadableArray items, final Promise callback) {
+        final ArrayList bundleList = Arguments.toList(items);
+
+        waitForConnection(() -> binder.setBrowseTree(bundleList, callback));
+    }
+
     @ReactMethod
     public void remove(ReadableArray tracks, final Promise callback) {
         final ArrayList trackList = Arguments.toList(tracks);
 
-        waitForConnection(() -> {
-            List<Track> queue = binder.getPlayback().getQueue();
-            List<Integer> indexes = new ArrayList<>();
+        waitForConnection(() -> remove(binder.getPlayback(), trackList, callback));
+    }
 
-            for(Object o : trackList) {
-                int index = o instanceof Integer ? (int)o : Integer.parseInt(o.toString());
+    private void remove(ExoPlayback playback, ArrayList trackList, Promise callback) {
+        List<Track> queue = playback.getQueue();
+        List<Integer> indexes = new ArrayList<>();
 
-                // we do not allow removal of the current item
-                int currentIndex = binder.getPlayback().getCurrentTrackIndex();
-                if (index == currentIndex) continue;
+        for(Object o : trackList) {
+            int index = o instanceof Integer ? (int)o : Integer.parseInt(o.toString());
 
-                if (index >= 0 && index < queue.size()) {
-                    indexes.add(index);
-                }
-            }
+            // we do not allow removal of the current item
+            Integer currentIndex = playback.getCurrentTrackIndex();
+            if (currentIndex != null && index == currentIndex) continue;
 
-            if (!indexes.isEmpty()) {
-                binder.getPlayback().remove(indexes, callback);
-            } else {
-                callback.resolve(null);
+            if (index >= 0 && index < queue.size()) {
+                indexes.add(index);
             }
-        });
+        }
+
+        if (!indexes.isEmpty()) {
+            playback.remove(indexes, callback);
+        } else {
+            callback.resolve(null);
+        }
     }
 
     @ReactMethod
@@ -317,6 +386,41 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         waitForConnection(() -> binder.getPlayback().skipToPrevious(callback));
     }
 
+    @ReactMethod
+    public void skipToChapter(final int index, final Promise callback) {
+        waitForConnection(() -> binder.getPlayback().skipToChapter(index, callback));
+    }
+
+    @ReactMethod
+    public void skipToNextChapter(final Promise callback) {
+        waitForConnection(() -> {
+            ExoPlayback playback = binder.getPlayback();
+            int next = playback.getCurrentChapterIndex() + 1;
+
+            if(next >= playback.getChapters().size()) {
+                callback.reject("no_next_chapter", "There is no chapter left");
+                return;
+            }
+
+            playback.skipToChapter(next, callback);
+        });
+    }
+
+    @ReactMethod
+    public void skipToPreviousChapter(final Promise callback) {
+        waitForConnection(() -> {
+            ExoPlayback playback = binder.getPlayback();
+            int previous = playback.getCurrentChapterIndex() - 1;
+
+            if(previous < 0) {
+                callback.reject("no_previous_chapter", "There is no previous chapter");
+                return;
+            }
+
+            playback.skipToChapter(previous, callback);
+        });
+    }
+
     @ReactMethod
     public void reset(final Promise callback) {
         waitForConnection(() -> {
@@ -366,6 +470,45 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         });
     }
 
+    @ReactMethod
+    public void fadeTo(final float volume, final float duration, final String curve, final Promise callback) {
+        waitForConnection(() -> {
+            FadeCurve fadeCurve = FadeCurve.fromName(curve, FadeCurve.LINEAR);
+            binder.getPlayback().fadeTo(volume, Utils.toMillis(duration), fadeCurve);
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void setEqualizer(ReadableMap data, final Promise callback) {
+        final EqualizerSettings settings = new EqualizerSettings(Arguments.toBundle(data));
+
+        waitForConnection(() -> {
+            if(binder.getPlayback().setEqualizer(settings)) {
+                callback.resolve(null);
+            } else {
+                callback.reject("equalizer_disabled", "The equalizer was not enabled in setupPlayer");
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setVisualizer(ReadableMap data, final Promise callback) {
+        final Bundle options = Arguments.toBundle(data);
+
+        waitForConnection(() -> {
+            boolean enabled = options.getBoolean("enabled", true);
+            int bands = (int)options.getDouble("bands", 32);
+            int fps = (int)options.getDouble("fps", 30);
+
+            if(binder.getPlayback().setVisualizer(enabled, bands, fps)) {
+                callback.resolve(null);
+            } else {
+                callback.reject("visualizer_disabled", "The visualizer was not enabled in setupPlayer");
+            }
+        });
+    }
+
     @ReactMethod
     public void getVolume(final Promise callback) {
         waitForConnection(() -> callback.resolve(binder.getPlayback().getVolume()));
@@ -379,6 +522,14 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         });
     }
 
+    @ReactMethod
+    public void rampRate(final float rate, final float duration, final Promise callback) {
+        waitForConnection(() -> {
+            binder.getPlayback().rampRate(rate, Utils.toMillis(duration));
+            callback.resolve(null);
+        });
+    }
+
     @ReactMethod
     public void getRate(final Promise callback) {
         waitForConnection(() -> callback.resolve(binder.getPlayback().getRate()));
@@ -410,6 +561,11 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         });
     }
 
+    @ReactMethod
+    public void getWaveform(final int index, final int buckets, final Promise callback) {
+        waitForConnection(() -> binder.getPlayback().getWaveform(index, buckets, callback));
+    }
+
     @ReactMethod
     public void getQueue(Promise callback) {
         waitForConnection(() -> {
@@ -429,6 +585,27 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         waitForConnection(() -> callback.resolve(binder.getPlayback().getCurrentTrackIndex()));
     }
 
+    @ReactMethod
+    public void getChapters(final Promise callback) {
+        waitForConnection(() -> {
+            List chapters = new ArrayList();
+
+            for(Chapter chapter : binder.getPlayback().getChapters()) {
+                chapters.add(chapter.toBundle());
+            }
+
+            callback.resolve(Arguments.fromList(chapters));
+        });
+    }
+
+    @ReactMethod
+    public void getCurrentChapter(final Promise callback) {
+        waitForConnection(() -> {
+            int index = binder.getPlayback().getCurrentChapterIndex();
+            callback.resolve(index == -1 ? null : index);
+        });
+    }
+
     @ReactMethod
     public void getDuration(final Promise callback) {
         waitForConnection(() -> {
@@ -468,6 +645,11 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         });
     }
 
+    @ReactMethod
+    public void getSkippedSilence(final Promise callback) {
+        waitForConnection(() -> callback.resolve(Utils.toSeconds(binder.getPlayback().getSkippedSilence())));
+    }
+
     @ReactMethod
     public void getState(final Promise callback) {
         if (binder == null) {
@@ -476,4 +658,210 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
             waitForConnection(() -> callback.resolve(binder.getPlayback().getState()));
         }
     }
+
+    @ReactMethod
+    public void getMetrics(final Promise callback) {
+        waitForConnection(() -> {
+            Bundle bundle = binder.getMetrics();
+            bundle.putAll(metrics.toBundle());
+            callback.resolve(Arguments.fromBundle(bundle));
+        });
+    }
+
+    /* ****************************** Sound Effects ****************************** */
+
+    // Sound effects don't depend on the service, so they skip the connection entirely
+    private synchronized SoundEffectPool getSoundEffects() {
+        if(sounds == null) sounds = new SoundEffectPool(getReactApplicationContext(), metrics,
+                SoundEffectPool.DEFAULT_VOICES);
+        return sounds;
+    }
+
+    @ReactMethod
+    public void registerSound(String id, ReadableMap data, final Promise callback) {
+        getSoundEffects().register(id, Arguments.toBundle(data), callback);
+    }
+
+    @ReactMethod
+    public void unregisterSound(String id, final Promise callback) {
+        getSoundEffects().unregister(id);
+        callback.resolve(null);
+    }
+
+    @ReactMethod
+    public void playSound(String id, float volume, float rate, final Promise callback) {
+        if(getSoundEffects().play(id, volume, rate)) {
+            callback.resolve(null);
+        } else {
+            callback.reject("sound_not_found", "The sound " + id + " is not registered or still loading");
+        }
+    }
+
+    /* ****************************** Secondary Players ****************************** */
+
+    private interface PlayerTask {
+        void run(ExoPlayback player);
+    }
+
+    /**
+     * Runs a task with a secondary player in the player thread, rejecting when it doesn't exist
+     */
+    private void withPlayer(final String id, final Promise callback, final PlayerTask task) {
+        waitForConnection(() -> {
+            ExoPlayback player = binder.getPlayer(id);
+
+            if(player == null) {
+                callback.reject("player_not_found", "There is no player with the id " + id);
+            } else {
+                task.run(player);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void createPlayer(final String id, ReadableMap data, final Promise callback) {
+        final Bundle options = Arguments.toBundle(data);
+
+        waitForConnection(() -> binder.createPlayer(id, options, callback));
+    }
+
+    @ReactMethod
+    public void destroyPlayer(final String id, final Promise callback) {
+        waitForConnection(() -> binder.destroyPlayer(id, callback));
+    }
+
+    @ReactMethod
+    public void playerAdd(final String id, ReadableArray tracks, final Integer insertBeforeIndex, final Promise callback) {
+        final ArrayList bundleList = Arguments.toList(tracks);
+
+        withPlayer(id, callback, player -> add(player, bundleList, insertBeforeIndex, callback));
+    }
+
+    @ReactMethod
+    public void playerRemove(final String id, ReadableArray tracks, final Promise callback) {
+        final ArrayList trackList = Arguments.toList(tracks);
+
+        withPlayer(id, callback, player -> remove(player, trackList, callback));
+    }
+
+    @ReactMethod
+    public void playerSkip(final String id, final int index, final Promise callback) {
+        withPlayer(id, callback, player -> player.skip(index, callback));
+    }
+
+    @ReactMethod
+    public void playerSkipToNext(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> player.skipToNext(callback));
+    }
+
+    @ReactMethod
+    public void playerSkipToPrevious(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> player.skipToPrevious(callback));
+    }
+
+    @ReactMethod
+    public void playerReset(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> {
+            player.reset();
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void playerPlay(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> {
+            player.play();
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void playerPause(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> {
+            player.pause();
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void playerStop(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> {
+            player.stop();
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void playerSeekTo(final String id, final float seconds, final Promise callback) {
+        withPlayer(id, callback, player -> {
+            player.seekTo(Utils.toMillis(seconds));
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void playerSetVolume(final String id, final float volume, final Promise callback) {
+        withPlayer(id, callback, player -> {
+            player.setVolume(volume);
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void playerGetVolume(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> callback.resolve(player.getVolume()));
+    }
+
+    @ReactMethod
+    public void playerFadeTo(final String id, final float volume, final float duration, final String curve,
+                             final Promise callback) {
+        withPlayer(id, callback, player -> {
+            player.fadeTo(volume, Utils.toMillis(duration), FadeCurve.fromName(curve, FadeCurve.LINEAR));
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void playerSetRepeatMode(final String id, final int mode, final Promise callback) {
+        withPlayer(id, callback, player -> {
+            player.setRepeatMode(mode);
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void playerGetQueue(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> {
+            List queue = new ArrayList();
+
+            for(Track track : player.getQueue()) {
+                queue.add(track.originalItem);
+            }
+
+            callback.resolve(Arguments.fromList(queue));
+        });
+    }
+
+    @ReactMethod
+    public void playerGetCurrentTrack(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> callback.resolve(player.getCurrentTrackIndex()));
+    }
+
+    @ReactMethod
+    public void playerGetPosition(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> callback.resolve(Utils.toSeconds(Math.max(0, player.getPosition()))));
+    }
+
+    @ReactMethod
+    public void playerGetDuration(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> {
+            long duration = player.getDuration();
+            callback.resolve(Utils.toSeconds(duration == C.TIME_UNSET ? 0 : duration));
+        });
+    }
+
+    @ReactMethod
+    public void playerGetState(final String id, final Promise callback) {
+        withPlayer(id, callback, player -> callback.resolve(player.getState()));
+    }
 }
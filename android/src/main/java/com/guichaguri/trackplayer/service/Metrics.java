@@ -0,0 +1,122 @@
+package com.guichaguri.trackplayer.service;
+
+import android.os.Bundle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects timings measured natively, so they can be inspected from JS through getMetrics()
+ *
+ * @author Guichaguri
+ */
+public class Metrics {
+
+    // The time between pressing a media button and the audio starting, in milliseconds
+    public static final String MEDIA_BUTTON_LATENCY = "mediaButtonLatency";
+
+    // The same as above, when the press had to restore the session after the process was killed
+    public static final String MEDIA_BUTTON_COLD_LATENCY = "mediaButtonColdLatency";
+
+    // The time between pressing a skip or seek media button and it being executed natively, in milliseconds
+    public static final String REMOTE_ACTION_LATENCY = "remoteActionLatency";
+
+    // The same as above, when it took more than a second, such as on a cold start
+    public static final String REMOTE_ACTION_SLOW_LATENCY = "remoteActionSlowLatency";
+
+    // The time spent creating the service, in milliseconds
+    public static final String SERVICE_CREATE = "serviceCreate";
+
+    // The time spent creating the player in setupPlayer(), in milliseconds
+    public static final String PLAYER_SETUP = "playerSetup";
+
+    // The time spent restoring the persisted session without JS, in milliseconds
+    public static final String SESSION_RESTORE = "sessionRestore";
+
+    // The time spent loading the cache index in the background, in milliseconds
+    public static final String CACHE_OPEN = "cacheOpen";
+
+    // The bandwidth estimate after each transfer sample, in kbps
+    public static final String BANDWIDTH_ESTIMATE = "bandwidthEstimate";
+
+    // The bitrate of the initial and of every switched adaptive rendition, in kbps
+    public static final String ABR_BITRATE = "abrBitrate";
+
+    // The bitrate switched to, recorded only on switches, in kbps
+    public static final String ABR_SWITCH = "abrSwitch";
+
+    // The delay before reconnecting to a dropped live stream, in milliseconds
+    public static final String LIVE_RECONNECT = "liveReconnect";
+
+    // The time spent answering a browse request from Android Auto or other controllers, in milliseconds
+    public static final String BROWSE_LOAD = "browseLoad";
+
+    // The time spent resolving a voice search natively, in milliseconds
+    public static final String SEARCH_RESOLVE = "searchResolve";
+
+    // The time spent handing a sound to the sound pool in playSound(), without the output latency, in milliseconds
+    public static final String SOUND_EFFECT_TRIGGER = "soundEffectTrigger";
+
+    // The time the wsola time-stretch engine spends per second of audio while the rate isn't 1x, in milliseconds
+    public static final String TIME_STRETCH_COST = "timeStretchCost";
+
+    // The same for the default Sonic engine
+    public static final String SONIC_COST = "sonicCost";
+
+    // The time the equalizer, bass boost and limiter stage spends per second of audio, in milliseconds
+    public static final String EQUALIZER_COST = "equalizerCost";
+
+    // The memory used by the app after the amount of players changed, in kB. Suffixed by the amount of players
+    public static final String PLAYERS_MEMORY = "playersMemory";
+
+    // The CPU used by the app while that amount of players existed, in percent of a core. Suffixed the same way
+    public static final String PLAYERS_CPU = "playersCpu";
+
+    private static class Metric {
+        long count = 0;
+        double last = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double total = 0;
+    }
+
+    private final Map<String, Metric> metrics = new HashMap<>();
+
+    /**
+     * Gets the name of a metric measured for an amount of players, such as "playersMemory2"
+     */
+    public static String forPlayers(String name, int players) {
+        return name + players;
+    }
+
+    public synchronized void record(String name, double value) {
+        Metric metric = metrics.get(name);
+        if(metric == null) metrics.put(name, metric = new Metric());
+
+        metric.count++;
+        metric.last = value;
+        metric.min = Math.min(metric.min, value);
+        metric.max = Math.max(metric.max, value);
+        metric.total += value;
+    }
+
+    public synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+
+        for(Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            Metric metric = entry.getValue();
+            Bundle values = new Bundle();
+
+            values.putDouble("count", metric.count);
+            values.putDouble("last", metric.last);
+            values.putDouble("min", metric.min);
+            values.putDouble("max", metric.max);
+            values.putDouble("average", metric.total / metric.count);
+
+            bundle.putBundle(entry.getKey(), values);
+        }
+
+        return bundle;
+    }
+
+}
@@ -2,12 +2,17 @@ package com.guichaguri.trackplayer.service;
 
 import android.os.Binder;
 import android.os.Bundle;
+import android.support.v4.media.session.MediaSessionCompat;
+import androidx.annotation.Nullable;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReadableMap;
+import com.guichaguri.trackplayer.service.library.MediaLibrary;
 import com.guichaguri.trackplayer.service.metadata.MetadataManager;
 import com.guichaguri.trackplayer.service.models.NowPlayingMetadata;
 import com.guichaguri.trackplayer.service.models.Track;
 import com.guichaguri.trackplayer.service.player.ExoPlayback;
+import com.guichaguri.trackplayer.service.session.BrowseTree;
+import java.util.List;
 
 /**
  * @author Guichaguri
@@ -38,14 +43,29 @@ public class MusicBinder extends Binder {
         return playback;
     }
 
+    @Nullable
+    public ExoPlayback getPlayer(String id) {
+        return manager.getPlayer(id);
+    }
+
+    public void createPlayer(String id, Bundle bundle, Promise promise) {
+        manager.createPlayer(id, bundle);
+        promise.resolve(null);
+    }
+
+    public void destroyPlayer(String id, Promise promise) {
+        promise.resolve(manager.destroyPlayer(id));
+    }
+
     public void setupPlayer(Bundle bundle, Promise promise) {
-        manager.switchPlayback(manager.createLocalPlayback(bundle));
+        manager.setupPlayer(bundle);
         promise.resolve(null);
     }
 
     public void updateOptions(Bundle bundle) {
         manager.setStopWithApp(bundle.getBoolean("stopWithApp", false));
         manager.setAlwaysPauseOnInterruption(bundle.getBoolean("alwaysPauseOnInterruption", false));
+        manager.setNativeRemoteActions(bundle.getBoolean("nativeRemoteActions", false));
         manager.getMetadata().updateOptions(bundle);
     }
 
@@ -61,6 +81,27 @@ public class MusicBinder extends Binder {
         manager.getMetadata().setActive(false);
     }
 
+    public Bundle getMetrics() {
+        return manager.getMetrics().toBundle();
+    }
+
+    public MediaLibrary getLibrary() {
+        return manager.getLibrary();
+    }
+
+    public BrowseTree getBrowseTree() {
+        return manager.getBrowseTree();
+    }
+
+    public void setBrowseTree(List<Bundle> items, Promise promise) {
+        manager.getBrowseTree().set(items);
+        promise.resolve(null);
+    }
+
+    public MediaSessionCompat.Token getSessionToken() {
+        return manager.getMetadata().getSession().getSessionToken();
+    }
+
     public int getRatingType() {
         return manager.getMetadata().getRatingType();
     }
@@ -0,0 +1,136 @@
+package com.guichaguri.trackplayer.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Process;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media.MediaBrowserServiceCompat;
+import com.guichaguri.trackplayer.service.session.BrowseTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lets Android Auto, Wear OS and the Assistant browse the tree registered from JS.
+ *
+ * The music service can't be a browser service itself, so this one binds to it for the media session
+ * and the browse tree. Only binding it doesn't start the headless JS task.
+ *
+ * Only the app itself, the system and the allowed controllers can browse. The app can replace the allowed
+ * packages with a string array resource named {@link #ALLOWED_PACKAGES}.
+ *
+ * @author Guichaguri
+ */
+public class MusicBrowserService extends MediaBrowserServiceCompat implements ServiceConnection {
+
+    public static final String ALLOWED_PACKAGES = "track_player_browse_packages";
+
+    // Android Auto, Android Automotive, Wear OS and the Assistant
+    private static final String[] DEFAULT_PACKAGES = {
+            "com.google.android.projection.gearhead",
+            "com.android.car.media",
+            "com.google.android.wearable.app",
+            "com.google.android.googlequicksearchbox",
+            "com.google.android.carassistant"
+    };
+
+    private final Set<String> allowedPackages = new HashSet<>();
+
+    @Nullable
+    private MusicBinder binder;
+
+    // Browse requests received before the music service was connected
+    private final List<Runnable> pending = new ArrayList<>();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        int packages = getResources().getIdentifier(ALLOWED_PACKAGES, "array", getPackageName());
+        allowedPackages.addAll(Arrays.asList(packages != 0 ? getResources().getStringArray(packages) : DEFAULT_PACKAGES));
+
+        Intent intent = new Intent(this, MusicService.class);
+        intent.setAction(Utils.CONNECT_INTENT);
+        bindService(intent, this, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        binder = (MusicBinder)service;
+
+        BrowseTree tree = binder.getBrowseTree();
+        tree.setListener(parentId -> notifyChildrenChanged(parentId));
+
+        // The token can only be set once, even if the music service is connected again
+        if(getSessionToken() == null) setSessionToken(binder.getSessionToken());
+
+        for(Runnable runnable : pending) runnable.run();
+        pending.clear();
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        binder = null;
+    }
+
+    @Nullable
+    @Override
+    public BrowserRoot onGetRoot(@NonNull String clientPackageName, int clientUid, @Nullable Bundle rootHints) {
+        if(!isAllowed(clientPackageName, clientUid)) {
+            Log.w(Utils.LOG, "Refusing to be browsed by " + clientPackageName);
+            return null;
+        }
+
+        return new BrowserRoot(BrowseTree.ROOT_ID, null);
+    }
+
+    /**
+     * Whether a controller can browse the tree. The package was already checked to belong to the uid
+     */
+    private boolean isAllowed(String packageName, int uid) {
+        if(uid == Process.myUid() || uid == Process.SYSTEM_UID) return true;
+
+        // Signed with the platform key, such as the system UI media controls
+        if(getPackageManager().checkSignatures("android", packageName) == PackageManager.SIGNATURE_MATCH) return true;
+
+        return allowedPackages.contains(packageName);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaItem>> result) {
+        onLoadChildren(parentId, result, Bundle.EMPTY);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaItem>> result, @NonNull Bundle options) {
+        result.detach();
+
+        Runnable load = () -> binder.getBrowseTree().loadChildren(parentId, options, result::sendResult);
+
+        if(binder != null) {
+            load.run();
+        } else {
+            pending.add(load);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        if(binder != null) binder.getBrowseTree().setListener(null);
+
+        unbindService(this);
+        super.onDestroy();
+    }
+
+}
@@ -12,24 +12,55 @@ import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
 import android.os.Build;
+import android.os.Debug;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.media.session.PlaybackStateCompat;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.core.os.TraceCompat;
 import android.util.Log;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.DefaultLoadControl;
 import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlayerFactory;
 import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.SimpleExoPlayer;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.guichaguri.trackplayer.module.MusicEvents;
+import com.guichaguri.trackplayer.service.audio.AudioRenderersFactory;
+import com.guichaguri.trackplayer.service.audio.LoudnessNormalizer;
+import com.guichaguri.trackplayer.service.audio.LoudnessProcessor;
+import com.guichaguri.trackplayer.service.audio.SilenceAnalyzer;
+import com.guichaguri.trackplayer.service.audio.Visualizer;
+import com.guichaguri.trackplayer.service.audio.VisualizerProcessor;
+import com.guichaguri.trackplayer.service.library.MediaLibrary;
+import com.guichaguri.trackplayer.service.library.SearchIndex;
 import com.guichaguri.trackplayer.service.metadata.MetadataManager;
+import com.guichaguri.trackplayer.service.models.Chapter;
+import com.guichaguri.trackplayer.service.models.FadeCurve;
 import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.player.AdaptiveBitrate;
 import com.guichaguri.trackplayer.service.player.ExoPlayback;
+import com.guichaguri.trackplayer.service.player.LiveLoadControl;
 import com.guichaguri.trackplayer.service.player.LocalPlayback;
+import com.guichaguri.trackplayer.service.player.ManifestCache;
+import com.guichaguri.trackplayer.service.player.MediaCache;
+import com.guichaguri.trackplayer.service.player.ResourcePool;
+import com.guichaguri.trackplayer.service.player.SilenceTrimmer;
+import com.guichaguri.trackplayer.service.session.BrowseTree;
+import com.guichaguri.trackplayer.service.session.SessionJournal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.google.android.exoplayer2.DefaultLoadControl.*;
 
@@ -38,14 +69,40 @@ import static com.google.android.exoplayer2.DefaultLoadControl.*;
  */
 public class MusicManager implements OnAudioFocusChangeListener {
 
+    private static final long DUCK_FADE_MS = 300;
+    private static final long UNDUCK_FADE_MS = 800;
+
     private final MusicService service;
 
-    private final WakeLock wakeLock;
-    private final WifiLock wifiLock;
+    private WakeLock wakeLock;
+    private WifiLock wifiLock;
 
     private MetadataManager metadata;
     private ExoPlayback playback;
 
+    // Secondary players, which play alongside the main one without controlling the media session
+    private final Map<String, ExoPlayback> players = new HashMap<>();
+
+    // Secondary players paused by a transient loss of the audio focus, resumed once it's regained
+    private final Set<ExoPlayback> pausedByFocus = new HashSet<>();
+
+    // When the amount of players last changed, to measure the CPU used with each amount
+    private long playersChangeTime = SystemClock.elapsedRealtime();
+    private long playersChangeCpu = Process.getElapsedCpuTime();
+    private MediaCache cache;
+    private ResourcePool resources;
+    private ManifestCache manifests;
+    private MediaLibrary library;
+    private BrowseTree browseTree;
+    private AdaptiveBitrate adaptiveBitrate;
+
+    private final SessionJournal journal;
+    private boolean restored = false;
+
+    private final Metrics metrics = new Metrics();
+    private long mediaButtonTime = -1;
+    private boolean mediaButtonCold = false;
+
     @RequiresApi(26)
     private AudioFocusRequest focus = null;
     private boolean hasAudioFocus = false;
@@ -61,26 +118,144 @@ public class MusicManager implements OnAudioFocusChangeListener {
 
     private boolean stopWithApp = false;
     private boolean alwaysPauseOnInterruption = false;
+    private boolean nativeRemoteActions = false;
 
-    @SuppressLint("InvalidWakeLockTag")
+    /**
+     * Nothing expensive is created here. The media session, the locks and the player are only created when
+     * they are first needed, so starting the service doesn't slow down the app startup.
+     */
     public MusicManager(MusicService service) {
         this.service = service;
-        this.metadata = new MetadataManager(service, this);
-
-        PowerManager powerManager = (PowerManager)service.getSystemService(Context.POWER_SERVICE);
-        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "track-player-wake-lock");
-        wakeLock.setReferenceCounted(false);
-
-        // Android 7: Use the application context here to prevent any memory leaks
-        WifiManager wifiManager = (WifiManager)service.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-        wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL, "track-player-wifi-lock");
-        wifiLock.setReferenceCounted(false);
+        this.journal = new SessionJournal(service);
     }
 
     public ExoPlayback getPlayback() {
         return playback;
     }
 
+    @Nullable
+    public ExoPlayback getPlayer(String id) {
+        return players.get(id);
+    }
+
+    /**
+     * Creates a secondary player, replacing the one with the same id.
+     * It shares the cache, the network stack and the audio focus with the main player.
+     */
+    public LocalPlayback createPlayer(String id, Bundle options) {
+        destroyPlayer(id);
+        recordPlayersCpu();
+
+        // Secondary players don't control the notification and aren't persisted
+        Bundle bundle = new Bundle(options);
+        bundle.putBoolean("autoUpdateMetadata", false);
+        bundle.putBoolean("visualizer", false);
+
+        LocalPlayback player = buildPlayback(bundle);
+        player.setPlayerId(id);
+        player.initialize();
+
+        players.put(id, player);
+        recordPlayersMemory();
+        return player;
+    }
+
+    public boolean destroyPlayer(String id) {
+        ExoPlayback player = players.get(id);
+        if(player == null) return false;
+
+        recordPlayersCpu();
+        players.remove(id);
+        pausedByFocus.remove(player);
+
+        player.stop();
+        player.destroy();
+        recordPlayersMemory();
+        return true;
+    }
+
+    private int getPlayerCount() {
+        return players.size() + (playback != null ? 1 : 0);
+    }
+
+    /**
+     * Records the CPU used since the amount of players last changed, under the metric of that amount
+     */
+    private void recordPlayersCpu() {
+        long time = SystemClock.elapsedRealtime();
+        long cpu = Process.getElapsedCpuTime();
+
+        if(time > playersChangeTime && getPlayerCount() > 0) {
+            double usage = (cpu - playersChangeCpu) * 100D / (time - playersChangeTime);
+            metrics.record(Metrics.forPlayers(Metrics.PLAYERS_CPU, getPlayerCount()), usage);
+        }
+
+        playersChangeTime = time;
+        playersChangeCpu = cpu;
+    }
+
+    private void recordPlayersMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+        metrics.record(Metrics.forPlayers(Metrics.PLAYERS_MEMORY, getPlayerCount()), used / 1024D);
+    }
+
+    @Nullable
+    public MediaCache getCache() {
+        return cache;
+    }
+
+    /**
+     * The file descriptors of the bundled resources, shared by every player
+     */
+    public ResourcePool getResourcePool() {
+        if(resources == null) resources = new ResourcePool(service, ResourcePool.DEFAULT_MAX_OPEN);
+        return resources;
+    }
+
+    /**
+     * The manifests of adaptive tracks, shared by every player
+     */
+    public ManifestCache getManifestCache() {
+        if(manifests == null) manifests = new ManifestCache();
+        return manifests;
+    }
+
+    /**
+     * The bandwidth estimate, shared by every player
+     * @param options The options of the first player, reading {@code persistBandwidth}
+     */
+    private AdaptiveBitrate getAdaptiveBitrate(Bundle options) {
+        if(adaptiveBitrate == null) {
+            adaptiveBitrate = new AdaptiveBitrate(service, this, options.getBoolean("persistBandwidth", true));
+        }
+        return adaptiveBitrate;
+    }
+
+    /**
+     * The index of the music stored on the device
+     */
+    public MediaLibrary getLibrary() {
+        if(library == null) library = new MediaLibrary(service, getHandler());
+        return library;
+    }
+
+    /**
+     * The tree browsed by Android Auto and other controllers
+     */
+    public BrowseTree getBrowseTree() {
+        if(browseTree == null) browseTree = new BrowseTree(service, getHandler(), metrics);
+        return browseTree;
+    }
+
+    private void setCacheSize(long maxSize) {
+        if(cache != null && cache.getMaxSize() == maxSize) return;
+        if(cache != null) cache.release();
+
+        cache = maxSize > 0 ? new MediaCache(service, this, maxSize) : null;
+        if(cache != null) cache.open();
+    }
+
     public boolean shouldStopWithApp() {
         return stopWithApp;
     }
@@ -93,7 +268,24 @@ public class MusicManager implements OnAudioFocusChangeListener {
         this.alwaysPauseOnInterruption = alwaysPauseOnInterruption;
     }
 
+    public void setNativeRemoteActions(boolean nativeRemoteActions) {
+        this.nativeRemoteActions = nativeRemoteActions;
+    }
+
+    /**
+     * Whether skips and seeks from remote controls are executed natively instead of by JS
+     */
+    public boolean shouldHandleRemoteActions() {
+        return playback != null && (nativeRemoteActions || restored);
+    }
+
     public MetadataManager getMetadata() {
+        if(metadata == null) {
+            TraceCompat.beginSection("TrackPlayer.createMediaSession");
+            metadata = new MetadataManager(service, this);
+            TraceCompat.endSection();
+        }
+
         return metadata;
     }
 
@@ -101,6 +293,26 @@ public class MusicManager implements OnAudioFocusChangeListener {
         return service.handler;
     }
 
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Whether the playback is a session restored natively, which JS didn't set up yet
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * Marks when a media button was pressed, measuring the time until the audio starts
+     * @param uptime The time of the key event in {@link SystemClock#uptimeMillis()}, or -1 to cancel
+     */
+    public void setMediaButtonTime(long uptime) {
+        mediaButtonTime = uptime;
+        mediaButtonCold = restored && playback != null && !Utils.isPlaying(playback.getState());
+    }
+
     public void switchPlayback(ExoPlayback playback) {
         if(this.playback != null) {
             this.playback.stop();
@@ -114,34 +326,380 @@ public class MusicManager implements OnAudioFocusChangeListener {
         }
     }
 
+    /**
+     * Sets up a new local playback. A queue started natively, such as from Android Auto or a restored session,
+     * is always moved into it. Otherwise the persisted session is read straight from the journal when it's
+     * still persisted.
+     */
+    public void setupPlayer(Bundle options) {
+        TraceCompat.beginSection("TrackPlayer.setupPlayer");
+        long start = SystemClock.elapsedRealtime();
+
+        boolean persist = options.getBoolean("persistSession", false);
+        List<Track> tracks = null;
+        int window = 0;
+        long position = 0;
+        boolean playing = false;
+
+        if(restored) {
+            Integer current = playback.getCurrentTrackIndex();
+
+            tracks = new ArrayList<>(playback.getQueue());
+            window = current != null ? current : 0;
+            position = playback.getPosition();
+            playing = Utils.isPlaying(playback.getState());
+        } else if(persist && playback == null) {
+            // Nothing was restored yet, the session is read now so only one player is created
+            RestoredSession session = readSession();
+
+            if(session != null) {
+                tracks = session.tracks;
+                window = session.window;
+                position = session.position;
+            }
+        }
+
+        restored = false;
+
+        LocalPlayback local = createLocalPlayback(options);
+        switchPlayback(local);
+
+        if(persist) {
+            journal.start(options);
+            local.setJournal(journal);
+        } else {
+            journal.clear();
+        }
+
+        if(tracks != null && !tracks.isEmpty()) {
+            local.restore(tracks, window, position);
+
+            // Keeps playing when it was resumed natively before JS was ready
+            if(playing) local.play();
+        }
+
+        metrics.record(Metrics.PLAYER_SETUP, SystemClock.elapsedRealtime() - start);
+        TraceCompat.endSection();
+    }
+
+    /**
+     * Restores the last persisted session paused, unless a player already exists
+     * @return Whether there is a restored session that JS didn't set up yet
+     */
+    public boolean restoreSession() {
+        if(playback != null) return restored;
+
+        TraceCompat.beginSection("TrackPlayer.restoreSession");
+        long start = SystemClock.elapsedRealtime();
+
+        try {
+            RestoredSession session = readSession();
+            if(session == null) return false;
+
+            LocalPlayback local = createLocalPlayback(session.options);
+            switchPlayback(local);
+
+            journal.start(session.options);
+            local.setJournal(journal);
+            local.restore(session.tracks, session.window, session.position);
+
+            restored = true;
+            metrics.record(Metrics.SESSION_RESTORE, SystemClock.elapsedRealtime() - start);
+            Log.d(Utils.LOG, "Restored a session with " + session.tracks.size() + " tracks");
+        } catch(Exception ex) {
+            Log.w(Utils.LOG, "Couldn't restore the session", ex);
+            journal.clear();
+        } finally {
+            TraceCompat.endSection();
+        }
+
+        return restored;
+    }
+
+    /**
+     * Plays a track of the queue or an item of the browse tree natively.
+     * Items of the browse tree are queued along with their playable siblings
+     * @return Whether the item could be played without JS
+     */
+    public boolean playFromMediaId(String mediaId) {
+        restoreSession();
+
+        if(playback != null) {
+            List<Track> queue = playback.getQueue();
+
+            for(int i = 0; i < queue.size(); i++) {
+                if(mediaId.equals(queue.get(i).originalItem.getString("id"))) return playFromQueue(i);
+            }
+        }
+
+        BrowseTree.Queue queue = getBrowseTree().getQueue(mediaId);
+        return queue != null && playTracks(queue.tracks, queue.index);
+    }
+
+    /**
+     * Resolves a voice search natively, looking into the queue first and then into the browse tree.
+     * A search focused on an artist, album or genre queues every matching item of the browse tree
+     * @param search The data of the remote-play-search event
+     * @return Whether the search could be played without JS
+     */
+    public boolean playFromSearch(Bundle search) {
+        long start = SystemClock.elapsedRealtime();
+        boolean played = resolveSearch(search);
+
+        metrics.record(Metrics.SEARCH_RESOLVE, SystemClock.elapsedRealtime() - start);
+        return played;
+    }
+
+    private boolean resolveSearch(Bundle search) {
+        String focus = search.getString("focus");
+        String query = search.getString(focus != null && search.containsKey(focus) ? focus : "query");
+        int fields = SearchIndex.getFields(focus);
+        boolean collection = fields == SearchIndex.ARTIST || fields == SearchIndex.ALBUM || fields == SearchIndex.GENRE;
+
+        restoreSession();
+
+        if(query == null || query.trim().isEmpty()) {
+            // "Play some music" resumes the current queue
+            if(playback == null || playback.getQueue().isEmpty()) return false;
+
+            playback.play();
+            return true;
+        }
+
+        if(playback != null && !collection) {
+            List<Integer> found = playback.getQueueIndex().search(query, fields);
+            if(!found.isEmpty()) return playFromQueue(found.get(0));
+        }
+
+        BrowseTree tree = getBrowseTree();
+        List<String> ids = tree.search(query, fields);
+
+        if(ids.isEmpty()) return false;
+        if(collection) return playTracks(tree.getTracks(ids), 0);
+
+        BrowseTree.Queue queue = tree.getQueue(ids.get(0));
+        return queue != null && playTracks(queue.tracks, queue.index);
+    }
+
+    private boolean playFromQueue(int index) {
+        if(!playback.skip(index)) return false;
+
+        playback.play();
+        return true;
+    }
+
+    private boolean playTracks(List<Bundle> bundles, int index) {
+        if(!restoreSession() && playback == null) {
+            // Handled natively until JS sets the player up
+            switchPlayback(createLocalPlayback(new Bundle()));
+            restored = true;
+        }
+
+        if(!(playback instanceof LocalPlayback)) return false;
+
+        LocalPlayback local = (LocalPlayback)playback;
+        List<Track> tracks = new ArrayList<>(bundles.size());
+        int ratingType = getMetadata().getRatingType();
+
+        for(Bundle bundle : bundles) {
+            tracks.add(new Track(service, bundle, ratingType));
+        }
+
+        local.reset();
+        local.restore(tracks, index, 0);
+        local.play();
+
+        try {
+            // The service might only be bound by the browser service, which would stop it once unbound
+            service.startService(new Intent(service, MusicService.class));
+        } catch(IllegalStateException ex) {
+            Log.w(Utils.LOG, "Couldn't keep the service running", ex);
+        }
+
+        return true;
+    }
+
+    private static class RestoredSession {
+        Bundle options;
+        List<Track> tracks;
+        int window;
+        long position;
+    }
+
+    @Nullable
+    private RestoredSession readSession() {
+        try {
+            SessionJournal.Session session = journal.read();
+            Bundle options = session != null ? session.getOptions() : null;
+
+            if(options == null || session.isEmpty()) return null;
+
+            RestoredSession restored = new RestoredSession();
+            int ratingType = getMetadata().getRatingType();
+
+            restored.options = options;
+            restored.tracks = new ArrayList<>();
+            restored.window = session.window;
+            restored.position = session.position;
+
+            List<Bundle> bundles = session.getTracks();
+
+            for(int i = 0; i < bundles.size(); i++) {
+                try {
+                    restored.tracks.add(new Track(service, bundles.get(i), ratingType));
+                } catch(Exception ex) {
+                    Log.w(Utils.LOG, "Skipping a track that couldn't be restored", ex);
+
+                    if(i < session.window) restored.window--;
+                    else if(i == session.window) restored.position = 0;
+                }
+            }
+
+            if(restored.tracks.isEmpty()) return null;
+            if(restored.window >= restored.tracks.size()) restored.window = restored.tracks.size() - 1;
+
+            return restored;
+        } catch(Exception ex) {
+            Log.w(Utils.LOG, "Couldn't read the session", ex);
+            journal.clear();
+            return null;
+        }
+    }
+
+    /**
+     * Creates a player to be used as the main one
+     */
     public LocalPlayback createLocalPlayback(Bundle options) {
+        setCacheSize((long)(options.getDouble("maxCacheSize", 0) * 1024));
+        getManifestCache().setTtl(Utils.toMillis(options.getDouble("manifestCacheTtl",
+                Utils.toSeconds(ManifestCache.DEFAULT_TTL_MS))));
+        return buildPlayback(options);
+    }
+
+    private LocalPlayback buildPlayback(Bundle options) {
         boolean autoUpdateMetadata = options.getBoolean("autoUpdateMetadata", true);
         int minBuffer = (int)Utils.toMillis(options.getDouble("minBuffer", Utils.toSeconds(DEFAULT_MIN_BUFFER_MS)));
         int maxBuffer = (int)Utils.toMillis(options.getDouble("maxBuffer", Utils.toSeconds(DEFAULT_MAX_BUFFER_MS)));
         int playBuffer = (int)Utils.toMillis(options.getDouble("playBuffer", Utils.toSeconds(DEFAULT_BUFFER_FOR_PLAYBACK_MS)));
         int backBuffer = (int)Utils.toMillis(options.getDouble("backBuffer", Utils.toSeconds(DEFAULT_BACK_BUFFER_DURATION_MS)));
-        long cacheMaxSize = (long)(options.getDouble("maxCacheSize", 0) * 1024);
         int multiplier = DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS / DEFAULT_BUFFER_FOR_PLAYBACK_MS;
 
-        LoadControl control = new DefaultLoadControl.Builder()
+        long liveBuffer = Utils.toMillis(options.getDouble("liveBuffer", 1));
+
+        LiveLoadControl control = new LiveLoadControl(new DefaultLoadControl.Builder()
                 .setBufferDurationsMs(minBuffer, maxBuffer, playBuffer, playBuffer * multiplier)
                 .setBackBuffer(backBuffer, false)
-                .createDefaultLoadControl();
-
-        SimpleExoPlayer player = new SimpleExoPlayer.Builder(service)
+                .createDefaultLoadControl(), liveBuffer);
+
+        boolean loudnessNormalization = options.getBoolean("loudnessNormalization", false);
+        float loudnessTarget = (float)options.getDouble("loudnessTarget", -18);
+
+        boolean skipSilence = options.getBoolean("skipSilence", false);
+        boolean trimSilence = options.getBoolean("trimSilence", false);
+        double silenceThreshold = options.getDouble("silenceThreshold", -30);
+        long minSilence = Utils.toMillis(options.getDouble("minSilenceDuration", 0.15));
+        long silencePadding = Utils.toMillis(options.getDouble("silencePadding", 0.02));
+        short silenceLevel = (short)Math.min(Short.MAX_VALUE, Math.pow(10, silenceThreshold / 20) * Short.MAX_VALUE);
+
+        AudioRenderersFactory renderers = new AudioRenderersFactory(service);
+        renderers.setMetrics(metrics);
+        LoudnessProcessor loudness = loudnessNormalization ? renderers.enableLoudnessNormalization() : null;
+        renderers.setSilenceSkipping(minSilence * 1000, silencePadding * 1000, silenceLevel);
+        if("wsola".equals(options.getString("timeStretch"))) renderers.enableTimeStretch();
+        if(options.getBoolean("equalizer", false)) renderers.enableEqualizer();
+        VisualizerProcessor visualizer = options.getBoolean("visualizer", false) ? renderers.enableVisualizer() : null;
+
+        AdaptiveBitrate bandwidth = getAdaptiveBitrate(options);
+        AdaptiveBitrate.Selection selection = bandwidth.createSelection(options);
+
+        SimpleExoPlayer player = new SimpleExoPlayer.Builder(service, renderers)
                 .setLoadControl(control)
+                .setTrackSelector(selection.getTrackSelector())
+                .setBandwidthMeter(bandwidth.getBandwidthMeter())
                 .build();
 
+        player.addAnalyticsListener(selection);
+
         player.setAudioAttributes(new com.google.android.exoplayer2.audio.AudioAttributes.Builder()
                 .setContentType(C.CONTENT_TYPE_MUSIC).setUsage(C.USAGE_MEDIA).build());
 
-        return new LocalPlayback(service, this, player, cacheMaxSize, autoUpdateMetadata);
+        if(skipSilence) player.setPlaybackParameters(new PlaybackParameters(1, 1, true));
+
+        LocalPlayback playback = new LocalPlayback(service, this, player, renderers, autoUpdateMetadata);
+        playback.setAdaptiveBitrate(selection);
+        playback.setLiveLoadControl(control);
+
+        if(loudness != null) {
+            playback.setLoudnessNormalizer(new LoudnessNormalizer(service, loudness, loudnessTarget));
+        }
+
+        if(trimSilence) {
+            SilenceAnalyzer analyzer = new SilenceAnalyzer(service, silenceLevel, minSilence);
+            playback.setSilenceTrimmer(new SilenceTrimmer(playback, this, player, analyzer));
+        }
+
+        if(visualizer != null) {
+            playback.setVisualizer(new Visualizer(this, visualizer));
+        }
+
+        playback.setMemoryMapping(options.getBoolean("memoryMappedFiles", false));
+
+        long crossfade = Utils.toMillis(options.getDouble("crossfadeDuration", 0));
+        playback.setCrossfade(crossfade, FadeCurve.fromName(options.getString("crossfadeCurve"), FadeCurve.EQUAL_POWER));
+
+        return playback;
     }
 
-    @SuppressLint("WakelockTimeout")
-    public void onPlay() {
+    /**
+     * Creates the secondary player used to play the beginning of the next track during a crossfade
+     * @param renderers The audio stages, mirroring the ones of the main player
+     */
+    public SimpleExoPlayer createCrossfadePlayer(AudioRenderersFactory renderers) {
+        // It only needs to hold a few seconds of the incoming track
+        LoadControl control = new DefaultLoadControl.Builder()
+                .setBufferDurationsMs(5000, 15000, 1000, 2000)
+                .createDefaultLoadControl();
+
+        SimpleExoPlayer.Builder builder = new SimpleExoPlayer.Builder(service, renderers).setLoadControl(control);
+        if(adaptiveBitrate != null) builder.setBandwidthMeter(adaptiveBitrate.getBandwidthMeter());
+
+        SimpleExoPlayer player = builder.build();
+
+        player.setAudioAttributes(new com.google.android.exoplayer2.audio.AudioAttributes.Builder()
+                .setContentType(C.CONTENT_TYPE_MUSIC).setUsage(C.USAGE_MEDIA).build());
+
+        return player;
+    }
+
+    @SuppressLint({"InvalidWakeLockTag", "WakelockTimeout"})
+    private void acquireLocks(boolean wifi) {
+        if(wakeLock == null) {
+            PowerManager powerManager = (PowerManager)service.getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "track-player-wake-lock");
+            wakeLock.setReferenceCounted(false);
+        }
+
+        if(!wakeLock.isHeld()) wakeLock.acquire();
+
+        if(!wifi) return;
+
+        if(wifiLock == null) {
+            // Android 7: Use the application context here to prevent any memory leaks
+            WifiManager wifiManager = (WifiManager)service.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+            wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL, "track-player-wifi-lock");
+            wifiLock.setReferenceCounted(false);
+        }
+
+        if(!wifiLock.isHeld()) wifiLock.acquire();
+    }
+
+    private void releaseLocks() {
+        if(wakeLock != null && wakeLock.isHeld()) wakeLock.release();
+        if(wifiLock != null && wifiLock.isHeld()) wifiLock.release();
+    }
+
+    public void onPlay(ExoPlayback playback) {
         Log.d(Utils.LOG, "onPlay");
-        if(playback == null) return;
 
         Track track = playback.getCurrentTrack();
         if(track == null) return;
@@ -154,91 +712,97 @@ public class MusicManager implements OnAudioFocusChangeListener {
                 service.registerReceiver(noisyReceiver, new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY));
             }
 
-            if(!wakeLock.isHeld()) wakeLock.acquire();
-
-            if(!Utils.isLocal(track.uri)) {
-                if(!wifiLock.isHeld()) wifiLock.acquire();
-            }
+            acquireLocks(!Utils.isLocal(track.uri));
         }
 
         if (playback.shouldAutoUpdateMetadata())
-            metadata.setActive(true);
+            getMetadata().setActive(true);
     }
 
-    public void onPause() {
+    public void onPause(ExoPlayback playback) {
         Log.d(Utils.LOG, "onPause");
 
-        // Unregisters the noisy receiver
-        if(receivingNoisyEvents) {
-            service.unregisterReceiver(noisyReceiver);
-            receivingNoisyEvents = false;
-        }
+        // The resources are kept while any other player is still playing
+        if(!isAnyPlaying()) {
+            // Unregisters the noisy receiver
+            if(receivingNoisyEvents) {
+                service.unregisterReceiver(noisyReceiver);
+                receivingNoisyEvents = false;
+            }
 
-        // Release the wake and the wifi locks
-        if(wakeLock.isHeld()) wakeLock.release();
-        if(wifiLock.isHeld()) wifiLock.release();
+            // Release the wake and the wifi locks
+            releaseLocks();
+        }
 
         if (playback.shouldAutoUpdateMetadata())
-            metadata.setActive(true);
+            getMetadata().setActive(true);
     }
 
-    public void onStop() {
+    public void onStop(ExoPlayback playback) {
         Log.d(Utils.LOG, "onStop");
 
-        // Unregisters the noisy receiver
-        if(receivingNoisyEvents) {
-            service.unregisterReceiver(noisyReceiver);
-            receivingNoisyEvents = false;
-        }
+        if(!isAnyPlaying()) {
+            // Unregisters the noisy receiver
+            if(receivingNoisyEvents) {
+                service.unregisterReceiver(noisyReceiver);
+                receivingNoisyEvents = false;
+            }
 
-        // Release the wake and the wifi locks
-        if(wakeLock.isHeld()) wakeLock.release();
-        if(wifiLock.isHeld()) wifiLock.release();
+            // Release the wake and the wifi locks
+            releaseLocks();
 
-        abandonFocus();
+            abandonFocus();
+        }
 
         if (playback.shouldAutoUpdateMetadata())
-            metadata.setActive(false);
+            getMetadata().setActive(false);
     }
 
-    public void onStateChange(int state) {
+    public void onStateChange(ExoPlayback playback, int state) {
         Log.d(Utils.LOG, "onStateChange");
 
         Bundle bundle = new Bundle();
         bundle.putInt("state", state);
-        service.emit(MusicEvents.PLAYBACK_STATE, bundle);
+        emit(playback, MusicEvents.PLAYBACK_STATE, bundle);
+
+        if(state == PlaybackStateCompat.STATE_PLAYING && mediaButtonTime >= 0 && playback == this.playback) {
+            long latency = SystemClock.uptimeMillis() - mediaButtonTime;
+            metrics.record(mediaButtonCold ? Metrics.MEDIA_BUTTON_COLD_LATENCY : Metrics.MEDIA_BUTTON_LATENCY, latency);
+            mediaButtonTime = -1;
+        }
 
         if (playback.shouldAutoUpdateMetadata())
-            metadata.updatePlayback(playback);
+            getMetadata().updatePlayback(playback);
     }
 
-    public void onTrackUpdate(Integer prevIndex, long prevPos, Integer nextIndex, Track next) {
+    public void onTrackUpdate(ExoPlayback playback, Integer prevIndex, long prevPos, Integer nextIndex, Track next) {
         Log.d(Utils.LOG, "onTrackUpdate");
 
         if(playback.shouldAutoUpdateMetadata() && next != null)
-            metadata.updateMetadata(playback, next);
+            getMetadata().updateMetadata(playback, next);
 
         Bundle bundle = new Bundle();
         if (prevIndex != null) bundle.putInt("track", prevIndex);
         bundle.putDouble("position", Utils.toSeconds(prevPos));
         if (nextIndex != null) bundle.putInt("nextTrack", nextIndex);
-        service.emit(MusicEvents.PLAYBACK_TRACK_CHANGED, bundle);
+        emit(playback, MusicEvents.PLAYBACK_TRACK_CHANGED, bundle);
     }
 
-    public void onReset() {
-        metadata.removeNotifications();
+    public void onReset(ExoPlayback playback) {
+        if(playback == this.playback) getMetadata().removeNotifications();
     }
 
-    public void onEnd(Integer previousIndex, long prevPos) {
+    public void onEnd(ExoPlayback playback, Integer previousIndex, long prevPos) {
         Log.d(Utils.LOG, "onEnd");
 
         Bundle bundle = new Bundle();
         if (previousIndex != null) bundle.putInt("track", previousIndex);
         bundle.putDouble("position", Utils.toSeconds(prevPos));
-        service.emit(MusicEvents.PLAYBACK_QUEUE_ENDED, bundle);
+        emit(playback, MusicEvents.PLAYBACK_QUEUE_ENDED, bundle);
     }
 
-    public void onMetadataReceived(String source, String title, String url, String artist, String album, String date, String genre) {
+    public void onMetadataReceived(ExoPlayback playback, String source, String title, String url, String artist,
+                                   String album, String date, String genre) {
         Log.d(Utils.LOG, "onMetadataReceived: " + source);
 
         Bundle bundle = new Bundle();
@@ -249,17 +813,76 @@ public class MusicManager implements OnAudioFocusChangeListener {
         bundle.putString("album", album);
         bundle.putString("date", date);
         bundle.putString("genre", genre);
-        service.emit(MusicEvents.PLAYBACK_METADATA, bundle);
+        emit(playback, MusicEvents.PLAYBACK_METADATA, bundle);
+    }
+
+    public void onEmbeddedArtwork(ExoPlayback playback, Track track) {
+        // Tracks with an artwork url keep using it
+        if(playback.shouldAutoUpdateMetadata() && track.artwork == null)
+            getMetadata().updateMetadata(playback, track);
+    }
+
+    public void onChaptersReceived(ExoPlayback playback, List<Chapter> chapters) {
+        ArrayList<Bundle> list = new ArrayList<>();
+        for(Chapter chapter : chapters) list.add(chapter.toBundle());
+
+        Bundle bundle = new Bundle();
+        bundle.putParcelableArrayList("chapters", list);
+        emit(playback, MusicEvents.PLAYBACK_CHAPTERS, bundle);
     }
 
-    public void onError(String code, String error) {
+    public void onVisualization(float[] bands, float rms, float peak) {
+        Bundle bundle = new Bundle();
+        bundle.putFloatArray("bands", bands);
+        bundle.putDouble("rms", rms);
+        bundle.putDouble("peak", peak);
+        service.emit(MusicEvents.PLAYBACK_VISUALIZATION, bundle);
+    }
+
+    public void onError(ExoPlayback playback, String code, String error) {
         Log.d(Utils.LOG, "onError");
         Log.e(Utils.LOG, "Playback error: " + code + " - " + error);
 
         Bundle bundle = new Bundle();
         bundle.putString("code", code);
         bundle.putString("message", error);
-        service.emit(MusicEvents.PLAYBACK_ERROR, bundle);
+        emit(playback, MusicEvents.PLAYBACK_ERROR, bundle);
+    }
+
+    /**
+     * Emits an event of a player. Events of secondary players are wrapped in a single event,
+     * so they don't reach the listeners of the main player.
+     */
+    private void emit(ExoPlayback playback, String event, Bundle data) {
+        String id = playback.getPlayerId();
+
+        if(id == null) {
+            service.emit(event, data);
+            return;
+        }
+
+        Bundle bundle = data == null ? new Bundle() : new Bundle(data);
+        bundle.putString("playerId", id);
+        bundle.putString("type", event);
+        service.emit(MusicEvents.PLAYER_EVENT, bundle);
+    }
+
+    private boolean isAnyPlaying() {
+        if(playback != null && Utils.isPlaying(playback.getState())) return true;
+
+        for(ExoPlayback player : players.values()) {
+            if(Utils.isPlaying(player.getState())) return true;
+        }
+
+        return false;
+    }
+
+    private void fadeVolumeMultiplier(float multiplier, long duration) {
+        if(playback != null) playback.fadeVolumeMultiplier(multiplier, duration);
+
+        for(ExoPlayback player : players.values()) {
+            player.fadeVolumeMultiplier(multiplier, duration);
+        }
     }
 
     @Override
@@ -287,18 +910,38 @@ public class MusicManager implements OnAudioFocusChangeListener {
                 break;
         }
 
+        // The audio focus is shared, every player ducks together
         if (ducking) {
-            playback.setVolumeMultiplier(0.5F);
+            fadeVolumeMultiplier(0.5F, DUCK_FADE_MS);
             wasDucking = true;
         } else if (wasDucking) {
-            playback.setVolumeMultiplier(1.0F);
+            fadeVolumeMultiplier(1.0F, UNDUCK_FADE_MS);
             wasDucking = false;
         }
 
+        // Secondary players are paused natively, so they never keep playing over a call
+        if(paused) {
+            for(ExoPlayback player : players.values()) {
+                if(!Utils.isPlaying(player.getState())) continue;
+
+                player.pause();
+                pausedByFocus.add(player);
+            }
+
+            if(permanent) pausedByFocus.clear();
+        } else if(focus == AudioManager.AUDIOFOCUS_GAIN) {
+            for(ExoPlayback player : pausedByFocus) player.play();
+            pausedByFocus.clear();
+        }
+
         Bundle bundle = new Bundle();
         bundle.putBoolean("permanent", permanent);
         bundle.putBoolean("paused", paused);
         service.emit(MusicEvents.BUTTON_DUCK, bundle);
+
+        for(ExoPlayback player : players.values()) {
+            emit(player, MusicEvents.BUTTON_DUCK, bundle);
+        }
     }
 
     private void requestFocus() {
@@ -363,11 +1006,50 @@ public class MusicManager implements OnAudioFocusChangeListener {
         // Release the playback resources
         if(playback != null) playback.destroy();
 
+        for(ExoPlayback player : players.values()) {
+            player.destroy();
+        }
+
+        players.clear();
+        pausedByFocus.clear();
+
+        if(cache != null) {
+            cache.release();
+            cache = null;
+        }
+
+        if(resources != null) {
+            resources.release();
+            resources = null;
+        }
+
+        if(manifests != null) {
+            manifests.release();
+            manifests = null;
+        }
+
+        if(library != null) {
+            library.release();
+            library = null;
+        }
+
+        if(adaptiveBitrate != null) {
+            adaptiveBitrate.destroy();
+            adaptiveBitrate = null;
+        }
+
+        if(browseTree != null) {
+            browseTree.release();
+            browseTree = null;
+        }
+
         // Release the metadata resources
-        metadata.destroy();
+        if(metadata != null) metadata.destroy();
+
+        // Flush the last records of the session
+        journal.destroy();
 
         // Release the locks
-        if(wifiLock.isHeld()) wifiLock.release();
-        if(wakeLock.isHeld()) wakeLock.release();
+        releaseLocks();
     }
 }
@@ -6,7 +6,10 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.view.KeyEvent;
 import androidx.core.app.NotificationCompat;
+import androidx.core.os.TraceCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.media.session.MediaButtonReceiver;
 
@@ -95,6 +98,18 @@ public class MusicService extends HeadlessJsTaskService {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if(intent != null && Intent.ACTION_MEDIA_BUTTON.equals(intent.getAction())) {
+            KeyEvent key = intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
+
+            // The persisted session is only restored once a media button needs it
+            boolean restored = manager != null && manager.restoreSession();
+            if(manager != null && key != null) manager.setMediaButtonTime(key.getEventTime());
+
+            if(restored) {
+                // A session was restored natively, so it's handled without waiting for JS
+                MediaButtonReceiver.handleIntent(manager.getMetadata().getSession(), intent);
+                return START_NOT_STICKY;
+            }
+
             // Check if the app is on background, then starts a foreground service and then ends it right after
             onStartForeground();
             
@@ -105,8 +120,10 @@ public class MusicService extends HeadlessJsTaskService {
             return START_NOT_STICKY;
         }
 
-        manager = new MusicManager(this);
-        handler = new Handler();
+        if(manager == null) {
+            handler = new Handler();
+            manager = new MusicManager(this);
+        }
 
         super.onStartCommand(intent, flags, startId);
         return START_NOT_STICKY;
@@ -114,9 +131,19 @@ public class MusicService extends HeadlessJsTaskService {
 
     @Override
     public void onCreate() {
+        TraceCompat.beginSection("TrackPlayer.createService");
+        long start = SystemClock.elapsedRealtime();
+
         super.onCreate();
         String channel = Utils.getNotificationChannel((Context) this);
         startForeground(1, new NotificationCompat.Builder(this, channel).build());
+
+        // The manager is cheap to create, the player and the media session are only created when needed
+        handler = new Handler();
+        manager = new MusicManager(this);
+
+        manager.getMetrics().record(Metrics.SERVICE_CREATE, SystemClock.elapsedRealtime() - start);
+        TraceCompat.endSection();
     }
 
     @Override
@@ -0,0 +1,94 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The per-URI results of the audio analyses, limited to the most recently used tracks.
+ *
+ * The values are kept in their own preferences and the last time each one was used in a second one,
+ * so the least recently used entries can be evicted once there are too many.
+ *
+ * @author Guichaguri
+ */
+class AnalysisCache {
+
+    private static final int MAX_ENTRIES = 2000;
+
+    // Evicts a few more entries than needed, so the entries aren't sorted again on every new track
+    private static final int EVICT_TO = MAX_ENTRIES * 9 / 10;
+
+    private final SharedPreferences values;
+    private final SharedPreferences access;
+
+    AnalysisCache(Context context, String name) {
+        this.values = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        this.access = context.getSharedPreferences(name + "Access", Context.MODE_PRIVATE);
+    }
+
+    boolean contains(String key) {
+        return values.contains(key);
+    }
+
+    float getFloat(String key, float defaultValue) {
+        if(!values.contains(key)) return defaultValue;
+
+        touch(key);
+        return values.getFloat(key, defaultValue);
+    }
+
+    String getString(String key) {
+        String value = values.getString(key, null);
+        if(value != null) touch(key);
+        return value;
+    }
+
+    void putFloat(String key, float value) {
+        values.edit().putFloat(key, value).apply();
+        touch(key);
+        trim();
+    }
+
+    void putString(String key, String value) {
+        values.edit().putString(key, value).apply();
+        touch(key);
+        trim();
+    }
+
+    private void touch(String key) {
+        access.edit().putLong(key, System.currentTimeMillis()).apply();
+    }
+
+    private synchronized void trim() {
+        Map<String, ?> all = values.getAll();
+        if(all.size() <= MAX_ENTRIES) return;
+
+        Map<String, ?> times = access.getAll();
+        List<String> keys = new ArrayList<>(all.keySet());
+
+        // Entries stored before the access times were tracked are the first ones evicted
+        Collections.sort(keys, (a, b) -> Long.compare(getTime(times, a), getTime(times, b)));
+
+        SharedPreferences.Editor valuesEditor = values.edit();
+        SharedPreferences.Editor accessEditor = access.edit();
+
+        for(int i = 0; i < keys.size() - EVICT_TO; i++) {
+            valuesEditor.remove(keys.get(i));
+            accessEditor.remove(keys.get(i));
+        }
+
+        valuesEditor.apply();
+        accessEditor.apply();
+    }
+
+    private static long getTime(Map<String, ?> times, String key) {
+        Object time = times.get(key);
+        return time instanceof Long ? (Long)time : 0;
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.PlaybackParameters;
+import com.google.android.exoplayer2.audio.AudioProcessor;
+import com.google.android.exoplayer2.audio.DefaultAudioSink;
+import com.google.android.exoplayer2.audio.SilenceSkippingAudioProcessor;
+import com.google.android.exoplayer2.audio.SonicAudioProcessor;
+import com.guichaguri.trackplayer.service.Metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The same chain as {@link DefaultAudioSink.DefaultAudioProcessorChain}, but with configurable silence skipping
+ * and an optional time-stretch engine replacing Sonic for speed changes.
+ *
+ * The processing time of both engines can be recorded as metrics, to compare their CPU cost at each speed.
+ *
+ * @author Guichaguri
+ */
+public class AudioProcessorChain implements DefaultAudioSink.AudioProcessorChain {
+
+    // The sink stops asking for the media duration at the normal speed,
+    // so this speed is given to it while ramping back to the normal speed
+    private static final float RAMP_SPEED = Math.nextUp(1.0F);
+
+    private final AudioProcessor[] processors;
+    private final SilenceSkippingAudioProcessor silence;
+    private final TimeStretchProcessor stretch;
+    private final SonicAudioProcessor sonic;
+
+    @Nullable
+    private final TimedAudioProcessor stretchTimer, sonicTimer;
+
+    private volatile long rampDuration = 0;
+
+    /**
+     * @param metrics Where the processing time of the time-stretch engines is recorded, or null
+     */
+    public AudioProcessorChain(AudioProcessor[] audioProcessors, SilenceSkippingAudioProcessor silence,
+                               @Nullable TimeStretchProcessor stretch, @Nullable Metrics metrics) {
+        this.silence = silence;
+        this.stretch = stretch;
+        this.sonic = new SonicAudioProcessor();
+
+        stretchTimer = metrics != null && stretch != null ? new TimedAudioProcessor(stretch, metrics, Metrics.TIME_STRETCH_COST) : null;
+        sonicTimer = metrics != null ? new TimedAudioProcessor(sonic, metrics, Metrics.SONIC_COST) : null;
+
+        List<AudioProcessor> list = new ArrayList<>(Arrays.asList(audioProcessors));
+        list.add(silence);
+        if(stretch != null) list.add(stretchTimer != null ? stretchTimer : stretch);
+        list.add(sonicTimer != null ? sonicTimer : sonic);
+
+        processors = list.toArray(new AudioProcessor[0]);
+    }
+
+    /**
+     * Sets how long the next speed change will take. Only the time-stretch engine supports ramps
+     * @param duration The duration in milliseconds
+     */
+    public void setRampDuration(long duration) {
+        rampDuration = duration;
+    }
+
+    @Override
+    public AudioProcessor[] getAudioProcessors() {
+        return processors;
+    }
+
+    @Override
+    public PlaybackParameters applyPlaybackParameters(PlaybackParameters playbackParameters) {
+        silence.setEnabled(playbackParameters.skipSilence);
+
+        float speed;
+
+        if(stretch != null) {
+            long duration = rampDuration;
+            speed = stretch.setSpeed(playbackParameters.speed, duration);
+            sonic.setSpeed(1);
+
+            if(speed == 1 && duration > 0 && stretch.getSpeed() != 1) speed = RAMP_SPEED;
+        } else {
+            speed = sonic.setSpeed(playbackParameters.speed);
+        }
+
+        float pitch = sonic.setPitch(playbackParameters.pitch);
+
+        // The engines only pass the audio through at the normal speed
+        if(stretchTimer != null) stretchTimer.setMeasuring(playbackParameters.speed != 1);
+        if(sonicTimer != null) sonicTimer.setMeasuring(stretch == null && playbackParameters.speed != 1);
+
+        return new PlaybackParameters(speed, pitch, playbackParameters.skipSilence);
+    }
+
+    /**
+     * Replaces the speed only given to the sink by the speed that is really applied
+     */
+    public static PlaybackParameters getAppliedParameters(PlaybackParameters params) {
+        if(params.speed != RAMP_SPEED) return params;
+        return new PlaybackParameters(1, params.pitch, params.skipSilence);
+    }
+
+    @Override
+    public long getMediaDuration(long playoutDuration) {
+        long duration = sonic.scaleDurationForSpeedup(playoutDuration);
+        return stretch == null ? duration : stretch.scaleDurationForSpeedup(duration);
+    }
+
+    @Override
+    public long getSkippedOutputFrameCount() {
+        return silence.getSkippedFrames();
+    }
+
+}
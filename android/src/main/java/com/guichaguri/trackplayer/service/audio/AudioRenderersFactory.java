@@ -0,0 +1,177 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.content.Context;
+import android.os.Handler;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.audio.AudioCapabilities;
+import com.google.android.exoplayer2.audio.AudioProcessor;
+import com.google.android.exoplayer2.audio.AudioRendererEventListener;
+import com.google.android.exoplayer2.audio.DefaultAudioSink;
+import com.google.android.exoplayer2.audio.SilenceSkippingAudioProcessor;
+import com.google.android.exoplayer2.drm.DrmSessionManager;
+import com.google.android.exoplayer2.drm.FrameworkMediaCrypto;
+import com.google.android.exoplayer2.mediacodec.MediaCodecSelector;
+import com.guichaguri.trackplayer.service.Metrics;
+import com.guichaguri.trackplayer.service.models.EqualizerSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the player renderers, inserting our own audio processors into the audio pipeline
+ *
+ * @author Guichaguri
+ */
+public class AudioRenderersFactory extends DefaultRenderersFactory {
+
+    private final VolumeRampProcessor volume = new VolumeRampProcessor();
+    private LoudnessProcessor loudness;
+    private EqualizerProcessor equalizer;
+    private VisualizerProcessor visualizer;
+    private SilenceSkippingAudioProcessor silence = new SilenceSkippingAudioProcessor();
+    private TimeStretchProcessor stretch;
+    private AudioProcessorChain chain;
+
+    @Nullable
+    private Metrics metrics;
+
+    public AudioRenderersFactory(Context context) {
+        super(context);
+    }
+
+    /**
+     * Records the processing cost of the audio stages. Must be called before the player is built
+     */
+    public void setMetrics(@Nullable Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public VolumeRampProcessor getVolumeProcessor() {
+        return volume;
+    }
+
+    /**
+     * Adds the loudness normalization stage. Must be called before the player is built
+     */
+    public LoudnessProcessor enableLoudnessNormalization() {
+        if(loudness == null) loudness = new LoudnessProcessor();
+        return loudness;
+    }
+
+    /**
+     * Adds the equalizer stage. Must be called before the player is built
+     */
+    public EqualizerProcessor enableEqualizer() {
+        if(equalizer == null) equalizer = new EqualizerProcessor();
+        return equalizer;
+    }
+
+    @Nullable
+    public EqualizerProcessor getEqualizer() {
+        return equalizer;
+    }
+
+    /**
+     * Adds the visualization tap. Must be called before the player is built
+     */
+    public VisualizerProcessor enableVisualizer() {
+        if(visualizer == null) visualizer = new VisualizerProcessor();
+        return visualizer;
+    }
+
+    /**
+     * Configures the silence skipping thresholds. Must be called before the player is built
+     * @param minDuration The minimum duration of a silence to be skipped in microseconds
+     * @param padding The duration of silence kept around the skipped part in microseconds
+     * @param threshold The absolute sample level under which the audio is considered silent
+     */
+    public void setSilenceSkipping(long minDuration, long padding, short threshold) {
+        silence = new SilenceSkippingAudioProcessor(minDuration, padding, threshold);
+    }
+
+    /**
+     * Replaces Sonic with our own time-stretch engine. Must be called before the player is built
+     */
+    public TimeStretchProcessor enableTimeStretch() {
+        if(stretch == null) stretch = new TimeStretchProcessor();
+        return stretch;
+    }
+
+    @Nullable
+    public TimeStretchProcessor getTimeStretchProcessor() {
+        return stretch;
+    }
+
+    /**
+     * Creates a factory with the same loudness, equalizer and time-stretch stages, for a player that plays
+     * alongside this one. The equalizer settings are copied, silence skipping and the visualizer aren't
+     */
+    public AudioRenderersFactory createSibling(Context context) {
+        AudioRenderersFactory sibling = new AudioRenderersFactory(context);
+
+        if(loudness != null) sibling.enableLoudnessNormalization();
+        if(stretch != null) sibling.enableTimeStretch();
+
+        if(equalizer != null) {
+            EqualizerSettings settings = equalizer.getSettings();
+            EqualizerProcessor processor = sibling.enableEqualizer();
+            if(settings != null) processor.setSettings(settings);
+        }
+
+        return sibling;
+    }
+
+    @Nullable
+    public LoudnessProcessor getLoudnessProcessor() {
+        return loudness;
+    }
+
+    /**
+     * Sets how long the next speed change will take
+     * @param duration The duration in milliseconds
+     */
+    public void setRateRampDuration(long duration) {
+        if(chain != null) chain.setRampDuration(duration);
+    }
+
+    /**
+     * Gets the amount of frames skipped since the playback started
+     */
+    public long getSkippedSilenceFrames() {
+        return chain == null ? 0 : chain.getSkippedOutputFrameCount();
+    }
+
+    @Override
+    protected AudioProcessor[] buildAudioProcessors() {
+        List<AudioProcessor> processors = new ArrayList<>();
+
+        if(loudness != null) processors.add(loudness);
+        if(equalizer != null) {
+            processors.add(metrics == null ? equalizer : new TimedAudioProcessor(equalizer, metrics, Metrics.EQUALIZER_COST));
+        }
+        processors.add(volume);
+        if(visualizer != null) processors.add(visualizer);
+
+        return processors.toArray(new AudioProcessor[0]);
+    }
+
+    @Override
+    protected void buildAudioRenderers(Context context, int extensionRendererMode, MediaCodecSelector mediaCodecSelector,
+                                       @Nullable DrmSessionManager<FrameworkMediaCrypto> drmSessionManager,
+                                       boolean playClearSamplesWithoutKeys, boolean enableDecoderFallback,
+                                       AudioProcessor[] audioProcessors, Handler eventHandler,
+                                       AudioRendererEventListener eventListener, ArrayList<Renderer> out) {
+        chain = new AudioProcessorChain(audioProcessors, silence, stretch, metrics);
+
+        LoudnessProcessor loudness = this.loudness;
+
+        out.add(new TransitionAudioRenderer(context, mediaCodecSelector, drmSessionManager,
+                playClearSamplesWithoutKeys, enableDecoderFallback, eventHandler, eventListener,
+                new DefaultAudioSink(AudioCapabilities.getCapabilities(context), chain, false), visualizer, () -> {
+                    if(loudness != null) loudness.onStreamChanged();
+                }));
+    }
+
+}
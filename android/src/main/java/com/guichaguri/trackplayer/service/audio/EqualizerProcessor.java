@@ -0,0 +1,235 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.audio.BaseAudioProcessor;
+import com.guichaguri.trackplayer.service.models.EqualizerSettings;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A parametric equalizer followed by a bass boost shelf and a peak limiter.
+ *
+ * Settings are swapped as a whole from any thread and the coefficients are computed into preallocated arrays
+ * on the playback thread. The filter states are kept per band, so changing the settings while playing doesn't click.
+ * Nothing is allocated while processing, the output buffer is only reallocated when a larger input arrives.
+ *
+ * @author Guichaguri
+ */
+public class EqualizerProcessor extends BaseAudioProcessor {
+
+    private static final int MAX_CHANNELS = 8;
+    private static final int MAX_FILTERS = EqualizerSettings.MAX_BANDS + 1;
+    private static final float BASS_BOOST_FREQUENCY = 100;
+
+    private static final float LIMITER_THRESHOLD = 0.891F; // -1 dBFS
+    private static final float LIMITER_RELEASE_MS = 100;
+
+    private final AtomicReference<EqualizerSettings> pending = new AtomicReference<>();
+    private volatile EqualizerSettings requested;
+    private EqualizerSettings settings;
+
+    // Biquad filters in the transposed direct form II, only accessed by the playback thread
+    private final float[] coefficients = new float[MAX_FILTERS * 5];
+    private final float[] state = new float[MAX_FILTERS * MAX_CHANNELS * 2];
+
+    // The band of each filter, the bass boost being the last one. The states are indexed by band
+    private final int[] bands = new int[MAX_FILTERS];
+    private final boolean[] activeBands = new boolean[MAX_FILTERS];
+
+    private final float[] frame = new float[MAX_CHANNELS];
+    private int filters = 0;
+    private float preamp = 1.0F;
+    private boolean limiter = false;
+    private float limiterGain = 1.0F;
+    private float limiterRelease = 0;
+
+    /**
+     * Replaces the settings, they are applied on the next buffer
+     */
+    public void setSettings(EqualizerSettings settings) {
+        requested = settings;
+        pending.set(settings);
+    }
+
+    /**
+     * Gets the last settings set, or null if none were
+     */
+    @Nullable
+    public EqualizerSettings getSettings() {
+        return requested;
+    }
+
+    @Override
+    protected AudioFormat onConfigure(AudioFormat inputAudioFormat) throws UnhandledAudioFormatException {
+        if(inputAudioFormat.encoding != C.ENCODING_PCM_16BIT || inputAudioFormat.channelCount > MAX_CHANNELS) {
+            throw new UnhandledAudioFormatException(inputAudioFormat);
+        }
+
+        return inputAudioFormat;
+    }
+
+    @Override
+    public void queueInput(ByteBuffer input) {
+        EqualizerSettings next = pending.getAndSet(null);
+        if(next != null) {
+            settings = next;
+            updateCoefficients();
+        }
+
+        int remaining = input.remaining();
+        if(remaining == 0) return;
+
+        ByteBuffer output = replaceOutputBuffer(remaining);
+
+        if(filters == 0 && !limiter && preamp == 1.0F) {
+            // Nothing to be done
+            output.put(input);
+            output.flip();
+            return;
+        }
+
+        int channels = inputAudioFormat.channelCount;
+        int frames = remaining / inputAudioFormat.bytesPerFrame;
+
+        for(int i = 0; i < frames; i++) {
+            float peak = 0;
+
+            for(int c = 0; c < channels; c++) {
+                float sample = input.getShort() / 32768F * preamp;
+
+                for(int f = 0; f < filters; f++) {
+                    int k = f * 5;
+                    int s = (bands[f] * MAX_CHANNELS + c) * 2;
+
+                    float out = coefficients[k] * sample + state[s];
+                    state[s] = coefficients[k + 1] * sample - coefficients[k + 3] * out + state[s + 1];
+                    state[s + 1] = coefficients[k + 2] * sample - coefficients[k + 4] * out;
+                    sample = out;
+                }
+
+                frame[c] = sample;
+                peak = Math.max(peak, Math.abs(sample));
+            }
+
+            if(limiter) {
+                // Instant attack and exponential release, linked across channels
+                limiterGain += (1.0F - limiterGain) * limiterRelease;
+                if(peak * limiterGain > LIMITER_THRESHOLD) limiterGain = LIMITER_THRESHOLD / peak;
+            }
+
+            for(int c = 0; c < channels; c++) {
+                int sample = (int)(frame[c] * limiterGain * 32768F);
+
+                if(sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+                else if(sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+
+                output.putShort((short)sample);
+            }
+        }
+
+        // Skips any incomplete frame
+        input.position(input.limit());
+        output.flip();
+    }
+
+    @Override
+    protected void onFlush() {
+        for(int i = 0; i < state.length; i++) state[i] = 0;
+        for(int i = 0; i < activeBands.length; i++) activeBands[i] = false;
+        limiterGain = 1.0F;
+
+        updateCoefficients();
+    }
+
+    @Override
+    protected void onReset() {
+        EqualizerSettings next = pending.getAndSet(null);
+        if(next != null) settings = next;
+    }
+
+    private void updateCoefficients() {
+        int rate = inputAudioFormat.sampleRate;
+
+        if(settings == null || !settings.enabled || rate <= 0) {
+            for(int i = 0; i < activeBands.length; i++) activeBands[i] = false;
+            filters = 0;
+            preamp = 1.0F;
+            limiter = false;
+            limiterGain = 1.0F;
+            return;
+        }
+
+        float nyquist = rate / 2F;
+        int count = 0;
+
+        for(int i = 0; i < settings.bandCount; i++) {
+            float frequency = settings.frequencies[i];
+
+            // Flat bands and bands beyond the Nyquist frequency are skipped
+            if(settings.gains[i] == 0 || frequency <= 0 || frequency >= nyquist) continue;
+
+            bands[count] = i;
+            setPeaking(count++, frequency, settings.gains[i], settings.qualities[i], rate);
+        }
+
+        if(settings.bassBoost != 0) {
+            bands[count] = MAX_FILTERS - 1;
+            setLowShelf(count++, BASS_BOOST_FREQUENCY, settings.bassBoost, rate);
+        }
+
+        // Bands that were just turned on start from a clean state, the others keep theirs
+        for(int band = 0; band < MAX_FILTERS; band++) {
+            boolean active = false;
+            for(int f = 0; f < count; f++) if(bands[f] == band) active = true;
+
+            if(active && !activeBands[band]) {
+                for(int i = band * MAX_CHANNELS * 2; i < (band + 1) * MAX_CHANNELS * 2; i++) state[i] = 0;
+            }
+
+            activeBands[band] = active;
+        }
+
+        filters = count;
+        preamp = (float)Math.pow(10, settings.preamp / 20);
+        limiter = settings.limiter;
+        limiterRelease = (float)(1 - Math.exp(-1000.0 / (LIMITER_RELEASE_MS * rate)));
+        if(!limiter) limiterGain = 1.0F;
+    }
+
+    private void setPeaking(int filter, float frequency, float gain, float q, int rate) {
+        double a = Math.pow(10, gain / 40);
+        double w0 = 2 * Math.PI * frequency / rate;
+        double alpha = Math.sin(w0) / (2 * Math.max(q, 0.1F));
+        double cos = Math.cos(w0);
+
+        setCoefficients(filter, 1 + alpha * a, -2 * cos, 1 - alpha * a, 1 + alpha / a, -2 * cos, 1 - alpha / a);
+    }
+
+    private void setLowShelf(int filter, float frequency, float gain, int rate) {
+        double a = Math.pow(10, gain / 40);
+        double w0 = 2 * Math.PI * frequency / rate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sqrt(2 * a) * Math.sin(w0); // 2 * sqrt(A) * alpha, with a slope of 1
+
+        setCoefficients(filter,
+                a * ((a + 1) - (a - 1) * cos + alpha),
+                2 * a * ((a - 1) - (a + 1) * cos),
+                a * ((a + 1) - (a - 1) * cos - alpha),
+                (a + 1) + (a - 1) * cos + alpha,
+                -2 * ((a - 1) + (a + 1) * cos),
+                (a + 1) + (a - 1) * cos - alpha);
+    }
+
+    private void setCoefficients(int filter, double b0, double b1, double b2, double a0, double a1, double a2) {
+        int k = filter * 5;
+
+        coefficients[k] = (float)(b0 / a0);
+        coefficients[k + 1] = (float)(b1 / a0);
+        coefficients[k + 2] = (float)(b2 / a0);
+        coefficients[k + 3] = (float)(a1 / a0);
+        coefficients[k + 4] = (float)(a2 / a0);
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.media.MediaDataSource;
+import android.net.Uri;
+import androidx.annotation.RequiresApi;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.IOException;
+
+/**
+ * Exposes an ExoPlayer {@link DataSource} to the framework media APIs, so they go through the same
+ * network stack and cache as the player.
+ *
+ * Sequential reads are served from a single open request, the source is only reopened when seeking.
+ *
+ * @author Guichaguri
+ */
+@RequiresApi(23)
+public class ExoMediaDataSource extends MediaDataSource {
+
+    private final DataSource source;
+    private final Uri uri;
+
+    private boolean opened = false;
+    private long position = 0;
+    private long length = C.LENGTH_UNSET;
+
+    public ExoMediaDataSource(DataSource source, Uri uri) {
+        this.source = source;
+        this.uri = uri;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if(size == 0) return 0;
+        if(length != C.LENGTH_UNSET && position >= length) return -1;
+
+        if(!opened || position != this.position) open(position);
+
+        int read = source.read(buffer, offset, size);
+        if(read == C.RESULT_END_OF_INPUT) return -1;
+
+        this.position += read;
+        return read;
+    }
+
+    @Override
+    public synchronized long getSize() throws IOException {
+        if(!opened) open(0);
+        return length == C.LENGTH_UNSET ? -1 : length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(opened) {
+            opened = false;
+            source.close();
+        }
+    }
+
+    private void open(long position) throws IOException {
+        if(opened) source.close();
+
+        long available = source.open(new DataSpec(uri, position, C.LENGTH_UNSET, null));
+        if(available != C.LENGTH_UNSET) length = position + available;
+
+        this.opened = true;
+        this.position = position;
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.content.Context;
+import android.util.Log;
+import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.models.Track;
+
+/**
+ * Picks the normalization gain for each track.
+ *
+ * The gain comes from the track object, then from ReplayGain tags, and then from the loudness measured
+ * the last time the track was played. Measurements are stored per URI so each track is only measured once,
+ * for the most recently played tracks.
+ *
+ * @author Guichaguri
+ */
+public class LoudnessNormalizer {
+
+    private static final String PREFERENCES = "TrackPlayerLoudness";
+
+    // ReplayGain 2.0 gains are relative to -18 LUFS
+    private static final float REPLAY_GAIN_REFERENCE = -18;
+    private static final float MAX_GAIN = 12;
+    private static final long MIN_MEASUREMENT_MS = 30000;
+
+    private final LoudnessProcessor processor;
+    private final AnalysisCache cache;
+    private final float target;
+
+    private Track current;
+    private String measuring;
+
+    public LoudnessNormalizer(Context context, LoudnessProcessor processor, float target) {
+        this.processor = processor;
+        this.cache = new AnalysisCache(context, PREFERENCES);
+        this.target = target;
+    }
+
+    /**
+     * Updates the gain for the track that started playing
+     * @param track The current track
+     * @param tagGain The ReplayGain read from the stream tags in dB, or {@link Float#NaN}
+     * @param next The track that will be played after it, or null
+     */
+    public void onTrackChanged(Track track, float tagGain, Track next) {
+        // Switched to by the processor exactly at the transition, as tags are only read once the track plays
+        processor.setNextGain(getGain(next));
+
+        if(track == current) {
+            // Tags can show up after the track started
+            if(!Float.isNaN(tagGain) && Float.isNaN(track.replayGain)) applyReplayGain(tagGain);
+            return;
+        }
+
+        finishMeasurement();
+        current = track;
+
+        if(track == null || track.uri == null) return;
+
+        String key = track.uri.toString();
+
+        if(!Float.isNaN(track.replayGain)) {
+            applyReplayGain(track.replayGain);
+        } else if(!Float.isNaN(tagGain)) {
+            applyReplayGain(tagGain);
+        } else if(cache.contains(key)) {
+            applyGain(target - cache.getFloat(key, target));
+        } else {
+            // Nothing is known about this track yet, measure it while it plays
+            applyGain(0);
+            processor.startMeasurement();
+            measuring = key;
+        }
+    }
+
+    /**
+     * Gets the gain of a track from what is already known about it, without measuring it
+     * @return The linear gain, 1 when nothing is known
+     */
+    public float getGain(Track track) {
+        if(track == null || track.uri == null) return 1;
+
+        String key = track.uri.toString();
+
+        if(!Float.isNaN(track.replayGain)) return toLinear(track.replayGain + target - REPLAY_GAIN_REFERENCE);
+        if(cache.contains(key)) return toLinear(target - cache.getFloat(key, target));
+        return 1;
+    }
+
+    private void applyReplayGain(float gain) {
+        if(measuring != null) {
+            processor.stopMeasurement(Long.MAX_VALUE);
+            measuring = null;
+        }
+
+        applyGain(gain + target - REPLAY_GAIN_REFERENCE);
+    }
+
+    private void applyGain(float gain) {
+        processor.setGain(toLinear(gain));
+    }
+
+    private static float toLinear(float gain) {
+        gain = Math.max(-MAX_GAIN, Math.min(MAX_GAIN, gain));
+        return (float)Math.pow(10, gain / 20);
+    }
+
+    private void finishMeasurement() {
+        if(measuring == null) return;
+
+        float loudness = processor.stopMeasurement(MIN_MEASUREMENT_MS);
+
+        if(!Float.isNaN(loudness)) {
+            Log.d(Utils.LOG, "Measured loudness: " + loudness + " LUFS");
+            cache.putFloat(measuring, loudness);
+        }
+
+        measuring = null;
+    }
+
+    public void destroy() {
+        finishMeasurement();
+        current = null;
+    }
+
+}
@@ -0,0 +1,254 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.audio.BaseAudioProcessor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Applies the normalization gain and measures the integrated loudness of what is being played.
+ *
+ * The measurement follows EBU R128 (K-weighting, absolute and relative gating) with non-overlapping 400ms blocks,
+ * which is precise enough to choose a normalization gain. The blocks are counted in a histogram of 0.1 LU bins
+ * for the relative gate. Filter states and the histogram are preallocated, so processing a buffer doesn't
+ * allocate anything.
+ *
+ * @author Guichaguri
+ */
+public class LoudnessProcessor extends BaseAudioProcessor {
+
+    private static final int MAX_CHANNELS = 8;
+    private static final int STATE_SIZE = 6;
+    private static final float ABSOLUTE_GATE = -70;
+    private static final float RELATIVE_GATE = -10;
+    private static final float MAX_LOUDNESS = 10;
+    private static final float BIN_SIZE = 0.1F;
+    private static final int BINS = (int)((MAX_LOUDNESS - ABSOLUTE_GATE) / BIN_SIZE);
+
+    private volatile float gain = 1.0F;
+    private volatile float nextGain = Float.NaN;
+    private volatile boolean measuring = false;
+    private volatile boolean resetMeasurement = false;
+
+    // Measurement results, written by the playback thread. The block count is written last
+    private final double[] binEnergy = new double[BINS];
+    private final int[] binBlocks = new int[BINS];
+    private volatile int gatedBlocks = 0;
+
+    // K-weighting filter: a high shelf followed by a high pass
+    private double shelfB0, shelfB1, shelfB2, shelfA1, shelfA2;
+    private double passA1, passA2;
+    private final double[] state = new double[MAX_CHANNELS * STATE_SIZE];
+    private final double[] channelEnergy = new double[MAX_CHANNELS];
+
+    private int blockFrames;
+    private int blockPosition;
+
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    /**
+     * Sets the gain of the next track, switched to when its audio reaches this processor
+     */
+    public void setNextGain(float gain) {
+        nextGain = gain;
+    }
+
+    /**
+     * Called in the playback thread right before the audio of the next track is queued
+     */
+    void onStreamChanged() {
+        float next = nextGain;
+        nextGain = Float.NaN;
+
+        if(!Float.isNaN(next)) gain = next;
+    }
+
+    /**
+     * Starts measuring the loudness from scratch
+     */
+    public void startMeasurement() {
+        resetMeasurement = true;
+        measuring = true;
+    }
+
+    /**
+     * Stops measuring the loudness
+     * @param minDuration The minimum amount of audio measured in milliseconds
+     * @return The integrated loudness in LUFS or {@link Float#NaN} if not enough audio was measured
+     */
+    public float stopMeasurement(long minDuration) {
+        measuring = false;
+
+        int blocks = gatedBlocks;
+        if(blocks == 0 || blocks * 400L < minDuration) return Float.NaN;
+
+        double energy = 0;
+        int count = 0;
+
+        for(int i = 0; i < BINS; i++) {
+            energy += binEnergy[i];
+            count += binBlocks[i];
+        }
+
+        if(count == 0) return Float.NaN;
+
+        // Leaves out the blocks quieter than 10 LU below the absolute-gated loudness, such as quiet intros
+        float gate = toLoudness(energy / count) + RELATIVE_GATE;
+        int first = Math.max(0, (int)Math.floor((gate - ABSOLUTE_GATE) / BIN_SIZE));
+
+        energy = 0;
+        count = 0;
+
+        for(int i = first; i < BINS; i++) {
+            energy += binEnergy[i];
+            count += binBlocks[i];
+        }
+
+        return count == 0 ? Float.NaN : toLoudness(energy / count);
+    }
+
+    private static float toLoudness(double energy) {
+        return (float)(-0.691 + 10 * Math.log10(energy));
+    }
+
+    @Override
+    protected AudioFormat onConfigure(AudioFormat inputAudioFormat) throws UnhandledAudioFormatException {
+        if(inputAudioFormat.encoding != C.ENCODING_PCM_16BIT || inputAudioFormat.channelCount > MAX_CHANNELS) {
+            throw new UnhandledAudioFormatException(inputAudioFormat);
+        }
+
+        return inputAudioFormat;
+    }
+
+    @Override
+    protected void onFlush() {
+        int rate = inputAudioFormat.sampleRate;
+        if(rate <= 0) return;
+
+        // Coefficients from the ITU-R BS.1770 filters, adapted to the sample rate
+        double k = Math.tan(Math.PI * 1681.974450955533 / rate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+
+        shelfB0 = (vh + vb * k / q + k * k) / a0;
+        shelfB1 = 2 * (k * k - vh) / a0;
+        shelfB2 = (vh - vb * k / q + k * k) / a0;
+        shelfA1 = 2 * (k * k - 1) / a0;
+        shelfA2 = (1 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / rate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+
+        passA1 = 2 * (k * k - 1) / a0;
+        passA2 = (1 - k / q + k * k) / a0;
+
+        blockFrames = rate * 400 / 1000;
+        blockPosition = 0;
+
+        for(int i = 0; i < state.length; i++) state[i] = 0;
+        for(int i = 0; i < channelEnergy.length; i++) channelEnergy[i] = 0;
+    }
+
+    @Override
+    public void queueInput(ByteBuffer input) {
+        int remaining = input.remaining();
+        if(remaining == 0) return;
+
+        ByteBuffer output = replaceOutputBuffer(remaining);
+        float gain = this.gain;
+        boolean measuring = this.measuring;
+
+        if(resetMeasurement) {
+            resetMeasurement = false;
+            gatedBlocks = 0;
+            blockPosition = 0;
+            for(int i = 0; i < BINS; i++) binEnergy[i] = 0;
+            for(int i = 0; i < BINS; i++) binBlocks[i] = 0;
+            for(int i = 0; i < channelEnergy.length; i++) channelEnergy[i] = 0;
+        }
+
+        if(gain == 1.0F && !measuring) {
+            output.put(input);
+            output.flip();
+            return;
+        }
+
+        int channels = inputAudioFormat.channelCount;
+        int frames = remaining / inputAudioFormat.bytesPerFrame;
+
+        for(int i = 0; i < frames; i++) {
+            for(int c = 0; c < channels; c++) {
+                short sample = input.getShort();
+
+                if(measuring) measure(c, sample / 32768.0);
+
+                int value = (int)(sample * gain);
+
+                if(value > Short.MAX_VALUE) value = Short.MAX_VALUE;
+                else if(value < Short.MIN_VALUE) value = Short.MIN_VALUE;
+
+                output.putShort((short)value);
+            }
+
+            if(measuring && ++blockPosition >= blockFrames) {
+                finishBlock(channels);
+            }
+        }
+
+        input.position(input.limit());
+        output.flip();
+    }
+
+    private void measure(int channel, double sample) {
+        // Each channel holds the last two inputs and outputs of both filters
+        int s = channel * STATE_SIZE;
+
+        double shelf = shelfB0 * sample + shelfB1 * state[s] + shelfB2 * state[s + 1]
+                - shelfA1 * state[s + 2] - shelfA2 * state[s + 3];
+
+        // The high pass numerator is (1, -2, 1)
+        double pass = shelf - 2 * state[s + 2] + state[s + 3]
+                - passA1 * state[s + 4] - passA2 * state[s + 5];
+
+        state[s + 1] = state[s];
+        state[s] = sample;
+        state[s + 3] = state[s + 2];
+        state[s + 2] = shelf;
+        state[s + 5] = state[s + 4];
+        state[s + 4] = pass;
+
+        channelEnergy[channel] += pass * pass;
+    }
+
+    private void finishBlock(int channels) {
+        double energy = 0;
+
+        for(int c = 0; c < channels; c++) {
+            energy += channelEnergy[c] / blockFrames;
+            channelEnergy[c] = 0;
+        }
+
+        blockPosition = 0;
+
+        if(energy <= 0) return;
+
+        float loudness = toLoudness(energy);
+        if(loudness <= ABSOLUTE_GATE) return;
+
+        int bin = Math.min(BINS - 1, (int)((loudness - ABSOLUTE_GATE) / BIN_SIZE));
+        binEnergy[bin] += energy;
+        binBlocks[bin]++;
+        gatedBlocks++;
+    }
+
+    @Override
+    protected void onReset() {
+        measuring = false;
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.guichaguri.trackplayer.service.models.Track;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes a whole track into 16-bit PCM outside of the player, used for offline analysis
+ *
+ * @author Guichaguri
+ */
+public class PcmDecoder {
+
+    private static final long TIMEOUT_US = 10000;
+
+    public interface Listener {
+
+        /**
+         * Called before any samples and every time the output format changes
+         * @param durationUs The track duration or {@link C#TIME_UNSET} when unknown
+         */
+        void onFormat(int sampleRate, int channelCount, long durationUs);
+
+        /**
+         * Called for every decoded buffer
+         * @param samples Interleaved samples
+         * @param presentationTimeUs The time of the first frame
+         */
+        void onSamples(ShortBuffer samples, long presentationTimeUs);
+
+    }
+
+    /**
+     * Decodes a track
+     * @param dataSource The factory used to load the track. It's only used on Android 6 and above,
+     *                   older versions load the URI directly
+     */
+    @SuppressWarnings("deprecation")
+    public static void decode(Context context, Track track, @Nullable DataSource.Factory dataSource,
+                              Listener listener) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        Closeable source = null;
+
+        try {
+            source = setDataSource(context, extractor, track, dataSource);
+
+            MediaFormat format = null;
+
+            for(int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat f = extractor.getTrackFormat(i);
+                String mime = f.getString(MediaFormat.KEY_MIME);
+
+                if(mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = f;
+                    break;
+                }
+            }
+
+            if(format == null) throw new IOException("The track has no audio");
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            long duration = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : C.TIME_UNSET;
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            listener.onFormat(sampleRate, channels, duration);
+
+            ByteBuffer[] inputs = codec.getInputBuffers();
+            ByteBuffer[] outputs = codec.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+
+            while(true) {
+                if(Thread.interrupted()) throw new InterruptedIOException();
+
+                if(!inputDone) {
+                    int in = codec.dequeueInputBuffer(TIMEOUT_US);
+
+                    if(in >= 0) {
+                        int size = extractor.readSampleData(inputs[in], 0);
+
+                        if(size < 0) {
+                            codec.queueInputBuffer(in, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(in, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int out = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+
+                if(out >= 0) {
+                    if(info.size > 0) {
+                        ByteBuffer buffer = outputs[out];
+                        buffer.position(info.offset);
+                        buffer.limit(info.offset + info.size);
+                        listener.onSamples(buffer.order(ByteOrder.nativeOrder()).asShortBuffer(), info.presentationTimeUs);
+                    }
+
+                    codec.releaseOutputBuffer(out, false);
+
+                    if((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+                } else if(out == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputs = codec.getOutputBuffers();
+                } else if(out == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat output = codec.getOutputFormat();
+                    sampleRate = output.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channels = output.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    listener.onFormat(sampleRate, channels, duration);
+                }
+            }
+        } finally {
+            if(codec != null) {
+                try {
+                    codec.stop();
+                } catch(IllegalStateException ex) {
+                    // The codec might not have been started
+                }
+                codec.release();
+            }
+
+            extractor.release();
+            if(source != null) source.close();
+        }
+    }
+
+    /**
+     * @return The data source that has to be closed after the extractor is released
+     */
+    @Nullable
+    private static Closeable setDataSource(Context context, MediaExtractor extractor, Track track,
+                                           @Nullable DataSource.Factory dataSource) throws IOException {
+        if(track.resourceId != 0) {
+            AssetFileDescriptor fd = context.getResources().openRawResourceFd(track.resourceId);
+
+            try {
+                extractor.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+            } finally {
+                fd.close();
+            }
+        } else if(dataSource != null && Build.VERSION.SDK_INT >= 23) {
+            ExoMediaDataSource source = new ExoMediaDataSource(dataSource.createDataSource(), track.uri);
+
+            try {
+                extractor.setDataSource(source);
+            } catch(IOException ex) {
+                source.close();
+                throw ex;
+            }
+
+            return source;
+        } else {
+            extractor.setDataSource(context, track.uri, track.headers);
+        }
+
+        return null;
+    }
+
+}
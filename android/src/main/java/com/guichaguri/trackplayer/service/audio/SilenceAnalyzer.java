@@ -0,0 +1,149 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.models.TrackType;
+
+import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Finds the silence at the beginning and at the end of each track.
+ *
+ * Tracks are decoded once in the background and the results are stored per URI for the most recently
+ * played tracks, so the same file is never analysed twice.
+ *
+ * @author Guichaguri
+ */
+public class SilenceAnalyzer {
+
+    private static final String PREFERENCES = "TrackPlayerSilence";
+
+    /**
+     * The silence map of a track, in milliseconds
+     */
+    public static class SilenceMap {
+        public final long introEnd;
+        public final long outroStart;
+
+        SilenceMap(long introEnd, long outroStart) {
+            this.introEnd = introEnd;
+            this.outroStart = outroStart;
+        }
+    }
+
+    private final Context context;
+    private final AnalysisCache cache;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Set<String> pending = Collections.synchronizedSet(new HashSet<>());
+    private final short threshold;
+    private final long minDuration;
+
+    public SilenceAnalyzer(Context context, short threshold, long minDuration) {
+        this.context = context.getApplicationContext();
+        this.cache = new AnalysisCache(context, PREFERENCES);
+        this.threshold = threshold;
+        this.minDuration = minDuration;
+    }
+
+    /**
+     * Gets the silence map of a track
+     * @return The map or null if the track wasn't analysed yet
+     */
+    public SilenceMap get(Track track) {
+        if(track.uri == null) return null;
+
+        String value = cache.getString(track.uri.toString());
+        if(value == null) return null;
+
+        String[] parts = value.split(",");
+        return new SilenceMap(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+    }
+
+    /**
+     * Analyses a track in the background, the result will be available next time it's played
+     * @param dataSource The factory the player loads the track with, so remote tracks go through the same cache
+     *                   and headers. Remote tracks aren't analysed without it, or before Android 6
+     */
+    public void analyze(Track track, @Nullable DataSource.Factory dataSource) {
+        if(track.uri == null || track.type != TrackType.DEFAULT) return;
+
+        // Older versions can only load remote tracks directly, which would download them a second time
+        if(!Utils.isLocal(track.uri) && (dataSource == null || Build.VERSION.SDK_INT < 23)) return;
+
+        String key = track.uri.toString();
+        if(cache.contains(key) || !pending.add(key)) return;
+
+        executor.execute(() -> {
+            try {
+                Analysis analysis = new Analysis();
+                PcmDecoder.decode(context, track, dataSource, analysis);
+
+                long intro = 0;
+                long outro = C.TIME_UNSET;
+
+                // Ignore silences too short to be worth trimming, and tracks that are silent as a whole
+                if(analysis.firstSound >= 0) {
+                    if(analysis.firstSound / 1000 >= minDuration) intro = analysis.firstSound / 1000;
+                    if((analysis.end - analysis.lastSound) / 1000 >= minDuration) outro = analysis.lastSound / 1000;
+                }
+
+                cache.putString(key, intro + "," + outro);
+            } catch(Exception ex) {
+                Log.w(Utils.LOG, "Couldn't analyse the silence of " + key, ex);
+            } finally {
+                pending.remove(key);
+            }
+        });
+    }
+
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private class Analysis implements PcmDecoder.Listener {
+        int sampleRate;
+        int channels;
+        long firstSound = -1;
+        long lastSound = -1;
+        long end = 0;
+
+        @Override
+        public void onFormat(int sampleRate, int channelCount, long durationUs) {
+            this.sampleRate = sampleRate;
+            this.channels = channelCount;
+        }
+
+        @Override
+        public void onSamples(ShortBuffer samples, long presentationTimeUs) {
+            int frames = samples.remaining() / channels;
+
+            for(int f = 0; f < frames; f++) {
+                boolean sound = false;
+
+                for(int c = 0; c < channels; c++) {
+                    if(Math.abs(samples.get()) > threshold) sound = true;
+                }
+
+                if(sound) {
+                    long time = presentationTimeUs + f * C.MICROS_PER_SECOND / sampleRate;
+                    if(firstSound < 0) firstSound = time;
+                    lastSound = time;
+                }
+            }
+
+            end = Math.max(end, presentationTimeUs + frames * C.MICROS_PER_SECOND / sampleRate);
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.SoundPool;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.util.SparseArray;
+import com.facebook.react.bridge.Promise;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+import com.guichaguri.trackplayer.service.Metrics;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Plays short sounds, such as UI and game effects, with minimal latency.
+ *
+ * Sounds are registered once and decoded into memory by a {@link SoundPool}, so triggering them skips
+ * the whole player pipeline. The amount of sounds playing at the same time is bounded, the oldest one
+ * is stopped when the limit is reached.
+ *
+ * @author Guichaguri
+ */
+public class SoundEffectPool implements SoundPool.OnLoadCompleteListener {
+
+    public static final int DEFAULT_VOICES = 8;
+
+    private static final String DIRECTORY = "TrackPlayerSounds";
+
+    private final Context context;
+    private final Metrics metrics;
+    private final SoundPool pool;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // The sample ids of the loaded sounds
+    private final Map<String, Integer> sounds = new HashMap<>();
+
+    // The sounds still being decoded, by sample id
+    private final SparseArray<String> loadingIds = new SparseArray<>();
+    private final SparseArray<Promise> loadingPromises = new SparseArray<>();
+    private final SparseArray<File> loadingFiles = new SparseArray<>();
+
+    @SuppressWarnings("deprecation")
+    public SoundEffectPool(Context context, Metrics metrics, int voices) {
+        this.context = context.getApplicationContext();
+        this.metrics = metrics;
+
+        if(Build.VERSION.SDK_INT >= 21) {
+            pool = new SoundPool.Builder()
+                    .setMaxStreams(voices)
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_GAME)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                            .build())
+                    .build();
+        } else {
+            pool = new SoundPool(voices, AudioManager.STREAM_MUSIC, 0);
+        }
+
+        pool.setOnLoadCompleteListener(this);
+    }
+
+    /**
+     * Loads and decodes a sound, replacing the one with the same id
+     * @param data The sound object, only its url is used
+     */
+    public void register(String id, Bundle data, Promise promise) {
+        executor.execute(() -> {
+            try {
+                load(id, data, promise);
+            } catch(Exception ex) {
+                Log.w(Utils.LOG, "Couldn't load the sound " + id, ex);
+                promise.reject("sound_load_failed", ex);
+            }
+        });
+    }
+
+    /**
+     * Plays a sound
+     * @param volume The volume between 0 and 1
+     * @param rate The playback rate between 0.5 and 2, which also changes the pitch
+     * @return Whether the sound is loaded
+     */
+    public boolean play(String id, float volume, float rate) {
+        long start = System.nanoTime();
+        Integer sample;
+
+        synchronized(this) {
+            sample = sounds.get(id);
+        }
+
+        if(sample == null) return false;
+
+        pool.play(sample, volume, volume, 1, 0, Math.max(0.5F, Math.min(rate, 2)));
+
+        metrics.record(Metrics.SOUND_EFFECT_TRIGGER, (System.nanoTime() - start) / 1000000D);
+        return true;
+    }
+
+    public synchronized void unregister(String id) {
+        Integer sample = sounds.remove(id);
+        if(sample != null) pool.unload(sample);
+    }
+
+    public void release() {
+        executor.shutdownNow();
+        pool.release();
+    }
+
+    @Override
+    public synchronized void onLoadComplete(SoundPool soundPool, int sample, int status) {
+        String id = loadingIds.get(sample);
+        Promise promise = loadingPromises.get(sample);
+        File file = loadingFiles.get(sample);
+
+        loadingIds.remove(sample);
+        loadingPromises.remove(sample);
+        loadingFiles.remove(sample);
+
+        // The copy was only needed for decoding
+        if(file != null) file.delete();
+
+        if(id == null) return;
+
+        if(status != 0) {
+            pool.unload(sample);
+            if(promise != null) promise.reject("sound_load_failed", "The sound " + id + " couldn't be decoded");
+            return;
+        }
+
+        Integer previous = sounds.put(id, sample);
+        if(previous != null) pool.unload(previous);
+
+        if(promise != null) promise.resolve(null);
+    }
+
+    private void load(String id, Bundle data, Promise promise) throws IOException {
+        int resourceId = Utils.getRawResourceId(context, data, "url");
+        File file = null;
+        int sample;
+
+        if(resourceId != 0) {
+            synchronized(this) {
+                sample = pool.load(context, resourceId, 1);
+                track(sample, id, promise, null);
+            }
+            return;
+        }
+
+        Uri uri = Utils.getUri(context, data, "url");
+        if(uri == null) throw new IOException("The sound has no url");
+
+        String path = "file".equals(uri.getScheme()) ? uri.getPath() : null;
+
+        if(path == null) {
+            // Content, asset and remote sounds are copied to a file, which is what the pool decodes from
+            file = copy(uri);
+            path = file.getPath();
+        }
+
+        synchronized(this) {
+            sample = pool.load(path, 1);
+            track(sample, id, promise, file);
+        }
+    }
+
+    private void track(int sample, String id, Promise promise, File file) throws IOException {
+        if(sample == 0) {
+            if(file != null) file.delete();
+            throw new IOException("The sound " + id + " couldn't be loaded");
+        }
+
+        loadingIds.put(sample, id);
+        loadingPromises.put(sample, promise);
+        if(file != null) loadingFiles.put(sample, file);
+    }
+
+    private File copy(Uri uri) throws IOException {
+        File directory = new File(context.getCacheDir(), DIRECTORY);
+        if(!directory.exists() && !directory.mkdirs()) throw new IOException("Couldn't create " + directory);
+
+        File file = File.createTempFile("sound", null, directory);
+        String userAgent = Util.getUserAgent(context, "react-native-track-player");
+        DataSource source = new DefaultDataSourceFactory(context, userAgent).createDataSource();
+
+        try(OutputStream out = new FileOutputStream(file)) {
+            source.open(new DataSpec(uri));
+
+            byte[] buffer = new byte[16384];
+            int read;
+
+            while((read = source.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                out.write(buffer, 0, read);
+            }
+        } catch(IOException ex) {
+            file.delete();
+            throw ex;
+        } finally {
+            source.close();
+        }
+
+        return file;
+    }
+
+}
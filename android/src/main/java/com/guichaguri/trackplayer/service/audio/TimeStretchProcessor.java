@@ -0,0 +1,439 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.audio.BaseAudioProcessor;
+import com.google.android.exoplayer2.util.Util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Changes the playback speed without changing the pitch, using WSOLA (waveform similarity overlap-add).
+ *
+ * The input is cut into overlapping sequences. Each sequence is placed at the offset where it best matches
+ * the end of the previous one, which keeps voices clear at high speeds. The speed can be ramped while
+ * playing, as it is picked up sequence by sequence without reconfiguring the audio sink.
+ *
+ * @author Guichaguri
+ */
+public class TimeStretchProcessor extends BaseAudioProcessor {
+
+    public static final float MIN_SPEED = 0.5F;
+    public static final float MAX_SPEED = 4.0F;
+
+    /**
+     * The sequence sizes, tuned for each kind of content
+     */
+    public enum Profile {
+
+        /**
+         * Short sequences, keeps the syllables intact at high speeds
+         */
+        SPEECH(40, 15, 8),
+
+        /**
+         * Longer sequences and overlaps, avoids the metallic sound on sustained notes
+         */
+        MUSIC(80, 25, 16);
+
+        final int sequenceMs;
+        final int seekMs;
+        final int overlapMs;
+
+        Profile(int sequenceMs, int seekMs, int overlapMs) {
+            this.sequenceMs = sequenceMs;
+            this.seekMs = seekMs;
+            this.overlapMs = overlapMs;
+        }
+    }
+
+    // The offset search is done on every SEARCH_STEP offsets, then refined around the best one
+    private static final int SEARCH_STEP = 4;
+
+    private static class Ramp {
+        final float target;
+        final long duration;
+
+        Ramp(float target, long duration) {
+            this.target = target;
+            this.duration = duration;
+        }
+    }
+
+    private final AtomicReference<Ramp> pending = new AtomicReference<>();
+    private volatile Profile requestedProfile = Profile.MUSIC;
+
+    // Only accessed by the playback thread
+    private Profile profile = Profile.MUSIC;
+    private int sequence, seek, overlap, required;
+
+    private float speed = 1.0F;
+    private float startSpeed = 1.0F;
+    private float targetSpeed = 1.0F;
+    private long rampFrames = 0;
+    private long rampPosition = 0;
+
+    private short[] buffer = new short[0];
+    private short[] mid = new short[0];
+    private short[] output = new short[0];
+    private int bufferCapacity = 0;
+    private int bufferFrames = 0;
+    private boolean hasMid = false;
+    private double skipFraction = 0;
+
+    private long inputFrames = 0;
+    private long outputFrames = 0;
+
+    /**
+     * Sets the kind of content being played. It's applied as soon as the buffered audio is played
+     */
+    public void setProfile(Profile profile) {
+        requestedProfile = profile;
+    }
+
+    /**
+     * Ramps from the current speed to a new one
+     * @param speed The target speed
+     * @param duration The ramp duration in milliseconds
+     * @return The speed that will be used
+     */
+    public float setSpeed(float speed, long duration) {
+        speed = Util.constrainValue(speed, MIN_SPEED, MAX_SPEED);
+        pending.set(new Ramp(speed, Math.max(duration, 0)));
+        return speed;
+    }
+
+    /**
+     * Gets the current speed, which might be in the middle of a ramp
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Converts a duration in the output into the duration of the input that was used to produce it
+     */
+    public long scaleDurationForSpeedup(long duration) {
+        if(outputFrames == 0) return (long)(duration * (double)speed);
+        return Util.scaleLargeTimestamp(duration, inputFrames, outputFrames);
+    }
+
+    @Override
+    protected AudioFormat onConfigure(AudioFormat inputAudioFormat) throws UnhandledAudioFormatException {
+        if(inputAudioFormat.encoding != C.ENCODING_PCM_16BIT) {
+            throw new UnhandledAudioFormatException(inputAudioFormat);
+        }
+
+        return inputAudioFormat;
+    }
+
+    @Override
+    public void queueInput(ByteBuffer input) {
+        applyPendingRamp();
+
+        int frames = 0;
+
+        if(profile != requestedProfile) {
+            // The buffered audio was cut for the previous profile
+            frames = drain(0);
+            useProfile(requestedProfile);
+        }
+
+        if(isIdle()) {
+            if(frames == 0 && bufferFrames == 0 && !hasMid) {
+                passthrough(input);
+                return;
+            }
+
+            // Plays what is left from the stretching before going back to the input as is
+            frames = drain(frames);
+
+            int remaining = input.remaining();
+            ByteBuffer out = replaceOutputBuffer(frames * inputAudioFormat.bytesPerFrame + remaining);
+            write(out, frames);
+            out.put(input);
+            out.flip();
+
+            inputFrames += remaining / inputAudioFormat.bytesPerFrame;
+            outputFrames += remaining / inputAudioFormat.bytesPerFrame;
+            return;
+        }
+
+        int channels = inputAudioFormat.channelCount;
+        int accepted = Math.min(input.remaining() / inputAudioFormat.bytesPerFrame, bufferCapacity - bufferFrames);
+        int offset = bufferFrames * channels;
+
+        for(int i = 0; i < accepted * channels; i++) {
+            buffer[offset + i] = input.getShort();
+        }
+
+        bufferFrames += accepted;
+        frames = stretch(frames);
+
+        ByteBuffer out = replaceOutputBuffer(frames * inputAudioFormat.bytesPerFrame);
+        write(out, frames);
+        out.flip();
+    }
+
+    @Override
+    protected void onQueueEndOfStream() {
+        int frames = drain(0);
+        if(frames == 0) return;
+
+        ByteBuffer out = replaceOutputBuffer(frames * inputAudioFormat.bytesPerFrame);
+        write(out, frames);
+        out.flip();
+    }
+
+    @Override
+    protected void onFlush() {
+        allocate();
+        useProfile(requestedProfile);
+
+        // The speed is kept, a flush happens every time the playback parameters change
+        bufferFrames = 0;
+        hasMid = false;
+        skipFraction = 0;
+        inputFrames = 0;
+        outputFrames = 0;
+    }
+
+    @Override
+    protected void onReset() {
+        buffer = new short[0];
+        mid = new short[0];
+        output = new short[0];
+        bufferCapacity = 0;
+        bufferFrames = 0;
+        hasMid = false;
+
+        speed = targetSpeed;
+        rampFrames = 0;
+        rampPosition = 0;
+    }
+
+    private boolean isIdle() {
+        return speed == 1.0F && rampPosition >= rampFrames;
+    }
+
+    private void applyPendingRamp() {
+        Ramp ramp = pending.getAndSet(null);
+        if(ramp == null) return;
+
+        startSpeed = speed;
+        targetSpeed = ramp.target;
+        rampPosition = 0;
+        rampFrames = ramp.duration * inputAudioFormat.sampleRate / 1000;
+
+        if(rampFrames == 0) speed = targetSpeed;
+    }
+
+    private void updateSpeed(int frames) {
+        if(rampPosition >= rampFrames) return;
+
+        rampPosition = Math.min(rampFrames, rampPosition + frames);
+        speed = startSpeed + (targetSpeed - startSpeed) * (rampPosition / (float)rampFrames);
+    }
+
+    /**
+     * Allocates the buffers once for the largest profile, so switching profiles never allocates
+     */
+    private void allocate() {
+        int sampleRate = inputAudioFormat.sampleRate;
+        int channels = inputAudioFormat.channelCount;
+        int capacity = 0;
+        int maxOverlap = 0;
+        int maxOutput = 0;
+
+        for(Profile p : Profile.values()) {
+            int seq = sampleRate * p.sequenceMs / 1000;
+            int hop = seq - sampleRate * p.overlapMs / 1000;
+            int need = Math.max(sampleRate * p.seekMs / 1000 + seq, (int)(hop * MAX_SPEED) + 2);
+
+            capacity = Math.max(capacity, need + seq * 2);
+            maxOverlap = Math.max(maxOverlap, sampleRate * p.overlapMs / 1000);
+        }
+
+        for(Profile p : Profile.values()) {
+            int seq = sampleRate * p.sequenceMs / 1000;
+            int hop = seq - sampleRate * p.overlapMs / 1000;
+            int iterations = (int)(capacity / (hop * MIN_SPEED)) + 2;
+
+            maxOutput = Math.max(maxOutput, iterations * hop);
+        }
+
+        // The output has to fit a full drain followed by a full stretch
+        int outputSize = (capacity + maxOverlap + maxOutput) * channels;
+
+        if(buffer.length != capacity * channels) buffer = new short[capacity * channels];
+        if(mid.length != maxOverlap * channels) mid = new short[maxOverlap * channels];
+        if(output.length != outputSize) output = new short[outputSize];
+
+        bufferCapacity = capacity;
+    }
+
+    private void useProfile(Profile p) {
+        int sampleRate = inputAudioFormat.sampleRate;
+
+        profile = p;
+        sequence = sampleRate * p.sequenceMs / 1000;
+        seek = sampleRate * p.seekMs / 1000;
+        overlap = sampleRate * p.overlapMs / 1000;
+        required = Math.max(seek + sequence, (int)((sequence - overlap) * MAX_SPEED) + 2);
+    }
+
+    /**
+     * Stretches as many sequences as possible from the buffered input
+     * @param frames The amount of frames already in the output
+     * @return The new amount of frames in the output
+     */
+    private int stretch(int frames) {
+        int channels = inputAudioFormat.channelCount;
+        int hop = sequence - overlap;
+
+        while(bufferFrames >= required) {
+            updateSpeed(hop);
+
+            double advance = hop * (double)speed + skipFraction;
+            int skip = (int)advance;
+            skipFraction = advance - skip;
+
+            int start = hasMid ? findBestOffset() * channels : 0;
+            int out = frames * channels;
+            int overlapLength = overlap * channels;
+
+            if(hasMid) {
+                // Crossfades the end of the previous sequence into the new one
+                for(int i = 0; i < overlapLength; i++) {
+                    float t = (i / channels) / (float)overlap;
+                    output[out + i] = (short)(mid[i] + (buffer[start + i] - mid[i]) * t);
+                }
+            } else {
+                System.arraycopy(buffer, start, output, out, overlapLength);
+            }
+
+            System.arraycopy(buffer, start + overlapLength, output, out + overlapLength, (sequence - 2 * overlap) * channels);
+            System.arraycopy(buffer, start + hop * channels, mid, 0, overlapLength);
+            hasMid = true;
+
+            System.arraycopy(buffer, skip * channels, buffer, 0, (bufferFrames - skip) * channels);
+            bufferFrames -= skip;
+            frames += hop;
+
+            inputFrames += skip;
+            outputFrames += hop;
+        }
+
+        return frames;
+    }
+
+    /**
+     * Writes everything that is buffered into the output
+     * @param frames The amount of frames already in the output
+     * @return The new amount of frames in the output
+     */
+    private int drain(int frames) {
+        int channels = inputAudioFormat.channelCount;
+        int out = frames * channels;
+        int produced = 0;
+        int start = 0;
+
+        if(hasMid) {
+            int length = overlap * channels;
+
+            if(bufferFrames >= overlap) {
+                for(int i = 0; i < length; i++) {
+                    float t = (i / channels) / (float)overlap;
+                    output[out + i] = (short)(mid[i] + (buffer[i] - mid[i]) * t);
+                }
+                start = length;
+            } else {
+                System.arraycopy(mid, 0, output, out, length);
+            }
+
+            produced += overlap;
+        }
+
+        System.arraycopy(buffer, start, output, out + produced * channels, bufferFrames * channels - start);
+        produced += bufferFrames - start / channels;
+
+        inputFrames += bufferFrames;
+        outputFrames += produced;
+
+        bufferFrames = 0;
+        hasMid = false;
+        skipFraction = 0;
+
+        return frames + produced;
+    }
+
+    /**
+     * Finds where the next sequence matches the end of the previous one the best
+     */
+    private int findBestOffset() {
+        int best = 0;
+        double bestScore = -Double.MAX_VALUE;
+
+        for(int offset = 0; offset < seek; offset += SEARCH_STEP) {
+            double score = correlate(offset);
+            if(score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+
+        int from = Math.max(best - SEARCH_STEP + 1, 0);
+        int to = Math.min(best + SEARCH_STEP, seek);
+
+        for(int offset = from; offset < to; offset++) {
+            if(offset == best) continue;
+
+            double score = correlate(offset);
+            if(score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+
+        return best;
+    }
+
+    private double correlate(int offset) {
+        int channels = inputAudioFormat.channelCount;
+        int start = offset * channels;
+        long correlation = 0;
+        long energy = 0;
+
+        // Every other frame is enough to find the best match
+        for(int i = 0; i < overlap * channels; i += channels * 2) {
+            for(int c = 0; c < channels; c++) {
+                int sample = buffer[start + i + c];
+                correlation += sample * mid[i + c];
+                energy += sample * sample;
+            }
+        }
+
+        return correlation / Math.sqrt(energy + 1);
+    }
+
+    private void passthrough(ByteBuffer input) {
+        int remaining = input.remaining();
+        if(remaining == 0) return;
+
+        ByteBuffer out = replaceOutputBuffer(remaining);
+        out.put(input);
+        out.flip();
+
+        inputFrames += remaining / inputAudioFormat.bytesPerFrame;
+        outputFrames += remaining / inputAudioFormat.bytesPerFrame;
+    }
+
+    private void write(ByteBuffer out, int frames) {
+        int length = frames * inputAudioFormat.channelCount;
+
+        for(int i = 0; i < length; i++) {
+            out.putShort(output[i]);
+        }
+    }
+
+}
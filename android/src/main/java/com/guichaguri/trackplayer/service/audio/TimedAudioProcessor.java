@@ -0,0 +1,113 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import com.google.android.exoplayer2.audio.AudioProcessor;
+import com.guichaguri.trackplayer.service.Metrics;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures how long a processor takes to process each second of audio, recorded as a metric.
+ *
+ * The time is accumulated in the playback thread and only recorded once per second of audio,
+ * so measuring doesn't allocate anything nor lock on every buffer.
+ *
+ * @author Guichaguri
+ */
+class TimedAudioProcessor implements AudioProcessor {
+
+    private final AudioProcessor processor;
+    private final Metrics metrics;
+    private final String metric;
+
+    private volatile boolean measuring = true;
+
+    private AudioFormat pendingFormat = AudioFormat.NOT_SET;
+    private AudioFormat format = AudioFormat.NOT_SET;
+    private long elapsedNs = 0;
+    private long frames = 0;
+
+    TimedAudioProcessor(AudioProcessor processor, Metrics metrics, String metric) {
+        this.processor = processor;
+        this.metrics = metrics;
+        this.metric = metric;
+    }
+
+    /**
+     * Sets whether the processing time is measured, to leave out the time spent passing the audio through
+     */
+    void setMeasuring(boolean measuring) {
+        this.measuring = measuring;
+    }
+
+    @Override
+    public AudioFormat configure(AudioFormat inputAudioFormat) throws UnhandledAudioFormatException {
+        pendingFormat = inputAudioFormat;
+        return processor.configure(inputAudioFormat);
+    }
+
+    @Override
+    public boolean isActive() {
+        return processor.isActive();
+    }
+
+    @Override
+    public void queueInput(ByteBuffer buffer) {
+        if(!measuring || format.bytesPerFrame <= 0) {
+            processor.queueInput(buffer);
+            return;
+        }
+
+        int remaining = buffer.remaining();
+        long start = System.nanoTime();
+
+        processor.queueInput(buffer);
+
+        elapsedNs += System.nanoTime() - start;
+        frames += (remaining - buffer.remaining()) / format.bytesPerFrame;
+
+        if(frames >= format.sampleRate) {
+            metrics.record(metric, elapsedNs / 1000000D * format.sampleRate / frames);
+            elapsedNs = 0;
+            frames = 0;
+        }
+    }
+
+    @Override
+    public void queueEndOfStream() {
+        processor.queueEndOfStream();
+    }
+
+    @Override
+    public ByteBuffer getOutput() {
+        if(!measuring) return processor.getOutput();
+
+        long start = System.nanoTime();
+        ByteBuffer output = processor.getOutput();
+        elapsedNs += System.nanoTime() - start;
+
+        return output;
+    }
+
+    @Override
+    public boolean isEnded() {
+        return processor.isEnded();
+    }
+
+    @Override
+    public void flush() {
+        processor.flush();
+        format = pendingFormat;
+        elapsedNs = 0;
+        frames = 0;
+    }
+
+    @Override
+    public void reset() {
+        processor.reset();
+        pendingFormat = AudioFormat.NOT_SET;
+        format = AudioFormat.NOT_SET;
+        elapsedNs = 0;
+        frames = 0;
+    }
+
+}
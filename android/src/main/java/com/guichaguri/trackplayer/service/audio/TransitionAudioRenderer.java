@@ -0,0 +1,120 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.os.Handler;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.PlaybackParameters;
+import com.google.android.exoplayer2.audio.AudioRendererEventListener;
+import com.google.android.exoplayer2.audio.AudioSink;
+import com.google.android.exoplayer2.audio.MediaCodecAudioRenderer;
+import com.google.android.exoplayer2.drm.DrmSessionManager;
+import com.google.android.exoplayer2.drm.FrameworkMediaCrypto;
+import com.google.android.exoplayer2.mediacodec.MediaCodecSelector;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * An audio renderer that reports when the audio of the next track is handed to the audio processors.
+ *
+ * The player only reports a transition once the previous track finished playing out, which is too late for
+ * settings applied by the processors. Streams started by a seek or when the renderer is enabled aren't reported.
+ *
+ * It also reports the speed {@link AudioProcessorChain} really applies, rather than the one given to the sink,
+ * and tags the audio given to the {@link VisualizerProcessor} with its presentation time.
+ *
+ * @author Guichaguri
+ */
+public class TransitionAudioRenderer extends MediaCodecAudioRenderer {
+
+    private final Runnable listener;
+
+    @Nullable
+    private final VisualizerProcessor visualizer;
+    private boolean bufferTagged = false;
+
+    // The start times of the streams queued after the one being processed, in renderer time
+    private final ArrayDeque<Long> pendingStreamOffsetsUs = new ArrayDeque<>();
+
+    public TransitionAudioRenderer(Context context, MediaCodecSelector mediaCodecSelector,
+                                   @Nullable DrmSessionManager<FrameworkMediaCrypto> drmSessionManager,
+                                   boolean playClearSamplesWithoutKeys, boolean enableDecoderFallback,
+                                   @Nullable Handler eventHandler, @Nullable AudioRendererEventListener eventListener,
+                                   AudioSink audioSink, @Nullable VisualizerProcessor visualizer, Runnable listener) {
+        super(context, mediaCodecSelector, drmSessionManager, playClearSamplesWithoutKeys, enableDecoderFallback,
+                eventHandler, eventListener, audioSink);
+        this.visualizer = visualizer;
+        this.listener = listener;
+    }
+
+    @Override
+    public void render(long positionUs, long elapsedRealtimeUs) throws ExoPlaybackException {
+        super.render(positionUs, elapsedRealtimeUs);
+        if(visualizer != null) visualizer.setPositionUs(positionUs);
+    }
+
+    @Override
+    protected void onStreamChanged(Format[] formats, long offsetUs) throws ExoPlaybackException {
+        super.onStreamChanged(formats, offsetUs);
+        pendingStreamOffsetsUs.add(offsetUs);
+    }
+
+    @Override
+    protected void onPositionReset(long positionUs, boolean joining) throws ExoPlaybackException {
+        super.onPositionReset(positionUs, joining);
+
+        // Also called right after the first stream is set when the renderer is enabled
+        pendingStreamOffsetsUs.clear();
+        onDiscontinuity();
+    }
+
+    private void onDiscontinuity() {
+        bufferTagged = false;
+        if(visualizer != null) visualizer.onDiscontinuity();
+    }
+
+    @Override
+    protected boolean processOutputBuffer(long positionUs, long elapsedRealtimeUs, MediaCodec codec, ByteBuffer buffer,
+                                          int bufferIndex, int bufferFlags, long bufferPresentationTimeUs,
+                                          boolean isDecodeOnlyBuffer, boolean isLastBuffer, Format format)
+            throws ExoPlaybackException {
+        while(!pendingStreamOffsetsUs.isEmpty() && bufferPresentationTimeUs >= pendingStreamOffsetsUs.peek()) {
+            pendingStreamOffsetsUs.poll();
+            listener.run();
+        }
+
+        // The same buffer is given again until the sink takes it, it's only tagged once
+        if(visualizer != null && !bufferTagged && !isDecodeOnlyBuffer && buffer.hasRemaining()
+                && (bufferFlags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            visualizer.queueBufferTime(bufferPresentationTimeUs);
+            bufferTagged = true;
+        }
+
+        boolean processed = super.processOutputBuffer(positionUs, elapsedRealtimeUs, codec, buffer, bufferIndex,
+                bufferFlags, bufferPresentationTimeUs, isDecodeOnlyBuffer, isLastBuffer, format);
+
+        if(processed) bufferTagged = false;
+        return processed;
+    }
+
+    @Override
+    public PlaybackParameters setPlaybackParameters(PlaybackParameters playbackParameters) {
+        return AudioProcessorChain.getAppliedParameters(super.setPlaybackParameters(playbackParameters));
+    }
+
+    @Override
+    public PlaybackParameters getPlaybackParameters() {
+        return AudioProcessorChain.getAppliedParameters(super.getPlaybackParameters());
+    }
+
+    @Override
+    protected void onDisabled() {
+        pendingStreamOffsetsUs.clear();
+        onDiscontinuity();
+        super.onDisabled();
+    }
+
+}
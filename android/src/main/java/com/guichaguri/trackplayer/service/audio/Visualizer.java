@@ -0,0 +1,215 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.google.android.exoplayer2.C;
+import com.guichaguri.trackplayer.service.MusicManager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Computes the spectrum of what is being played on a worker thread, emitting frames at a fixed rate.
+ *
+ * Each frame is computed from the samples being heard, not from the latest ones decoded, so the frames are in
+ * sync with the audio. The spectrum is split in logarithmic bands between {@link #MIN_FREQUENCY} and
+ * {@link #MAX_FREQUENCY}.
+ *
+ * All buffers are preallocated, so the only allocation per frame is the event itself. The band arrays are reused
+ * once the event was delivered, and a frame is dropped while the previous ones are still waiting to be delivered.
+ *
+ * @author Guichaguri
+ */
+public class Visualizer {
+
+    public static final int MAX_BANDS = 128;
+    public static final int MAX_FPS = 60;
+
+    private static final int FFT_SIZE = 2048;
+    private static final float MIN_FREQUENCY = 40;
+    private static final float MAX_FREQUENCY = 16000;
+
+    // The range in dBFS mapped to values between 0 and 1
+    private static final float MIN_DB = -80;
+
+    private final MusicManager manager;
+    private final VisualizerProcessor processor;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ScheduledFuture<?> task;
+
+    // The band arrays, each one being reused after the event holding it was delivered
+    private final float[][] frames = new float[2][];
+    private final AtomicBoolean[] delivering = {new AtomicBoolean(), new AtomicBoolean()};
+    private final Runnable[] delivered = {() -> delivering[0].set(false), () -> delivering[1].set(false)};
+    private int nextFrame = 0;
+
+    // Only accessed by the worker thread
+    private final float[] samples = new float[FFT_SIZE];
+    private final float[] real = new float[FFT_SIZE];
+    private final float[] imaginary = new float[FFT_SIZE];
+    private final float[] window = new float[FFT_SIZE];
+    private final float[] cos = new float[FFT_SIZE / 2];
+    private final float[] sin = new float[FFT_SIZE / 2];
+    private final int[] reversed = new int[FFT_SIZE];
+    private final int[] bandEdges = new int[MAX_BANDS + 1];
+    private int bandCount = 0;
+    private int bandSampleRate = 0;
+    private long lastPosition = C.TIME_UNSET;
+
+    public Visualizer(MusicManager manager, VisualizerProcessor processor) {
+        this.manager = manager;
+        this.processor = processor;
+
+        int bits = Integer.numberOfTrailingZeros(FFT_SIZE);
+
+        for(int i = 0; i < FFT_SIZE; i++) {
+            window[i] = (float)(0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        for(int i = 0; i < FFT_SIZE / 2; i++) {
+            cos[i] = (float)Math.cos(2 * Math.PI * i / FFT_SIZE);
+            sin[i] = (float)-Math.sin(2 * Math.PI * i / FFT_SIZE);
+        }
+    }
+
+    /**
+     * Starts emitting frames, or updates the settings if it was already started
+     * @param bands The amount of bands per frame
+     * @param fps The amount of frames per second
+     */
+    public synchronized void start(int bands, int fps) {
+        stop();
+
+        int count = Math.max(1, Math.min(bands, MAX_BANDS));
+        long interval = 1000 / Math.max(1, Math.min(fps, MAX_FPS));
+
+        processor.setEnabled(true);
+        task = executor.scheduleAtFixedRate(() -> emitFrame(count), 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        processor.setEnabled(false);
+
+        if(task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    public synchronized void destroy() {
+        stop();
+        executor.shutdownNow();
+    }
+
+    private void emitFrame(int bands) {
+        long position = processor.getPositionUs();
+
+        // Nothing new was played, there's no point in emitting the same frame again
+        if(position == C.TIME_UNSET || position == lastPosition) return;
+        lastPosition = position;
+
+        int sampleRate = processor.getSampleRate();
+        long heard = processor.getSampleAt(position);
+        if(sampleRate <= 0 || heard < 0) return;
+
+        // The window is centered on the sample being heard
+        long end = Math.min(heard + FFT_SIZE / 2, processor.getWrittenCount());
+        if(!processor.read(samples, end)) return;
+
+        int slot = nextFrame;
+
+        // The bridge is behind, the event holding this array wasn't delivered yet
+        if(!delivering[slot].compareAndSet(false, true)) return;
+        nextFrame = 1 - slot;
+
+        if(frames[slot] == null || frames[slot].length != bands) frames[slot] = new float[bands];
+        float[] values = frames[slot];
+
+        if(bands != bandCount || sampleRate != bandSampleRate) updateBands(bands, sampleRate);
+
+        float sum = 0;
+        float peak = 0;
+
+        for(int i = 0; i < FFT_SIZE; i++) {
+            float sample = samples[i];
+            sum += sample * sample;
+            peak = Math.max(peak, Math.abs(sample));
+
+            real[reversed[i]] = sample * window[i];
+            imaginary[reversed[i]] = 0;
+        }
+
+        fft();
+
+        // A full scale sine has a magnitude of FFT_SIZE / 4 with the Hann window
+        float reference = FFT_SIZE / 4F;
+
+        for(int b = 0; b < bands; b++) {
+            float max = 0;
+
+            for(int bin = bandEdges[b]; bin < bandEdges[b + 1]; bin++) {
+                max = Math.max(max, real[bin] * real[bin] + imaginary[bin] * imaginary[bin]);
+            }
+
+            float db = (float)(10 * Math.log10(max / (reference * reference) + 1e-12));
+            values[b] = Math.max(0, Math.min(1, (db - MIN_DB) / -MIN_DB));
+        }
+
+        manager.onVisualization(values, (float)Math.sqrt(sum / FFT_SIZE), peak);
+
+        // Events are delivered in the main thread in order, so this runs once the array was converted
+        mainHandler.post(delivered[slot]);
+    }
+
+    private void updateBands(int bands, int sampleRate) {
+        float binWidth = sampleRate / (float)FFT_SIZE;
+        float max = Math.min(MAX_FREQUENCY, sampleRate / 2F);
+        double ratio = Math.log(max / MIN_FREQUENCY);
+
+        for(int b = 0; b <= bands; b++) {
+            double frequency = MIN_FREQUENCY * Math.exp(ratio * b / bands);
+            bandEdges[b] = (int)Math.round(frequency / binWidth);
+        }
+
+        // Every band covers at least one bin
+        for(int b = 1; b <= bands; b++) {
+            bandEdges[b] = Math.min(Math.max(bandEdges[b], bandEdges[b - 1] + 1), FFT_SIZE / 2);
+        }
+
+        bandCount = bands;
+        bandSampleRate = sampleRate;
+    }
+
+    /**
+     * In-place iterative radix-2 FFT, the input is expected in bit-reversed order
+     */
+    private void fft() {
+        for(int size = 2; size <= FFT_SIZE; size <<= 1) {
+            int half = size >> 1;
+            int step = FFT_SIZE / size;
+
+            for(int start = 0; start < FFT_SIZE; start += size) {
+                for(int k = 0; k < half; k++) {
+                    int even = start + k;
+                    int odd = even + half;
+                    float wr = cos[k * step];
+                    float wi = sin[k * step];
+
+                    float tr = real[odd] * wr - imaginary[odd] * wi;
+                    float ti = real[odd] * wi + imaginary[odd] * wr;
+
+                    real[odd] = real[even] - tr;
+                    imaginary[odd] = imaginary[even] - ti;
+                    real[even] += tr;
+                    imaginary[even] += ti;
+                }
+            }
+        }
+    }
+
+}
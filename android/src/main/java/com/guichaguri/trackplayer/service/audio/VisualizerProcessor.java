@@ -0,0 +1,202 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.audio.BaseAudioProcessor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passes the audio through untouched while copying a mono mix of it into a ring buffer.
+ *
+ * The playback thread is the only writer and never waits for the reader: it publishes how many samples were
+ * written, and the reader checks that number again after copying to know whether it was overwritten meanwhile.
+ *
+ * The audio reaches this processor well before it's heard, so each buffer is tagged with its presentation time
+ * by {@link TransitionAudioRenderer}, along with the position being played. The reader uses them to pick the
+ * samples being heard, and the ring holds enough audio to cover the latency of the audio track.
+ *
+ * @author Guichaguri
+ */
+public class VisualizerProcessor extends BaseAudioProcessor {
+
+    // Must be a power of two, about 1.5 seconds at 44.1kHz
+    private static final int RING_SIZE = 65536;
+
+    // The amount of buffer times kept, must be a power of two
+    private static final int MARKS = 64;
+
+    private final float[] ring = new float[RING_SIZE];
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean enabled = false;
+    private volatile int sampleRate = 0;
+
+    // The sample count and the presentation time at the start of the latest buffers
+    private final long[] markSamples = new long[MARKS];
+    private final long[] markTimes = new long[MARKS];
+    private volatile long markCount = 0;
+
+    // Marks written before this sample count were from before a seek
+    private volatile long validFrom = 0;
+    private volatile long positionUs = C.TIME_UNSET;
+
+    // The times of the buffers handed to the sink but not processed yet, only accessed by the playback thread
+    private final long[] pendingTimes = new long[MARKS];
+    private int pendingStart = 0;
+    private int pendingSize = 0;
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Gets the total amount of samples written so far
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Gets the position being heard, in renderer time
+     */
+    public long getPositionUs() {
+        return positionUs;
+    }
+
+    /**
+     * Gets the sample played at a position
+     * @param positionUs The position in renderer time
+     * @return The sample count, or -1 if that position isn't in the ring buffer
+     */
+    public long getSampleAt(long positionUs) {
+        int rate = sampleRate;
+        long count = markCount;
+        long end = written.get();
+        long start = Math.max(validFrom, end - RING_SIZE);
+
+        if(rate <= 0) return -1;
+
+        // Newest first, as the marks are in the playback order
+        for(long i = count - 1; i >= 0 && i >= count - MARKS; i--) {
+            int index = (int)(i & (MARKS - 1));
+            long samples = markSamples[index];
+            long time = markTimes[index];
+
+            if(samples < start) break;
+            if(time > positionUs) continue;
+
+            long sample = samples + (positionUs - time) * rate / C.MICROS_PER_SECOND;
+            return sample <= end ? sample : -1;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Copies the latest samples
+     * @param out The array to fill, it can't be larger than the ring buffer
+     * @param end The sample count returned by {@link #getWrittenCount()}
+     * @return Whether the samples are valid, they might have been overwritten while copying
+     */
+    public boolean read(float[] out, long end) {
+        int length = out.length;
+        if(end < length) return false;
+
+        for(int i = 0; i < length; i++) {
+            out[i] = ring[(int)((end - length + i) & (RING_SIZE - 1))];
+        }
+
+        return written.get() - (end - length) <= RING_SIZE;
+    }
+
+    /**
+     * Called in the playback thread before a decoded buffer is handed to the sink
+     * @param timeUs The presentation time of the buffer, in renderer time
+     */
+    void queueBufferTime(long timeUs) {
+        if(pendingSize == MARKS) {
+            pendingStart = (pendingStart + 1) & (MARKS - 1);
+            pendingSize--;
+        }
+
+        pendingTimes[(pendingStart + pendingSize) & (MARKS - 1)] = timeUs;
+        pendingSize++;
+    }
+
+    /**
+     * Called in the playback thread with the position being heard
+     */
+    void setPositionUs(long positionUs) {
+        this.positionUs = positionUs;
+    }
+
+    /**
+     * Called in the playback thread when the buffers handed to the sink are discarded, such as after a seek
+     */
+    void onDiscontinuity() {
+        pendingSize = 0;
+        positionUs = C.TIME_UNSET;
+        validFrom = written.get();
+    }
+
+    @Override
+    protected AudioFormat onConfigure(AudioFormat inputAudioFormat) throws UnhandledAudioFormatException {
+        if(inputAudioFormat.encoding != C.ENCODING_PCM_16BIT) {
+            throw new UnhandledAudioFormatException(inputAudioFormat);
+        }
+
+        sampleRate = inputAudioFormat.sampleRate;
+        return inputAudioFormat;
+    }
+
+    @Override
+    public void queueInput(ByteBuffer input) {
+        int remaining = input.remaining();
+        if(remaining == 0) return;
+
+        // The processors before this one keep each buffer whole, so every input is a decoded buffer
+        boolean tagged = pendingSize > 0;
+        long time = tagged ? pendingTimes[pendingStart] : C.TIME_UNSET;
+
+        if(tagged) {
+            pendingStart = (pendingStart + 1) & (MARKS - 1);
+            pendingSize--;
+        }
+
+        if(enabled) {
+            int channels = inputAudioFormat.channelCount;
+            int frames = remaining / inputAudioFormat.bytesPerFrame;
+            int position = input.position();
+            long count = written.get();
+
+            for(int i = 0; i < frames; i++) {
+                float sum = 0;
+
+                for(int c = 0; c < channels; c++) {
+                    sum += input.getShort(position);
+                    position += 2;
+                }
+
+                ring[(int)((count + i) & (RING_SIZE - 1))] = sum / (channels * 32768F);
+            }
+
+            if(tagged) {
+                int index = (int)(markCount & (MARKS - 1));
+                markSamples[index] = count;
+                markTimes[index] = time;
+                markCount++;
+            }
+
+            written.lazySet(count + frames);
+        }
+
+        ByteBuffer output = replaceOutputBuffer(remaining);
+        output.put(input);
+        output.flip();
+    }
+
+}
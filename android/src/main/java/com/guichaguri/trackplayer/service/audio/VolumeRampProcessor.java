@@ -0,0 +1,129 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.audio.BaseAudioProcessor;
+import com.guichaguri.trackplayer.service.models.FadeCurve;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Applies the player volume directly to the PCM samples, ramping it frame by frame.
+ *
+ * Ramps are requested from any thread and picked up by the playback thread on the next buffer,
+ * so a fade costs a single call instead of a stream of volume updates.
+ *
+ * @author Guichaguri
+ */
+public class VolumeRampProcessor extends BaseAudioProcessor {
+
+    private static class Ramp {
+        final float target;
+        final long duration;
+        final FadeCurve curve;
+
+        Ramp(float target, long duration, FadeCurve curve) {
+            this.target = target;
+            this.duration = duration;
+            this.curve = curve;
+        }
+    }
+
+    private final AtomicReference<Ramp> pending = new AtomicReference<>();
+
+    // Only accessed by the playback thread
+    private float gain = 1.0F;
+    private float startGain = 1.0F;
+    private float targetGain = 1.0F;
+    private FadeCurve curve = FadeCurve.LINEAR;
+    private long rampFrames = 0;
+    private long rampPosition = 0;
+
+    /**
+     * Sets the gain instantly
+     */
+    public void setGain(float gain) {
+        rampTo(gain, 0, FadeCurve.LINEAR);
+    }
+
+    /**
+     * Ramps from the current gain to a new one
+     * @param target The target gain
+     * @param duration The ramp duration in milliseconds
+     * @param curve The ramp curve
+     */
+    public void rampTo(float target, long duration, FadeCurve curve) {
+        pending.set(new Ramp(target, Math.max(duration, 0), curve));
+    }
+
+    @Override
+    protected AudioFormat onConfigure(AudioFormat inputAudioFormat) throws UnhandledAudioFormatException {
+        if(inputAudioFormat.encoding != C.ENCODING_PCM_16BIT) {
+            throw new UnhandledAudioFormatException(inputAudioFormat);
+        }
+
+        return inputAudioFormat;
+    }
+
+    @Override
+    public void queueInput(ByteBuffer input) {
+        applyPendingRamp();
+
+        int remaining = input.remaining();
+        if(remaining == 0) return;
+
+        ByteBuffer output = replaceOutputBuffer(remaining);
+
+        if(rampPosition >= rampFrames && gain == 1.0F) {
+            // Unity gain, nothing to be done
+            output.put(input);
+            output.flip();
+            return;
+        }
+
+        int channels = inputAudioFormat.channelCount;
+        int frames = remaining / inputAudioFormat.bytesPerFrame;
+
+        for(int i = 0; i < frames; i++) {
+            if(rampPosition < rampFrames) {
+                rampPosition++;
+                float progress = curve.apply(rampPosition / (float)rampFrames);
+                gain = startGain + (targetGain - startGain) * progress;
+            }
+
+            for(int c = 0; c < channels; c++) {
+                int sample = (int)(input.getShort() * gain);
+
+                if(sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+                else if(sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+
+                output.putShort((short)sample);
+            }
+        }
+
+        // Skips any incomplete frame
+        input.position(input.limit());
+        output.flip();
+    }
+
+    private void applyPendingRamp() {
+        Ramp ramp = pending.getAndSet(null);
+        if(ramp == null) return;
+
+        startGain = gain;
+        targetGain = ramp.target;
+        curve = ramp.curve;
+        rampPosition = 0;
+        rampFrames = ramp.duration * inputAudioFormat.sampleRate / 1000;
+
+        if(rampFrames == 0) gain = targetGain;
+    }
+
+    @Override
+    protected void onReset() {
+        rampPosition = 0;
+        rampFrames = 0;
+        gain = targetGain;
+    }
+
+}
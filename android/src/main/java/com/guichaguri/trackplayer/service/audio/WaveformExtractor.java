@@ -0,0 +1,259 @@
+package com.guichaguri.trackplayer.service.audio;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.util.Util;
+import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.models.TrackType;
+
+import java.io.*;
+import java.nio.ShortBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Extracts the min/max peaks of tracks to draw waveforms.
+ *
+ * Each track is decoded once and its peaks are stored at a fixed resolution in a small binary file named after
+ * the hash of its URI. Later requests, with any amount of buckets, are served from that file.
+ * Different tracks are decoded in parallel, one per core.
+ *
+ * @author Guichaguri
+ */
+public class WaveformExtractor {
+
+    private static final String DIRECTORY = "TrackPlayerWaveforms";
+    private static final int MAGIC = 0x52545746;
+    private static final int VERSION = 1;
+
+    // The amount of peaks stored per track
+    public static final int RESOLUTION = 4096;
+
+    // Peaks are first collected for every 10ms of audio
+    private static final int WINDOW_MS = 10;
+
+    private final Context context;
+    private final File directory;
+    private final ExecutorService executor;
+    // The tracks being loaded, removed once no request is waiting for them
+    private final Map<String, Lock> locks = new HashMap<>();
+
+    public WaveformExtractor(Context context) {
+        this.context = context.getApplicationContext();
+        this.directory = new File(context.getCacheDir(), DIRECTORY);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Gets the waveform of a track, resolving with the min and max peaks of each bucket between -1 and 1
+     * @param dataSource The factory used to load the track, sharing the player cache
+     * @param buckets The amount of buckets, between 1 and {@link #RESOLUTION}. Exactly that many are returned
+     */
+    public void getWaveform(Track track, @Nullable DataSource.Factory dataSource, int buckets, Promise promise) {
+        if(track.type != TrackType.DEFAULT || track.uri == null) {
+            promise.reject("unsupported_track", "Waveforms are only available for progressive tracks");
+            return;
+        }
+
+        if(buckets < 1 || buckets > RESOLUTION) {
+            promise.reject("invalid_buckets", "The amount of buckets must be between 1 and " + RESOLUTION);
+            return;
+        }
+
+        executor.execute(() -> {
+            try {
+                byte[] peaks = load(track, dataSource);
+                promise.resolve(Arguments.fromBundle(toBundle(peaks, buckets)));
+            } catch(Exception ex) {
+                Log.w(Utils.LOG, "Couldn't extract the waveform of " + track.uri, ex);
+                promise.reject("waveform_failed", ex);
+            }
+        });
+    }
+
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private byte[] load(Track track, @Nullable DataSource.Factory dataSource) throws IOException {
+        String key = hash(track.uri.toString());
+        Lock lock;
+
+        synchronized(locks) {
+            lock = locks.get(key);
+            if(lock == null) locks.put(key, lock = new Lock());
+            lock.users++;
+        }
+
+        try {
+            // Requests for the same track wait for the first one instead of decoding it again
+            synchronized(lock) {
+                File file = new File(directory, key);
+                byte[] peaks = file.exists() ? read(file) : null;
+
+                if(peaks == null) {
+                    PeakCollector collector = new PeakCollector();
+                    PcmDecoder.decode(context, track, dataSource, collector);
+
+                    peaks = resample(collector.toByteArray(), RESOLUTION);
+                    write(file, peaks);
+                }
+
+                return peaks;
+            }
+        } finally {
+            synchronized(locks) {
+                if(--lock.users == 0) locks.remove(key);
+            }
+        }
+    }
+
+    @Nullable
+    private byte[] read(File file) {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readByte() != VERSION) return null;
+
+            byte[] peaks = new byte[in.readInt() * 2];
+            in.readFully(peaks);
+            return peaks;
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Ignoring a corrupted waveform file", ex);
+            return null;
+        }
+    }
+
+    private void write(File file, byte[] peaks) {
+        File temp = new File(directory, file.getName() + ".tmp");
+
+        if(!directory.exists() && !directory.mkdirs()) return;
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(peaks.length / 2);
+            out.write(peaks);
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't store the waveform", ex);
+            return;
+        }
+
+        // The file only shows up once it's complete
+        if(!temp.renameTo(file)) temp.delete();
+    }
+
+    /**
+     * Merges or repeats pairs of min/max peaks into exactly the given amount of buckets
+     */
+    private static byte[] resample(byte[] peaks, int buckets) {
+        int count = peaks.length / 2;
+        if(count == buckets) return peaks;
+
+        // A track without any audio is flat
+        byte[] result = new byte[buckets * 2];
+        if(count == 0) return result;
+
+        for(int b = 0; b < buckets; b++) {
+            // Short tracks have less peaks than buckets, each peak is then repeated over a few buckets
+            int from = (int)((long)b * count / buckets);
+            int to = Math.max(from + 1, (int)((long)(b + 1) * count / buckets));
+            byte min = Byte.MAX_VALUE;
+            byte max = Byte.MIN_VALUE;
+
+            for(int i = from; i < to; i++) {
+                min = (byte)Math.min(min, peaks[i * 2]);
+                max = (byte)Math.max(max, peaks[i * 2 + 1]);
+            }
+
+            result[b * 2] = min;
+            result[b * 2 + 1] = max;
+        }
+
+        return result;
+    }
+
+    private static Bundle toBundle(byte[] peaks, int buckets) {
+        byte[] resampled = resample(peaks, buckets);
+        int count = resampled.length / 2;
+        float[] min = new float[count];
+        float[] max = new float[count];
+
+        for(int i = 0; i < count; i++) {
+            min[i] = resampled[i * 2] / 128F;
+            max[i] = resampled[i * 2 + 1] / 127F;
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putFloatArray("min", min);
+        bundle.putFloatArray("max", max);
+        return bundle;
+    }
+
+    private static String hash(String uri) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(Util.getUtf8Bytes(uri));
+            StringBuilder builder = new StringBuilder();
+            for(byte b : digest) builder.append(String.format("%02x", b));
+            return builder.toString();
+        } catch(NoSuchAlgorithmException ex) {
+            return Integer.toHexString(uri.hashCode());
+        }
+    }
+
+    private static class Lock {
+        // Only accessed while holding the map
+        int users = 0;
+    }
+
+    private static class PeakCollector implements PcmDecoder.Listener {
+        private final ByteArrayOutputStream peaks = new ByteArrayOutputStream();
+        private int channels = 1;
+        private int windowFrames = 1;
+        private int position = 0;
+        private short min = Short.MAX_VALUE;
+        private short max = Short.MIN_VALUE;
+
+        @Override
+        public void onFormat(int sampleRate, int channelCount, long durationUs) {
+            channels = Math.max(1, channelCount);
+            windowFrames = Math.max(1, sampleRate * WINDOW_MS / 1000);
+        }
+
+        @Override
+        public void onSamples(ShortBuffer samples, long presentationTimeUs) {
+            while(samples.remaining() >= channels) {
+                for(int c = 0; c < channels; c++) {
+                    short sample = samples.get();
+                    if(sample < min) min = sample;
+                    if(sample > max) max = sample;
+                }
+
+                if(++position >= windowFrames) flush();
+            }
+        }
+
+        private void flush() {
+            peaks.write(min >> 8);
+            peaks.write(max >> 8);
+
+            position = 0;
+            min = Short.MAX_VALUE;
+            max = Short.MIN_VALUE;
+        }
+
+        byte[] toByteArray() {
+            if(position > 0) flush();
+            return peaks.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,384 @@
+package com.guichaguri.trackplayer.service.library;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+import com.facebook.react.bridge.Promise;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An index of the music stored on the device, so queues can be built natively from a query.
+ *
+ * The index is persisted in a compact binary file and kept up to date incrementally: a scan only lists the ids
+ * and modification dates from the MediaStore, and reads the full rows of the new and modified songs.
+ * Once scanned, changes to the MediaStore trigger a new scan.
+ *
+ * @author Guichaguri
+ */
+public class MediaLibrary {
+
+    private static final String FILE = "TrackPlayerLibrary.index";
+    private static final int MAGIC = 0x52544c31;
+
+    private static final Uri CONTENT_URI = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+    private static final Uri ARTWORK_URI = Uri.parse("content://media/external/audio/albumart");
+
+    // Waits for a burst of changes to settle before scanning again
+    private static final long RESCAN_DELAY_MS = 2000;
+
+    // The amount of ids in a single IN clause
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * A song in the index
+     */
+    public static class Item {
+        long id;
+        String title, artist, album;
+        long albumId;
+        int track;
+        long duration;
+        String folder;
+        long modified;
+
+        // Lower case title, artist and album, used by searches
+        transient String searchText;
+
+        public Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putString("id", Long.toString(id));
+            bundle.putString("url", ContentUris.withAppendedId(CONTENT_URI, id).toString());
+            bundle.putString("title", title);
+            bundle.putString("artist", artist);
+            bundle.putString("album", album);
+            bundle.putString("folder", folder);
+            bundle.putDouble("duration", Utils.toSeconds(duration));
+            if(albumId > 0) bundle.putString("artwork", ContentUris.withAppendedId(ARTWORK_URI, albumId).toString());
+            return bundle;
+        }
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // Sorted by artist, album and track number. Replaced as a whole, so queries read it without locking
+    private volatile List<Item> items;
+    private final Object readLock = new Object();
+
+    private final Runnable rescan = () -> executor.execute(() -> {
+        try {
+            scan();
+        } catch(Exception ex) {
+            Log.w(Utils.LOG, "Couldn't update the library", ex);
+        }
+    });
+
+    private final ContentObserver observer;
+    private boolean observing = false;
+
+    public MediaLibrary(Context context, Handler handler) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.file = new File(this.context.getFilesDir(), FILE);
+        this.observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                handler.removeCallbacks(rescan);
+                handler.postDelayed(rescan, RESCAN_DELAY_MS);
+            }
+        };
+
+        // Reads the persisted index ahead of the first query
+        executor.execute(this::getItems);
+    }
+
+    /**
+     * Updates the index in the background and keeps it updated from then on
+     * @param promise Resolved with the amount of songs
+     */
+    public void scan(Promise promise) {
+        if(!hasPermission()) {
+            promise.reject("permission_denied", "The permission to read the audio files wasn't granted");
+            return;
+        }
+
+        if(!observing) {
+            context.getContentResolver().registerContentObserver(CONTENT_URI, true, observer);
+            observing = true;
+        }
+
+        executor.execute(() -> {
+            try {
+                promise.resolve(scan());
+            } catch(Exception ex) {
+                promise.reject("scan_failed", ex);
+            }
+        });
+    }
+
+    /**
+     * Finds the songs matching every key of the query: album, artist, folder (including subfolders)
+     * and search (part of the title, artist or album). Reads the persisted index if it wasn't yet.
+     */
+    public List<Item> query(Bundle query) {
+        String album = query.getString("album");
+        String artist = query.getString("artist");
+        String folder = trimFolder(query.getString("folder"));
+        String search = query.getString("search");
+        if(search != null) search = search.toLowerCase(Locale.ROOT);
+
+        List<Item> result = new ArrayList<>();
+
+        for(Item item : getItems()) {
+            if(album != null && !album.equalsIgnoreCase(item.album)) continue;
+            if(artist != null && !artist.equalsIgnoreCase(item.artist)) continue;
+            if(folder != null && (item.folder == null || !isInFolder(item.folder, folder))) continue;
+            if(search != null && !item.searchText.contains(search)) continue;
+
+            result.add(item);
+        }
+
+        return result;
+    }
+
+    public void release() {
+        handler.removeCallbacks(rescan);
+
+        if(observing) {
+            context.getContentResolver().unregisterContentObserver(observer);
+            observing = false;
+        }
+
+        executor.shutdownNow();
+    }
+
+    private List<Item> getItems() {
+        List<Item> list = items;
+        if(list != null) return list;
+
+        // Only waits for the persisted index to be read, never for a scan
+        synchronized(readLock) {
+            if(items == null) items = read();
+            return items;
+        }
+    }
+
+    // Only one scan runs at a time
+    private synchronized int scan() throws IOException {
+        if(!hasPermission()) return getItems().size();
+
+        ContentResolver resolver = context.getContentResolver();
+        String selection = AudioColumns.IS_MUSIC + " != 0";
+
+        Map<Long, Item> known = new HashMap<>();
+        for(Item item : getItems()) known.put(item.id, item);
+
+        List<Item> scanned = new ArrayList<>();
+        List<Long> changed = new ArrayList<>();
+
+        // Lists the ids, which is cheap, and only reads the rows that changed
+        try(Cursor cursor = resolver.query(CONTENT_URI, new String[] {AudioColumns._ID, AudioColumns.DATE_MODIFIED},
+                selection, null, null)) {
+            if(cursor == null) return known.size();
+
+            while(cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                Item item = known.get(id);
+
+                if(item != null && item.modified == cursor.getLong(1)) {
+                    scanned.add(item);
+                } else {
+                    changed.add(id);
+                }
+            }
+        }
+
+        if(changed.isEmpty() && scanned.size() == known.size()) return scanned.size();
+
+        for(int i = 0; i < changed.size(); i += BATCH_SIZE) {
+            readRows(resolver, changed.subList(i, Math.min(i + BATCH_SIZE, changed.size())), scanned);
+        }
+
+        sort(scanned);
+        write(scanned);
+        items = scanned;
+
+        Log.d(Utils.LOG, "Library updated: " + changed.size() + " changed, " + scanned.size() + " in total");
+        return scanned.size();
+    }
+
+    private void readRows(ContentResolver resolver, List<Long> ids, List<Item> out) {
+        boolean relative = Build.VERSION.SDK_INT >= 29;
+        String[] columns = {
+                AudioColumns._ID, AudioColumns.TITLE, AudioColumns.ARTIST, AudioColumns.ALBUM,
+                AudioColumns.ALBUM_ID, AudioColumns.TRACK, AudioColumns.DURATION, AudioColumns.DATE_MODIFIED,
+                relative ? MediaStore.MediaColumns.RELATIVE_PATH : AudioColumns.DATA
+        };
+
+        StringBuilder selection = new StringBuilder(AudioColumns._ID).append(" IN (");
+        for(int i = 0; i < ids.size(); i++) selection.append(i == 0 ? "" : ",").append(ids.get(i));
+        selection.append(')');
+
+        try(Cursor cursor = resolver.query(CONTENT_URI, columns, selection.toString(), null, null)) {
+            if(cursor == null) return;
+
+            while(cursor.moveToNext()) {
+                Item item = new Item();
+                item.id = cursor.getLong(0);
+                item.title = cursor.getString(1);
+                item.artist = cursor.getString(2);
+                item.album = cursor.getString(3);
+                item.albumId = cursor.getLong(4);
+                item.track = cursor.getInt(5);
+                item.duration = cursor.getLong(6);
+                item.modified = cursor.getLong(7);
+                item.folder = relative ? trimFolder(cursor.getString(8)) : getFolder(cursor.getString(8));
+                index(item);
+                out.add(item);
+            }
+        }
+    }
+
+    private List<Item> read() {
+        List<Item> list = new ArrayList<>();
+        if(!file.exists()) return list;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if(in.readInt() != MAGIC) return list;
+
+            int count = in.readInt();
+
+            for(int i = 0; i < count; i++) {
+                Item item = new Item();
+                item.id = in.readLong();
+                item.title = readString(in);
+                item.artist = readString(in);
+                item.album = readString(in);
+                item.albumId = in.readLong();
+                item.track = in.readInt();
+                item.duration = in.readLong();
+                item.folder = readString(in);
+                item.modified = in.readLong();
+                index(item);
+                list.add(item);
+            }
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't read the library index", ex);
+            list.clear();
+        }
+
+        return list;
+    }
+
+    private void write(List<Item> list) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(list.size());
+
+            for(Item item : list) {
+                out.writeLong(item.id);
+                writeString(out, item.title);
+                writeString(out, item.artist);
+                writeString(out, item.album);
+                out.writeLong(item.albumId);
+                out.writeInt(item.track);
+                out.writeLong(item.duration);
+                writeString(out, item.folder);
+                out.writeLong(item.modified);
+            }
+        }
+
+        if(!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't replace the library index");
+        }
+    }
+
+    private boolean hasPermission() {
+        String permission = Build.VERSION.SDK_INT >= 33 ?
+                "android.permission.READ_MEDIA_AUDIO" : Manifest.permission.READ_EXTERNAL_STORAGE;
+
+        return ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private static void index(Item item) {
+        item.searchText = (item.title + '\n' + item.artist + '\n' + item.album).toLowerCase(Locale.ROOT);
+    }
+
+    private static void sort(List<Item> list) {
+        Collections.sort(list, (a, b) -> {
+            int c = compare(a.artist, b.artist);
+            if(c == 0) c = compare(a.album, b.album);
+            if(c == 0) c = a.track - b.track;
+            if(c == 0) c = compare(a.title, b.title);
+            return c;
+        });
+    }
+
+    private static int compare(@Nullable String a, @Nullable String b) {
+        if(a == null) return b == null ? 0 : 1;
+        if(b == null) return -1;
+        return a.compareToIgnoreCase(b);
+    }
+
+    /**
+     * Gets the folder of a file, relative to the external storage like the MediaStore relative paths
+     */
+    @Nullable
+    @SuppressWarnings("deprecation")
+    private static String getFolder(@Nullable String path) {
+        if(path == null) return null;
+
+        String folder = new File(path).getParent();
+        String root = Environment.getExternalStorageDirectory().getPath() + "/";
+
+        if(folder != null && folder.startsWith(root)) folder = folder.substring(root.length());
+        return trimFolder(folder);
+    }
+
+    @Nullable
+    private static String trimFolder(@Nullable String folder) {
+        if(folder == null) return null;
+
+        while(folder.endsWith("/")) folder = folder.substring(0, folder.length() - 1);
+        return folder;
+    }
+
+    private static boolean isInFolder(String folder, String parent) {
+        return folder.equalsIgnoreCase(parent) || folder.regionMatches(true, 0, parent + "/", 0, parent.length() + 1);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null) out.writeUTF(value);
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.guichaguri.trackplayer.service.library;
+
+import android.os.Bundle;
+import androidx.annotation.Nullable;
+
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * An in-memory text index over the title, artist, album and genre of tracks, used to resolve voice searches.
+ *
+ * Every word of the query has to be the prefix of a word of the track, so "bohem rhap" finds
+ * "Bohemian Rhapsody". Accents and case are ignored. The words are kept in a sorted array,
+ * so each word of the query is a binary search.
+ *
+ * @author Guichaguri
+ */
+public class SearchIndex {
+
+    public static final int TITLE = 1;
+    public static final int ARTIST = 2;
+    public static final int ALBUM = 4;
+    public static final int GENRE = 8;
+    public static final int ALL = TITLE | ARTIST | ALBUM | GENRE;
+
+    private final List<String> ids;
+    private final String[] words;
+    private final int[] docs;
+    private final byte[] fields;
+
+    private SearchIndex(List<String> ids, List<Word> list) {
+        Collections.sort(list, (a, b) -> a.word.compareTo(b.word));
+
+        this.ids = ids;
+        this.words = new String[list.size()];
+        this.docs = new int[list.size()];
+        this.fields = new byte[list.size()];
+
+        for(int i = 0; i < list.size(); i++) {
+            Word word = list.get(i);
+            words[i] = word.word;
+            docs[i] = word.doc;
+            fields[i] = (byte)word.field;
+        }
+    }
+
+    /**
+     * Gets the fields searched for a voice search focus
+     * @param focus The focus sent in the remote-play-search event, such as "artist"
+     */
+    public static int getFields(@Nullable String focus) {
+        if("title".equals(focus)) return TITLE;
+        if("artist".equals(focus)) return ARTIST;
+        if("album".equals(focus)) return ALBUM;
+        if("genre".equals(focus)) return GENRE;
+        return ALL;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    public String getId(int doc) {
+        return ids.get(doc);
+    }
+
+    /**
+     * Finds the documents matching every word of the query, the best match first
+     * @param fields The fields that are searched
+     */
+    public List<Integer> search(String query, int fields) {
+        List<String> tokens = tokenize(query);
+        if(tokens.isEmpty()) return Collections.emptyList();
+
+        int[] scores = new int[ids.size()];
+        int[] matches = new int[ids.size()];
+
+        for(int t = 0; t < tokens.size(); t++) {
+            String token = tokens.get(t);
+
+            for(int i = lowerBound(token); i < words.length && words[i].startsWith(token); i++) {
+                if((this.fields[i] & fields) == 0) continue;
+
+                int doc = docs[i];
+
+                // The document already matched a previous word of the query
+                if(matches[doc] < t) continue;
+
+                if(matches[doc] == t) matches[doc]++;
+                scores[doc] += getWeight(this.fields[i]) + (words[i].length() == token.length() ? 1 : 0);
+            }
+        }
+
+        List<Integer> result = new ArrayList<>();
+
+        for(int doc = 0; doc < matches.length; doc++) {
+            if(matches[doc] == tokens.size()) result.add(doc);
+        }
+
+        Collections.sort(result, (a, b) -> scores[b] - scores[a]);
+        return result;
+    }
+
+    private int lowerBound(String token) {
+        int low = 0, high = words.length;
+
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+
+            if(words[mid].compareTo(token) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private static int getWeight(int field) {
+        switch(field) {
+            case TITLE: return 4;
+            case ARTIST: return 3;
+            case ALBUM: return 2;
+            default: return 1;
+        }
+    }
+
+    static List<String> tokenize(@Nullable String text) {
+        List<String> tokens = new ArrayList<>();
+        if(text == null) return tokens;
+
+        // Strips the accents
+        text = Normalizer.normalize(text, Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+
+        for(String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if(!token.isEmpty()) tokens.add(token);
+        }
+
+        return tokens;
+    }
+
+    private static class Word {
+        final String word;
+        final int doc;
+        final int field;
+
+        Word(String word, int doc, int field) {
+            this.word = word;
+            this.doc = doc;
+            this.field = field;
+        }
+    }
+
+    public static class Builder {
+
+        private final List<String> ids = new ArrayList<>();
+        private final List<Word> words = new ArrayList<>();
+
+        public Builder add(String id, @Nullable String title, @Nullable String artist,
+                           @Nullable String album, @Nullable String genre) {
+            int doc = ids.size();
+            ids.add(id);
+
+            add(doc, title, TITLE);
+            add(doc, artist, ARTIST);
+            add(doc, album, ALBUM);
+            add(doc, genre, GENRE);
+            return this;
+        }
+
+        public Builder add(String id, Bundle track) {
+            return add(id, track.getString("title"), track.getString("artist"),
+                    track.getString("album"), track.getString("genre"));
+        }
+
+        private void add(int doc, @Nullable String text, int field) {
+            for(String token : tokenize(text)) words.add(new Word(token, doc, field));
+        }
+
+        public SearchIndex build() {
+            return new SearchIndex(ids, words);
+        }
+
+    }
+
+}
@@ -1,15 +1,20 @@
 package com.guichaguri.trackplayer.service.metadata;
 
 import android.annotation.SuppressLint;
+import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.MediaSessionCompat;
+import android.view.KeyEvent;
 import com.guichaguri.trackplayer.module.MusicEvents;
+import com.guichaguri.trackplayer.service.Metrics;
 import com.guichaguri.trackplayer.service.MusicManager;
 import com.guichaguri.trackplayer.service.MusicService;
 import com.guichaguri.trackplayer.service.Utils;
 import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.player.ExoPlayback;
 import java.util.List;
 
 /**
@@ -20,23 +25,58 @@ public class ButtonEvents extends MediaSessionCompat.Callback {
     private final MusicService service;
     private final MusicManager manager;
 
+    // Actions slower than this, such as the first one after a cold start, are recorded in their own metric
+    private static final long KEY_SLOW_MS = 1000;
+
+    // The time of the last media button press, in uptime milliseconds
+    private long keyTime = -1;
+
     public ButtonEvents(MusicService service, MusicManager manager) {
         this.service = service;
         this.manager = manager;
     }
 
+    @Override
+    public boolean onMediaButtonEvent(Intent mediaButtonEvent) {
+        KeyEvent key = mediaButtonEvent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
+
+        if(key != null && key.getAction() == KeyEvent.ACTION_DOWN) {
+            keyTime = key.getEventTime();
+            manager.setMediaButtonTime(keyTime);
+        }
+
+        // The action callbacks might be called later, so the press is only consumed by them
+        return super.onMediaButtonEvent(mediaButtonEvent);
+    }
+
     @Override
     public void onPlay() {
+        ExoPlayback playback = manager.getPlayback();
+
+        if(playback != null && Utils.isPlaying(playback.getState())) {
+            // Nothing will start, so there's no latency to measure
+            manager.setMediaButtonTime(-1);
+        } else if(manager.isRestored()) {
+            // JS may not be running yet, the restored session is resumed right away
+            playback.play();
+        }
+
         service.emit(MusicEvents.BUTTON_PLAY, null);
     }
 
     @Override
     public void onPause() {
+        manager.setMediaButtonTime(-1);
+        if(manager.isRestored()) manager.getPlayback().pause();
+
         service.emit(MusicEvents.BUTTON_PAUSE, null);
     }
 
     @Override
     public void onStop() {
+        manager.setMediaButtonTime(-1);
+        if(manager.isRestored()) manager.getPlayback().stop();
+
         service.emit(MusicEvents.BUTTON_STOP, null);
     }
 
@@ -45,6 +85,9 @@ public class ButtonEvents extends MediaSessionCompat.Callback {
     public void onPlayFromMediaId(String mediaId, Bundle extras) {
         Bundle bundle = new Bundle();
         bundle.putString("id", mediaId);
+
+        // Queued tracks and browse items with an url don't need JS to be played, which is notified anyway
+        bundle.putBoolean("handled", manager.playFromMediaId(mediaId));
         service.emit(MusicEvents.BUTTON_PLAY_FROM_ID, bundle);
     }
 
@@ -83,6 +126,7 @@ public class ButtonEvents extends MediaSessionCompat.Callback {
         if(extras.containsKey(MediaStore.EXTRA_MEDIA_PLAYLIST))
             bundle.putString("playlist", extras.getString(MediaStore.EXTRA_MEDIA_PLAYLIST));
 
+        bundle.putBoolean("handled", manager.playFromSearch(bundle));
         service.emit(MusicEvents.BUTTON_PLAY_FROM_SEARCH, bundle);
     }
 
@@ -95,40 +139,62 @@ public class ButtonEvents extends MediaSessionCompat.Callback {
 
             Bundle bundle = new Bundle();
             bundle.putInt("index", i);
-            service.emit(MusicEvents.BUTTON_SKIP, bundle);
+            onAction(MusicEvents.BUTTON_SKIP, bundle, isNative() && manager.getPlayback().skip(i));
             break;
         }
     }
 
     @Override
     public void onSkipToPrevious() {
-        service.emit(MusicEvents.BUTTON_SKIP_PREVIOUS, null);
+        onAction(MusicEvents.BUTTON_SKIP_PREVIOUS, new Bundle(), isNative() && manager.getPlayback().skipToPrevious());
     }
 
     @Override
     public void onSkipToNext() {
-        service.emit(MusicEvents.BUTTON_SKIP_NEXT, null);
+        onAction(MusicEvents.BUTTON_SKIP_NEXT, new Bundle(), isNative() && manager.getPlayback().skipToNext());
     }
 
     @Override
     public void onRewind() {
+        int interval = manager.getMetadata().getBackwardJumpInterval();
+        boolean handled = isNative();
+
+        if(handled) {
+            ExoPlayback playback = manager.getPlayback();
+            playback.seekTo(Math.max(playback.getPosition() - interval * 1000L, 0));
+        }
+
         Bundle bundle = new Bundle();
-        bundle.putInt("interval", manager.getMetadata().getBackwardJumpInterval());
-        service.emit(MusicEvents.BUTTON_JUMP_BACKWARD, bundle);
+        bundle.putInt("interval", interval);
+        onAction(MusicEvents.BUTTON_JUMP_BACKWARD, bundle, handled);
     }
 
     @Override
     public void onFastForward() {
+        int interval = manager.getMetadata().getForwardJumpInterval();
+        boolean handled = isNative();
+
+        if(handled) {
+            ExoPlayback playback = manager.getPlayback();
+            long position = playback.getPosition() + interval * 1000L;
+            long duration = playback.getDuration();
+
+            playback.seekTo(duration > 0 ? Math.min(position, duration) : position);
+        }
+
         Bundle bundle = new Bundle();
-        bundle.putInt("interval", manager.getMetadata().getForwardJumpInterval());
-        service.emit(MusicEvents.BUTTON_JUMP_FORWARD, bundle);
+        bundle.putInt("interval", interval);
+        onAction(MusicEvents.BUTTON_JUMP_FORWARD, bundle, handled);
     }
 
     @Override
     public void onSeekTo(long pos) {
+        boolean handled = isNative();
+        if(handled) manager.getPlayback().seekTo(pos);
+
         Bundle bundle = new Bundle();
         bundle.putDouble("position", Utils.toSeconds(pos));
-        service.emit(MusicEvents.BUTTON_SEEK_TO, bundle);
+        onAction(MusicEvents.BUTTON_SEEK_TO, bundle, handled);
     }
 
     @Override
@@ -137,4 +203,28 @@ public class ButtonEvents extends MediaSessionCompat.Callback {
         Utils.setRating(bundle, "rating", rating);
         service.emit(MusicEvents.BUTTON_SET_RATING, bundle);
     }
+
+    /**
+     * Whether skips and seeks are executed natively, in which case JS is only notified
+     */
+    private boolean isNative() {
+        return manager.shouldHandleRemoteActions();
+    }
+
+    private void onAction(String event, Bundle bundle, boolean handled) {
+        // Only the play latency is measured until the audio starts
+        manager.setMediaButtonTime(-1);
+
+        long latency = keyTime >= 0 ? SystemClock.uptimeMillis() - keyTime : -1;
+        keyTime = -1;
+
+        if(handled && latency >= 0) {
+            String metric = latency <= KEY_SLOW_MS ? Metrics.REMOTE_ACTION_LATENCY : Metrics.REMOTE_ACTION_SLOW_LATENCY;
+            manager.getMetrics().record(metric, latency);
+        }
+
+        bundle.putBoolean("handled", handled);
+        service.emit(event, bundle);
+    }
+
 }
@@ -19,7 +19,9 @@ import androidx.media.session.MediaButtonReceiver;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestBuilder;
 import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.request.RequestOptions;
 import com.bumptech.glide.request.target.SimpleTarget;
 import com.bumptech.glide.request.transition.Transition;
 import com.facebook.react.bridge.ReactContext;
@@ -39,6 +41,8 @@ import java.util.List;
  */
 public class MetadataManager {
 
+    private static final int EMBEDDED_ARTWORK_SIZE = 512;
+
     private final MusicService service;
     private final MusicManager manager;
     private final MediaSessionCompat session;
@@ -202,20 +206,28 @@ public class MetadataManager {
         RequestManager rm = Glide.with(service.getApplicationContext());
         if(artworkTarget != null) rm.clear(artworkTarget);
 
+        RequestBuilder<Bitmap> artwork = null;
+
         if(track.artwork != null) {
-            artworkTarget = rm.asBitmap()
-                    .load(track.artwork)
-                    .into(new SimpleTarget<Bitmap>() {
-                        @Override
-                        public void onResourceReady(Bitmap resource, Transition<? super Bitmap> transition) {
-                            metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, resource);
-                            builder.setLargeIcon(resource);
-
-                            session.setMetadata(metadata.build());
-                            updateNotification();
-                            artworkTarget = null;
-                        }
-                    });
+            artwork = rm.asBitmap().load(track.artwork);
+        } else if(track instanceof Track && ((Track)track).embeddedArtwork != null) {
+            // Falls back to the picture embedded in the file, decoded at a smaller size
+            artwork = rm.asBitmap().load(((Track)track).embeddedArtwork)
+                    .apply(RequestOptions.overrideOf(EMBEDDED_ARTWORK_SIZE));
+        }
+
+        if(artwork != null) {
+            artworkTarget = artwork.into(new SimpleTarget<Bitmap>() {
+                @Override
+                public void onResourceReady(Bitmap resource, Transition<? super Bitmap> transition) {
+                    metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, resource);
+                    builder.setLargeIcon(resource);
+
+                    session.setMetadata(metadata.build());
+                    updateNotification();
+                    artworkTarget = null;
+                }
+            });
         }
 
         builder.setContentTitle(track.title);
@@ -0,0 +1,82 @@
+package com.guichaguri.trackplayer.service.models;
+
+import android.os.Bundle;
+import com.google.android.exoplayer2.metadata.id3.ChapterFrame;
+import com.google.android.exoplayer2.metadata.id3.ChapterTocFrame;
+import com.google.android.exoplayer2.metadata.id3.Id3Frame;
+import com.google.android.exoplayer2.metadata.id3.TextInformationFrame;
+import com.google.android.exoplayer2.metadata.id3.UrlLinkFrame;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.util.*;
+
+/**
+ * A chapter embedded in the track through ID3 CHAP frames
+ *
+ * @author Guichaguri
+ */
+public class Chapter {
+
+    public final String id;
+    public final String title;
+    public final String url;
+    public final long start;
+    public final long end;
+
+    private Chapter(ChapterFrame frame) {
+        String title = null, url = null;
+
+        for(int i = 0; i < frame.getSubFrameCount(); i++) {
+            Id3Frame sub = frame.getSubFrame(i);
+
+            if(sub instanceof TextInformationFrame && "TIT2".equals(sub.id)) {
+                title = ((TextInformationFrame)sub).value;
+            } else if(sub instanceof UrlLinkFrame) {
+                url = ((UrlLinkFrame)sub).url;
+            }
+        }
+
+        this.id = frame.chapterId;
+        this.title = title;
+        this.url = url;
+        this.start = frame.startTimeMs;
+        this.end = frame.endTimeMs;
+    }
+
+    /**
+     * Orders the chapters by the root table of contents, or by their start time if there is none
+     */
+    public static List<Chapter> fromFrames(List<ChapterFrame> chapters, List<ChapterTocFrame> tocs) {
+        Map<String, ChapterFrame> ids = new HashMap<>();
+        for(ChapterFrame frame : chapters) ids.put(frame.chapterId, frame);
+
+        List<Chapter> list = new ArrayList<>();
+
+        for(ChapterTocFrame toc : tocs) {
+            if(!toc.isRoot) continue;
+
+            for(String child : toc.children) {
+                ChapterFrame frame = ids.get(child);
+                if(frame != null) list.add(new Chapter(frame));
+            }
+        }
+
+        if(list.isEmpty()) {
+            for(ChapterFrame frame : chapters) list.add(new Chapter(frame));
+            Collections.sort(list, (a, b) -> a.start < b.start ? -1 : (a.start == b.start ? 0 : 1));
+        }
+
+        return list;
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putString("id", id);
+        bundle.putString("title", title);
+        bundle.putString("url", url);
+        bundle.putDouble("start", Utils.toSeconds(start));
+        bundle.putDouble("end", Utils.toSeconds(end));
+        return bundle;
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.guichaguri.trackplayer.service.models;
+
+/**
+ * Gains in dB for each band of {@link EqualizerSettings#FREQUENCIES}
+ *
+ * @author Guichaguri
+ */
+public enum EqualizerPreset {
+
+    FLAT("flat", 0, 0, 0, 0, 0, 0, 0, 0, 0, 0),
+    BASS("bass", 6, 5, 4, 2, 0, 0, 0, 0, 0, 0),
+    TREBLE("treble", 0, 0, 0, 0, 0, 1, 2, 4, 5, 6),
+    VOCAL("vocal", -2, -2, -1, 1, 3, 3, 2, 1, 0, -1),
+    ROCK("rock", 5, 4, 3, 1, -1, -1, 1, 3, 4, 5),
+    POP("pop", -1, 0, 2, 3, 4, 3, 1, 0, -1, -1),
+    JAZZ("jazz", 3, 2, 1, 2, -1, -1, 0, 1, 2, 3),
+    CLASSICAL("classical", 4, 3, 2, 1, 0, 0, 0, 1, 2, 3);
+
+
+    public final String name;
+    final float[] gains;
+
+    EqualizerPreset(String name, float... gains) {
+        this.name = name;
+        this.gains = gains;
+    }
+
+    public static EqualizerPreset fromName(String name, EqualizerPreset fallback) {
+        if(name == null) return fallback;
+
+        for(EqualizerPreset preset : values()) {
+            if(preset.name.equalsIgnoreCase(name)) return preset;
+        }
+
+        return fallback;
+    }
+
+}
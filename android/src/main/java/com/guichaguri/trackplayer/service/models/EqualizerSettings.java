@@ -0,0 +1,69 @@
+package com.guichaguri.trackplayer.service.models;
+
+import android.os.Bundle;
+
+import java.util.List;
+
+/**
+ * An immutable snapshot of the equalizer settings, handed over to the audio thread as a whole
+ *
+ * @author Guichaguri
+ */
+public class EqualizerSettings {
+
+    public static final int MAX_BANDS = 10;
+
+    /**
+     * The band frequencies used by the presets
+     */
+    public static final float[] FREQUENCIES = {31, 62, 125, 250, 500, 1000, 2000, 4000, 8000, 16000};
+
+    private static final float DEFAULT_Q = 1.41F;
+
+    public final boolean enabled;
+
+    public final int bandCount;
+    public final float[] frequencies = new float[MAX_BANDS];
+    public final float[] gains = new float[MAX_BANDS];
+    public final float[] qualities = new float[MAX_BANDS];
+
+    public final float preamp;
+    public final float bassBoost;
+    public final boolean limiter;
+
+    public EqualizerSettings(Bundle bundle) {
+        enabled = bundle.getBoolean("enabled", true);
+        preamp = (float)bundle.getDouble("preamp", 0);
+        bassBoost = (float)bundle.getDouble("bassBoost", 0);
+        limiter = bundle.getBoolean("limiter", true);
+
+        List bands = (List)bundle.getSerializable("bands");
+
+        if(bands != null) {
+            int count = 0;
+
+            for(Object o : bands) {
+                if(!(o instanceof Bundle) || count >= MAX_BANDS) continue;
+
+                Bundle band = (Bundle)o;
+                frequencies[count] = (float)band.getDouble("frequency");
+                gains[count] = (float)band.getDouble("gain", 0);
+                qualities[count] = (float)band.getDouble("q", DEFAULT_Q);
+                count++;
+            }
+
+            bandCount = count;
+        } else {
+            EqualizerPreset preset = EqualizerPreset.fromName(bundle.getString("preset"), EqualizerPreset.FLAT);
+
+            for(int i = 0; i < MAX_BANDS; i++) {
+                frequencies[i] = FREQUENCIES[i];
+                gains[i] = preset.gains[i];
+                qualities[i] = DEFAULT_Q;
+            }
+
+            bandCount = MAX_BANDS;
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.guichaguri.trackplayer.service.models;
+
+/**
+ * @author Guichaguri
+ */
+public enum FadeCurve {
+
+    /**
+     * The gain changes at a constant rate
+     */
+    LINEAR("linear"),
+
+    /**
+     * Keeps the perceived loudness constant when two sources overlap
+     */
+    EQUAL_POWER("equalPower"),
+
+    /**
+     * Starts slowly and speeds up towards the end, closer to how loudness is perceived
+     */
+    EXPONENTIAL("exponential");
+
+
+    public final String name;
+
+    FadeCurve(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Maps the progress of a fade into a gain
+     * @param progress A value between 0 and 1
+     * @return The gain, also between 0 and 1
+     */
+    public float apply(float progress) {
+        if(progress <= 0) return 0;
+        if(progress >= 1) return 1;
+
+        switch(this) {
+            case EQUAL_POWER:
+                return (float)Math.sin(progress * Math.PI / 2);
+            case EXPONENTIAL:
+                return progress * progress * progress;
+            default:
+                return progress;
+        }
+    }
+
+    public static FadeCurve fromName(String name, FadeCurve fallback) {
+        if(name == null) return fallback;
+
+        for(FadeCurve curve : values()) {
+            if(curve.name.equalsIgnoreCase(name)) return curve;
+        }
+
+        return fallback;
+    }
+
+}
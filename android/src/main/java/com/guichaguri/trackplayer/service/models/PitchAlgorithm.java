@@ -0,0 +1,40 @@
+package com.guichaguri.trackplayer.service.models;
+
+/**
+ * @author Guichaguri
+ */
+public enum PitchAlgorithm {
+
+    /**
+     * An algorithm suitable for general use
+     */
+    LINEAR("linear"),
+
+    /**
+     * An algorithm suitable for music
+     */
+    MUSIC("music"),
+
+    /**
+     * An algorithm suitable for voice
+     */
+    VOICE("voice");
+
+
+    public final String name;
+
+    PitchAlgorithm(String name) {
+        this.name = name;
+    }
+
+    public static PitchAlgorithm fromName(String name, PitchAlgorithm fallback) {
+        if(name == null) return fallback;
+
+        for(PitchAlgorithm algorithm : values()) {
+            if(algorithm.name.equalsIgnoreCase(name)) return algorithm;
+        }
+
+        return fallback;
+    }
+
+}
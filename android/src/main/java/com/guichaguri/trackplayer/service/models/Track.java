@@ -7,11 +7,13 @@ import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.MediaSessionCompat.QueueItem;
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.ProgressiveMediaSource;
 import com.google.android.exoplayer2.source.dash.DashMediaSource;
 import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
+import com.google.android.exoplayer2.source.hls.HlsDataSourceFactory;
 import com.google.android.exoplayer2.source.hls.HlsMediaSource;
 import com.google.android.exoplayer2.source.smoothstreaming.DefaultSsChunkSource;
 import com.google.android.exoplayer2.source.smoothstreaming.SsMediaSource;
@@ -19,9 +21,12 @@ import com.google.android.exoplayer2.upstream.*;
 import com.google.android.exoplayer2.util.Util;
 import com.guichaguri.trackplayer.service.Utils;
 import com.guichaguri.trackplayer.service.player.LocalPlayback;
+import com.guichaguri.trackplayer.service.player.MappedFileDataSource;
+import com.guichaguri.trackplayer.service.player.ResourceDataSource;
+import com.guichaguri.trackplayer.service.player.ResourcePool;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +38,8 @@ import static android.support.v4.media.MediaMetadataCompat.*;
  */
 public class Track extends TrackMetadata {
 
+    private static final int LIVE_CONNECT_TIMEOUT_MS = 4000;
+
     public static List<Track> createTracks(Context context, List objects, int ratingType) {
         List<Track> tracks = new ArrayList<>();
 
@@ -59,6 +66,17 @@ public class Track extends TrackMetadata {
 
     public Map<String, String> headers;
 
+    public float replayGain = Float.NaN;
+
+    public boolean isLiveStream = false;
+
+    // The picture embedded in the file, only decoded when displayed
+    public byte[] embeddedArtwork;
+
+    public List<Chapter> chapters = Collections.emptyList();
+
+    public PitchAlgorithm pitchAlgorithm;
+
     public final long queueId;
 
     public Track(Context context, Bundle bundle, int ratingType) {
@@ -90,6 +108,14 @@ public class Track extends TrackMetadata {
             }
         }
 
+        isLiveStream = bundle.getBoolean("isLiveStream", false);
+
+        if(bundle.containsKey("replayGain")) {
+            replayGain = (float)bundle.getDouble("replayGain");
+        }
+
+        pitchAlgorithm = PitchAlgorithm.fromName(bundle.getString("pitchAlgorithm"), PitchAlgorithm.LINEAR);
+
         setMetadata(context, bundle, ratingType);
 
         queueId = System.currentTimeMillis();
@@ -125,6 +151,30 @@ public class Track extends TrackMetadata {
     }
 
     public MediaSource toMediaSource(Context ctx, LocalPlayback playback) {
+        DataSource.Factory ds = createDataSourceFactory(ctx, playback);
+
+        // Live streams keep reconnecting when they drop
+        LoadErrorHandlingPolicy errors = isLiveStream ? playback.getLiveErrorPolicy() : new DefaultLoadErrorHandlingPolicy();
+
+        switch(type) {
+            case DASH:
+                return createDashSource(ds, createManifestDataSourceFactory(ctx, playback), errors);
+            case HLS:
+                return createHlsSource(ds, createManifestDataSourceFactory(ctx, playback), errors);
+            case SMOOTH_STREAMING:
+                return createSsSource(ds, createManifestDataSourceFactory(ctx, playback), errors);
+            default:
+                return new ProgressiveMediaSource.Factory(ds, new DefaultExtractorsFactory()
+                        .setConstantBitrateSeekingEnabled(true))
+                        .setLoadErrorHandlingPolicy(errors)
+                        .createMediaSource(uri);
+        }
+    }
+
+    /**
+     * Creates the data source factory used to load this track, sharing the playback cache
+     */
+    public DataSource.Factory createDataSourceFactory(Context ctx, LocalPlayback playback) {
         // Updates the user agent if not set
         if(userAgent == null || userAgent.isEmpty())
             userAgent = Util.getUserAgent(ctx, "react-native-track-player");
@@ -133,69 +183,93 @@ public class Track extends TrackMetadata {
 
         if(resourceId != 0) {
 
-            try {
-                RawResourceDataSource raw = new RawResourceDataSource(ctx);
-                raw.open(new DataSpec(uri));
-                ds = new DataSource.Factory() {
-                    @Override
-                    public DataSource createDataSource() {
-                        return raw;
-                    }
-                };
-            } catch(IOException ex) {
-                // Should never happen
-                throw new RuntimeException(ex);
-            }
+            // Opens the resource only when it's loaded, sharing the file descriptors between tracks
+            ResourcePool pool = playback.getResourcePool();
+            ds = () -> new ResourceDataSource(pool);
 
         } else if(Utils.isLocal(uri)) {
 
-            // Creates a local source factory
-            ds = new DefaultDataSourceFactory(ctx, userAgent);
+            if(playback.isMemoryMapping() && MappedFileDataSource.isSupported(uri)) {
+                // Creates a memory mapped file source factory
+                ds = MappedFileDataSource::new;
+            } else {
+                // Creates a local source factory
+                ds = new DefaultDataSourceFactory(ctx, userAgent);
+            }
 
         } else {
 
-            // Creates a default http source factory, enabling cross protocol redirects
-            DefaultHttpDataSourceFactory factory = new DefaultHttpDataSourceFactory(
-                    userAgent, null,
-                    DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS,
-                    DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS,
-                    true
-            );
+            ds = playback.enableCaching(createHttpDataSourceFactory(ctx));
 
-            if(headers != null) {
-                factory.getDefaultRequestProperties().set(headers);
-            }
+        }
 
-            ds = playback.enableCaching(factory);
+        return ds;
+    }
 
-        }
+    /**
+     * Creates the data source factory used to load the manifest of adaptive tracks.
+     * Remote manifests go through the manifest cache instead of the media cache.
+     */
+    public DataSource.Factory createManifestDataSourceFactory(Context ctx, LocalPlayback playback) {
+        if(resourceId != 0 || Utils.isLocal(uri)) return createDataSourceFactory(ctx, playback);
 
-        switch(type) {
-            case DASH:
-                return createDashSource(ds);
-            case HLS:
-                return createHlsSource(ds);
-            case SMOOTH_STREAMING:
-                return createSsSource(ds);
-            default:
-                return new ProgressiveMediaSource.Factory(ds, new DefaultExtractorsFactory()
-                        .setConstantBitrateSeekingEnabled(true))
-                        .createMediaSource(uri);
+        return playback.getManifestCache().wrap(createHttpDataSourceFactory(ctx));
+    }
+
+    /**
+     * Loads the manifest of this track in the background, if it's a remote adaptive track
+     */
+    public void prefetchManifest(Context ctx, LocalPlayback playback) {
+        if(type == TrackType.DEFAULT || resourceId != 0 || Utils.isLocal(uri)) return;
+
+        playback.getManifestCache().prefetch(uri, createHttpDataSourceFactory(ctx), type == TrackType.HLS);
+    }
+
+    private DataSource.Factory createHttpDataSourceFactory(Context ctx) {
+        // Updates the user agent if not set
+        if(userAgent == null || userAgent.isEmpty())
+            userAgent = Util.getUserAgent(ctx, "react-native-track-player");
+
+        // Live streams connect with a shorter timeout, so a dead connection is retried sooner
+        int connectTimeout = isLiveStream ? LIVE_CONNECT_TIMEOUT_MS : DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+        // Creates a default http source factory, enabling cross protocol redirects
+        DefaultHttpDataSourceFactory factory = new DefaultHttpDataSourceFactory(
+                userAgent, null,
+                connectTimeout,
+                DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS,
+                true
+        );
+
+        if(headers != null) {
+            factory.getDefaultRequestProperties().set(headers);
         }
+
+        return factory;
     }
 
-    private MediaSource createDashSource(DataSource.Factory factory) {
-        return new DashMediaSource.Factory(new DefaultDashChunkSource.Factory(factory), factory)
+    private MediaSource createDashSource(DataSource.Factory factory, DataSource.Factory manifest,
+                                         LoadErrorHandlingPolicy errors) {
+        return new DashMediaSource.Factory(new DefaultDashChunkSource.Factory(factory), manifest)
+                .setLoadErrorHandlingPolicy(errors)
                 .createMediaSource(uri);
     }
 
-    private MediaSource createHlsSource(DataSource.Factory factory) {
-        return new HlsMediaSource.Factory(factory)
+    private MediaSource createHlsSource(DataSource.Factory factory, DataSource.Factory manifest,
+                                        LoadErrorHandlingPolicy errors) {
+        // Playlists are loaded through the manifest factory, segments and keys through the regular one
+        HlsDataSourceFactory hls = dataType -> dataType == C.DATA_TYPE_MANIFEST ?
+                manifest.createDataSource() : factory.createDataSource();
+
+        return new HlsMediaSource.Factory(hls)
+                .setLoadErrorHandlingPolicy(errors)
                 .createMediaSource(uri);
     }
 
-    private MediaSource createSsSource(DataSource.Factory factory) {
-        return new SsMediaSource.Factory(new DefaultSsChunkSource.Factory(factory), factory)
+    private MediaSource createSsSource(DataSource.Factory factory, DataSource.Factory manifest,
+                                      LoadErrorHandlingPolicy errors) {
+        return new SsMediaSource.Factory(new DefaultSsChunkSource.Factory(factory), manifest)
+                .setLoadErrorHandlingPolicy(errors)
                 .createMediaSource(uri);
     }
 
@@ -0,0 +1,198 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.Bundle;
+import android.os.SystemClock;
+import androidx.core.net.ConnectivityManagerCompat;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.analytics.AnalyticsListener;
+import com.google.android.exoplayer2.source.MediaSourceEventListener.MediaLoadData;
+import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.util.Util;
+import com.guichaguri.trackplayer.service.Metrics;
+import com.guichaguri.trackplayer.service.MusicManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rendition selection of HLS, DASH and SmoothStreaming tracks, tuned for audio.
+ *
+ * Audio renditions are small, so switching often gains little and is audible. The bitrate is only raised
+ * after a long stable period, and the last bandwidth estimate of each network type is persisted, so
+ * the first segments of a new session are already loaded in the right rendition.
+ *
+ * A single bandwidth meter is shared by every player, so they build one estimate together.
+ * Each player has its own {@link Selection}.
+ *
+ * @author Guichaguri
+ */
+public class AdaptiveBitrate implements BandwidthMeter.EventListener {
+
+    private static final String PREFERENCES = "TrackPlayerBandwidth";
+    private static final String ESTIMATE_KEY = "estimate_";
+
+    // Switching up needs 25s of buffer, ExoPlayer defaults to 10s
+    private static final int MIN_DURATION_FOR_INCREASE_MS = 25000;
+    private static final int MAX_DURATION_FOR_DECREASE_MS = 25000;
+    private static final int MIN_DURATION_TO_RETAIN_MS = 25000;
+    private static final float BANDWIDTH_FRACTION = 0.7F;
+
+    private static final long PERSIST_INTERVAL_MS = 10000;
+
+    private final Context context;
+    private final MusicManager manager;
+    private final SharedPreferences preferences;
+    private final DefaultBandwidthMeter meter;
+    private final List<Selection> selections = new ArrayList<>();
+
+    private final boolean persist;
+
+    private boolean metered = false;
+    private long lastPersist = 0;
+
+    /**
+     * @param persist Whether the estimates are persisted, from the {@code persistBandwidth} option
+     */
+    public AdaptiveBitrate(Context context, MusicManager manager, boolean persist) {
+        this.context = context.getApplicationContext();
+        this.manager = manager;
+        this.preferences = this.context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        this.persist = persist;
+
+        DefaultBandwidthMeter.Builder builder = new DefaultBandwidthMeter.Builder(this.context)
+                .setResetOnNetworkTypeChange(true);
+
+        if(persist) {
+            for(Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+                if(!entry.getKey().startsWith(ESTIMATE_KEY) || !(entry.getValue() instanceof Long)) continue;
+
+                try {
+                    int networkType = Integer.parseInt(entry.getKey().substring(ESTIMATE_KEY.length()));
+                    builder.setInitialBitrateEstimate(networkType, (Long)entry.getValue());
+                } catch(NumberFormatException ex) {
+                    // Not an estimate
+                }
+            }
+        }
+
+        meter = builder.build();
+        meter.addEventListener(manager.getHandler(), this);
+        metered = isMetered();
+    }
+
+    public DefaultBandwidthMeter getBandwidthMeter() {
+        return meter;
+    }
+
+    /**
+     * Creates the rendition selection of a player
+     * @param options The player options, reading {@code maxMeteredBitrate}
+     */
+    public Selection createSelection(Bundle options) {
+        Selection selection = new Selection((int)(options.getDouble("maxMeteredBitrate", 0) * 1000));
+        selections.add(selection);
+        return selection;
+    }
+
+    public void destroy() {
+        meter.removeEventListener(this);
+        selections.clear();
+        persistEstimate();
+    }
+
+    @Override
+    public void onBandwidthSample(int elapsedMs, long bytesTransferred, long bitrateEstimate) {
+        manager.getMetrics().record(Metrics.BANDWIDTH_ESTIMATE, bitrateEstimate / 1000D);
+
+        // The network could have changed since the last sample
+        boolean metered = isMetered();
+
+        if(metered != this.metered) {
+            this.metered = metered;
+            for(Selection selection : selections) selection.updateConstraints();
+        }
+
+        long now = SystemClock.elapsedRealtime();
+
+        if(now - lastPersist >= PERSIST_INTERVAL_MS) {
+            lastPersist = now;
+            persistEstimate();
+        }
+    }
+
+    private boolean isMetered() {
+        ConnectivityManager connectivity = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivity != null && ConnectivityManagerCompat.isActiveNetworkMetered(connectivity);
+    }
+
+    private void persistEstimate() {
+        if(!persist) return;
+
+        int networkType = Util.getNetworkType(context);
+        if(networkType == C.NETWORK_TYPE_UNKNOWN || networkType == C.NETWORK_TYPE_OFFLINE) return;
+
+        preferences.edit().putLong(ESTIMATE_KEY + networkType, meter.getBitrateEstimate()).apply();
+    }
+
+    /**
+     * The track selector of a single player and the metrics of its renditions
+     */
+    public class Selection implements AnalyticsListener {
+
+        private final DefaultTrackSelector selector;
+        private final int maxMeteredBitrate;
+
+        private int lastBitrate = Format.NO_VALUE;
+
+        private Selection(int maxMeteredBitrate) {
+            this.maxMeteredBitrate = maxMeteredBitrate;
+            this.selector = new DefaultTrackSelector(context, new AdaptiveTrackSelection.Factory(
+                    MIN_DURATION_FOR_INCREASE_MS, MAX_DURATION_FOR_DECREASE_MS, MIN_DURATION_TO_RETAIN_MS,
+                    BANDWIDTH_FRACTION));
+
+            updateConstraints();
+        }
+
+        public DefaultTrackSelector getTrackSelector() {
+            return selector;
+        }
+
+        public void release() {
+            selections.remove(this);
+        }
+
+        @Override
+        public void onDownstreamFormatChanged(EventTime eventTime, MediaLoadData data) {
+            Format format = data.trackFormat;
+            if(format == null || format.bitrate == Format.NO_VALUE) return;
+            if(data.trackSelectionReason != C.SELECTION_REASON_ADAPTIVE
+                    && data.trackSelectionReason != C.SELECTION_REASON_INITIAL) return;
+            if(format.bitrate == lastBitrate) return;
+
+            if(lastBitrate != Format.NO_VALUE) manager.getMetrics().record(Metrics.ABR_SWITCH, format.bitrate / 1000D);
+            manager.getMetrics().record(Metrics.ABR_BITRATE, format.bitrate / 1000D);
+
+            lastBitrate = format.bitrate;
+        }
+
+        /**
+         * Caps the bitrate while the network is metered
+         */
+        private void updateConstraints() {
+            if(maxMeteredBitrate <= 0) return;
+
+            selector.setParameters(selector.buildUponParameters()
+                    .setMaxAudioBitrate(metered ? maxMeteredBitrate : Integer.MAX_VALUE));
+        }
+
+    }
+
+}
@@ -0,0 +1,345 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.guichaguri.trackplayer.service.MusicManager;
+import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.audio.AudioRenderersFactory;
+import com.guichaguri.trackplayer.service.audio.EqualizerProcessor;
+import com.guichaguri.trackplayer.service.audio.LoudnessProcessor;
+import com.guichaguri.trackplayer.service.models.EqualizerSettings;
+import com.guichaguri.trackplayer.service.models.FadeCurve;
+import com.guichaguri.trackplayer.service.models.Track;
+
+import java.util.List;
+
+/**
+ * Overlaps the end of a track with the beginning of the next one.
+ *
+ * A second player buffers the beginning of the next track ahead of time and plays it while the main player
+ * fades out the end of the current one. The main player, which already buffered the next track too, then
+ * moves on to it at the position the second player reached, so the track-changed event is emitted exactly
+ * once and nothing is loaded again. A short overlap hides the few milliseconds that seek takes.
+ *
+ * The second player has the same loudness, equalizer and time-stretch stages as the main one. It is created
+ * once and reused for every transition, so at most two decoders are alive at the same time.
+ *
+ * @author Guichaguri
+ */
+public class CrossfadeController implements Player.EventListener {
+
+    private static final long CHECK_INTERVAL_MS = 250;
+    private static final long FADE_INTERVAL_MS = 25;
+    private static final long PREPARE_AHEAD_MS = 5000;
+    private static final long HANDOVER_MS = 100;
+    private static final long SEEK_TIMEOUT_MS = 2000;
+
+    private enum State {
+        IDLE,
+
+        /**
+         * The next track is buffered in the second player
+         */
+        PREPARED,
+
+        /**
+         * Both tracks are playing, the current one is fading out
+         */
+        FADING,
+
+        /**
+         * The main player is seeking into the next track, the second player is still playing it
+         */
+        SEEKING,
+
+        /**
+         * Both players are playing the next track, the second one is fading out
+         */
+        HANDOVER
+    }
+
+    private final LocalPlayback playback;
+    private final MusicManager manager;
+    private final SimpleExoPlayer player;
+    private final long duration;
+    private final FadeCurve curve;
+
+    private SimpleExoPlayer incoming;
+    private AudioRenderersFactory renderers;
+
+    private State state = State.IDLE;
+    private int preparedWindow = C.INDEX_UNSET;
+    private Track preparedTrack;
+    private long fadeStart = C.TIME_UNSET;
+    private boolean pendingSeek = false;
+
+    private final Runnable check = this::check;
+    private final Runnable fade = this::fade;
+    private final Runnable handover = this::handover;
+    private final Runnable startHandover = this::startHandover;
+
+    public CrossfadeController(LocalPlayback playback, MusicManager manager, SimpleExoPlayer player,
+                               long duration, FadeCurve curve) {
+        this.playback = playback;
+        this.manager = manager;
+        this.player = player;
+        this.duration = duration;
+        this.curve = curve;
+    }
+
+    public void initialize() {
+        player.addListener(this);
+    }
+
+    public boolean isFading() {
+        return state == State.FADING || state == State.SEEKING || state == State.HANDOVER;
+    }
+
+    /**
+     * Stops the transition in progress, if any, and drops the prepared track
+     */
+    public void cancel() {
+        Handler handler = manager.getHandler();
+        if(handler != null) {
+            handler.removeCallbacks(fade);
+            handler.removeCallbacks(handover);
+            handler.removeCallbacks(startHandover);
+            handler.removeCallbacks(check);
+        }
+
+        if(incoming != null) incoming.stop(true);
+
+        if(isFading()) playback.setFadeGain(1);
+
+        state = State.IDLE;
+        preparedWindow = C.INDEX_UNSET;
+        preparedTrack = null;
+        fadeStart = C.TIME_UNSET;
+        pendingSeek = false;
+    }
+
+    public void destroy() {
+        cancel();
+        player.removeListener(this);
+
+        if(incoming != null) {
+            incoming.release();
+            incoming = null;
+            renderers = null;
+        }
+    }
+
+    private void schedule(long delay) {
+        Handler handler = manager.getHandler();
+        if(handler == null) return;
+
+        handler.removeCallbacks(check);
+        handler.postDelayed(check, delay);
+    }
+
+    private void check() {
+        if(isFading()) return;
+        if(!player.getPlayWhenReady() || player.getPlaybackState() != Player.STATE_READY) return;
+
+        int window = player.getCurrentWindowIndex();
+        long trackDuration = playback.getAudibleEnd();
+
+        if(trackDuration == C.TIME_UNSET || trackDuration <= duration * 2 || player.isCurrentWindowDynamic()
+                || player.getRepeatMode() == Player.REPEAT_MODE_ONE || player.getNextWindowIndex() == C.INDEX_UNSET) {
+            schedule(CHECK_INTERVAL_MS);
+            return;
+        }
+
+        long remaining = trackDuration - player.getCurrentPosition();
+
+        if(remaining <= duration) {
+            // If the next track wasn't buffered in time, this transition will be a regular cut
+            if(preparedWindow == window && incoming.getPlaybackState() == Player.STATE_READY) {
+                start();
+                return;
+            }
+        } else if(remaining <= duration + PREPARE_AHEAD_MS && preparedWindow != window) {
+            prepare(window, player.getNextWindowIndex());
+        }
+
+        schedule(Math.max(Math.min(CHECK_INTERVAL_MS, remaining - duration), 10));
+    }
+
+    private void prepare(int window, int next) {
+        List<Track> queue = playback.getQueue();
+        if(next < 0 || next >= queue.size()) return;
+
+        Track track = queue.get(next);
+        Log.d(Utils.LOG, "Preparing the crossfade for track " + next);
+
+        if(incoming == null) {
+            renderers = playback.getRenderers().createSibling(playback.context);
+            incoming = manager.createCrossfadePlayer(renderers);
+        }
+
+        // Mirrors the settings of the main player
+        LoudnessProcessor loudness = renderers.getLoudnessProcessor();
+        if(loudness != null) loudness.setGain(playback.getLoudnessGain(track));
+
+        EqualizerProcessor equalizer = playback.getRenderers().getEqualizer();
+        EqualizerSettings settings = equalizer == null ? null : equalizer.getSettings();
+        if(settings != null) renderers.getEqualizer().setSettings(settings);
+
+        renderers.getVolumeProcessor().setGain(playback.getPlayerVolume());
+        incoming.setPlaybackParameters(player.getPlaybackParameters());
+
+        incoming.setPlayWhenReady(false);
+        incoming.setVolume(0);
+        incoming.prepare(track.toMediaSource(playback.context, playback), true, true);
+
+        // Skips the silence the trimmer would skip
+        long introEnd = playback.getIntroEnd(track);
+        if(introEnd > 0) incoming.seekTo(introEnd);
+
+        state = State.PREPARED;
+        preparedWindow = window;
+        preparedTrack = track;
+    }
+
+    private void start() {
+        Log.d(Utils.LOG, "Starting the crossfade");
+
+        state = State.FADING;
+        fadeStart = SystemClock.elapsedRealtime();
+
+        incoming.setPlayWhenReady(true);
+
+        manager.getHandler().post(fade);
+    }
+
+    private void fade() {
+        if(state != State.FADING) return;
+
+        float progress = (SystemClock.elapsedRealtime() - fadeStart) / (float)duration;
+
+        if(progress >= 1) {
+            seekToIncoming();
+            return;
+        }
+
+        playback.setFadeGain(curve.apply(1 - progress));
+        incoming.setVolume(curve.apply(progress));
+
+        manager.getHandler().postDelayed(fade, FADE_INTERVAL_MS);
+    }
+
+    /**
+     * Moves the main player, muted, to where the second player is in the next track
+     */
+    private void seekToIncoming() {
+        manager.getHandler().removeCallbacks(fade);
+
+        int window = player.getCurrentWindowIndex();
+        List<Track> queue = playback.getQueue();
+
+        // The main player might have reached the end of the track on its own
+        if(window == preparedWindow) window = player.getNextWindowIndex();
+
+        if(window < 0 || window >= queue.size() || queue.get(window) != preparedTrack) {
+            // The queue changed in the meantime
+            cancel();
+            schedule(CHECK_INTERVAL_MS);
+            return;
+        }
+
+        state = State.SEEKING;
+        pendingSeek = true;
+
+        playback.setFadeGain(0);
+        incoming.setVolume(1);
+
+        playback.skipTo(window, incoming.getCurrentPosition());
+
+        // Unmutes the main player even if it never reports being ready
+        manager.getHandler().postDelayed(startHandover, SEEK_TIMEOUT_MS);
+    }
+
+    private void startHandover() {
+        if(state != State.SEEKING) return;
+
+        manager.getHandler().removeCallbacks(startHandover);
+
+        state = State.HANDOVER;
+        fadeStart = SystemClock.elapsedRealtime();
+        manager.getHandler().post(handover);
+    }
+
+    private void handover() {
+        if(state != State.HANDOVER) return;
+
+        float progress = (SystemClock.elapsedRealtime() - fadeStart) / (float)HANDOVER_MS;
+
+        if(progress >= 1) {
+            incoming.stop(true);
+
+            state = State.IDLE;
+            preparedWindow = C.INDEX_UNSET;
+            preparedTrack = null;
+            fadeStart = C.TIME_UNSET;
+
+            playback.setFadeGain(1);
+            schedule(CHECK_INTERVAL_MS);
+            return;
+        }
+
+        playback.setFadeGain(progress);
+        incoming.setVolume(1 - progress);
+
+        manager.getHandler().postDelayed(handover, FADE_INTERVAL_MS);
+    }
+
+    @Override
+    public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+        if(!playWhenReady || playbackState == Player.STATE_IDLE || playbackState == Player.STATE_ENDED) {
+            if(state != State.IDLE) cancel();
+        } else if(playbackState == Player.STATE_READY) {
+            if(state == State.SEEKING && !pendingSeek) {
+                startHandover();
+            } else if(!isFading()) {
+                schedule(0);
+            }
+        }
+    }
+
+    @Override
+    public void onPositionDiscontinuity(int reason) {
+        if(reason == Player.DISCONTINUITY_REASON_PERIOD_TRANSITION) {
+            // The main player reached the next track before the fade ended
+            if(state == State.FADING && player.getCurrentWindowIndex() != preparedWindow) seekToIncoming();
+            return;
+        }
+
+        if(reason != Player.DISCONTINUITY_REASON_SEEK) return;
+
+        if(pendingSeek) {
+            // This is the seek we did ourselves to join the second player
+            pendingSeek = false;
+        } else if(state != State.IDLE) {
+            cancel();
+            schedule(CHECK_INTERVAL_MS);
+        }
+    }
+
+    @Override
+    public void onTimelineChanged(@NonNull Timeline timeline, int reason) {
+        // The queue changed, the prepared window index might not point to the same track anymore
+        if(state == State.PREPARED) {
+            state = State.IDLE;
+            preparedWindow = C.INDEX_UNSET;
+            preparedTrack = null;
+            if(incoming != null) incoming.stop(true);
+        }
+    }
+
+}
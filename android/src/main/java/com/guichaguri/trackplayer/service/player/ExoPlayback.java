@@ -22,6 +22,10 @@ import com.google.android.exoplayer2.source.hls.HlsTrackMetadataEntry;
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
 import com.guichaguri.trackplayer.service.MusicManager;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.library.SearchIndex;
+import com.guichaguri.trackplayer.service.models.Chapter;
+import com.guichaguri.trackplayer.service.models.EqualizerSettings;
+import com.guichaguri.trackplayer.service.models.FadeCurve;
 import com.guichaguri.trackplayer.service.models.Track;
 
 import java.nio.charset.StandardCharsets;
@@ -47,12 +51,19 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
     protected int previousState = PlaybackStateCompat.STATE_NONE;
     protected float volumeMultiplier = 1.0F;
     protected boolean autoUpdateMetadata;
+    protected String playerId = null;
+
+    private final SourceMetadata sourceMetadata;
+
+    // The queue indexed for voice searches, built when needed
+    private SearchIndex queueIndex;
 
     public ExoPlayback(Context context, MusicManager manager, T player, boolean autoUpdateMetadata) {
         this.context = context;
         this.manager = manager;
         this.player = player;
         this.autoUpdateMetadata = autoUpdateMetadata;
+        this.sourceMetadata = new SourceMetadata(manager, this);
 
         Player.MetadataComponent component = player.getMetadataComponent();
         if(component != null) component.addMetadataOutput(this);
@@ -62,6 +73,17 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
         player.addListener(this);
     }
 
+    /**
+     * The id of a secondary player, or null for the main player
+     */
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public void setPlayerId(String playerId) {
+        this.playerId = playerId;
+    }
+
     public List<Track> getQueue() {
         return queue;
     }
@@ -82,11 +104,39 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
         int currentIndex = player.getCurrentWindowIndex();
 
         queue.set(index, track);
+        invalidateQueueIndex();
 
-        if(currentIndex == index)
+        if(currentIndex == index && playerId == null)
             manager.getMetadata().updateMetadata(this, track);
     }
 
+    /**
+     * Gets the queue indexed for voice searches, where the ids are the track indexes
+     */
+    public synchronized SearchIndex getQueueIndex() {
+        if(queueIndex == null) {
+            SearchIndex.Builder builder = new SearchIndex.Builder();
+
+            synchronized(queue) {
+                for(int i = 0; i < queue.size(); i++) {
+                    Track track = queue.get(i);
+                    builder.add(Integer.toString(i), track.title, track.artist, track.album, track.genre);
+                }
+            }
+
+            queueIndex = builder.build();
+        }
+
+        return queueIndex;
+    }
+
+    /**
+     * Drops the search index, called whenever the queue changes
+     */
+    protected synchronized void invalidateQueueIndex() {
+        queueIndex = null;
+    }
+
     public Integer getCurrentTrackIndex() {
         int index = player.getCurrentWindowIndex();
         return index < 0 || index >= queue.size() ? null : index;
@@ -97,49 +147,96 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
         return index < 0 || index >= queue.size() ? null : queue.get(index);
     }
 
+    /**
+     * The chapters embedded in the current track
+     */
+    public List<Chapter> getChapters() {
+        Track track = getCurrentTrack();
+        return track == null ? Collections.emptyList() : track.chapters;
+    }
+
+    /**
+     * @return The index of the chapter being played or -1 if there is none
+     */
+    public int getCurrentChapterIndex() {
+        List<Chapter> chapters = getChapters();
+        long position = player.getCurrentPosition();
+        int current = -1;
+
+        for(int i = 0; i < chapters.size(); i++) {
+            if(chapters.get(i).start <= position) current = i;
+        }
+
+        return current;
+    }
+
+    public void skipToChapter(int index, Promise promise) {
+        List<Chapter> chapters = getChapters();
+
+        if(index < 0 || index >= chapters.size()) {
+            promise.reject("chapter_out_of_bounds", "The chapter index is out of bounds");
+            return;
+        }
+
+        seekTo(chapters.get(index).start);
+        promise.resolve(null);
+    }
+
     public void skip(int index, Promise promise) {
-        if(index < 0 || index >= queue.size()) {
+        if(!skip(index)) {
             promise.reject("index_out_of_bounds", "The index is out of bounds");
             return;
         }
 
+        promise.resolve(null);
+    }
+
+    /**
+     * Skips to a track, used by actions handled natively
+     * @return Whether the index is in the queue
+     */
+    public boolean skip(int index) {
+        if(index < 0 || index >= queue.size()) return false;
+
         lastKnownWindow = player.getCurrentWindowIndex();
         lastKnownPosition = player.getCurrentPosition();
 
         player.seekToDefaultPosition(index);
-        promise.resolve(null);
+        return true;
     }
 
     public void skipToPrevious(Promise promise) {
-        int prev = player.getPreviousWindowIndex();
-
-        if(prev == C.INDEX_UNSET) {
+        if(!skipToPrevious()) {
             promise.reject("no_previous_track", "There is no previous track");
             return;
         }
 
-        lastKnownWindow = player.getCurrentWindowIndex();
-        lastKnownPosition = player.getCurrentPosition();
-
-        player.seekToDefaultPosition(prev);
         promise.resolve(null);
     }
 
-    public void skipToNext(Promise promise) {
-        int next = player.getNextWindowIndex();
+    /**
+     * @return Whether there is a previous track
+     */
+    public boolean skipToPrevious() {
+        return skip(player.getPreviousWindowIndex());
+    }
 
-        if(next == C.INDEX_UNSET) {
+    public void skipToNext(Promise promise) {
+        if(!skipToNext()) {
             promise.reject("queue_exhausted", "There is no tracks left to play");
             return;
         }
 
-        lastKnownWindow = player.getCurrentWindowIndex();
-        lastKnownPosition = player.getCurrentPosition();
-
-        player.seekToDefaultPosition(next);
         promise.resolve(null);
     }
 
+    /**
+     * @return Whether there is a next track
+     */
+    public boolean skipToNext() {
+        return skip(player.getNextWindowIndex());
+    }
+
     public void play() {
         player.setPlayWhenReady(true);
     }
@@ -177,6 +274,14 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
         return player.getCurrentPosition();
     }
 
+    /**
+     * Gets how much silence was skipped in the current track in milliseconds.
+     * The position is not affected, it always matches the position in the media.
+     */
+    public long getSkippedSilence() {
+        return 0;
+    }
+
     public long getBufferedPosition() {
         return player.getBufferedPosition();
     }
@@ -213,6 +318,26 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
         this.volumeMultiplier = multiplier;
     }
 
+    /**
+     * Gradually changes the volume
+     * @param volume The target volume
+     * @param duration The fade duration in milliseconds
+     * @param curve The fade curve
+     */
+    public void fadeTo(float volume, long duration, FadeCurve curve) {
+        // The volume can't be ramped by default
+        setVolume(volume);
+    }
+
+    /**
+     * Gradually changes the volume multiplier, used for ducking
+     * @param multiplier The new multiplier
+     * @param duration The fade duration in milliseconds
+     */
+    public void fadeVolumeMultiplier(float multiplier, long duration) {
+        setVolumeMultiplier(multiplier);
+    }
+
     public abstract float getPlayerVolume();
 
     public abstract void setPlayerVolume(float volume);
@@ -222,7 +347,44 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
     }
 
     public void setRate(float rate) {
-        player.setPlaybackParameters(new PlaybackParameters(rate, player.getPlaybackParameters().pitch));
+        PlaybackParameters params = player.getPlaybackParameters();
+        player.setPlaybackParameters(new PlaybackParameters(rate, params.pitch, params.skipSilence));
+    }
+
+    /**
+     * Replaces the equalizer settings
+     * @return Whether the equalizer is enabled for this playback
+     */
+    public boolean setEqualizer(EqualizerSettings settings) {
+        return false;
+    }
+
+    /**
+     * Starts or stops emitting visualization frames
+     * @param bands The amount of bands per frame
+     * @param fps The amount of frames per second
+     * @return Whether the visualizer is enabled for this playback
+     */
+    public boolean setVisualizer(boolean enabled, int bands, int fps) {
+        return false;
+    }
+
+    /**
+     * Gets the min/max peaks of a track in the queue
+     * @param index The track index
+     * @param buckets The amount of peaks
+     */
+    public void getWaveform(int index, int buckets, Promise promise) {
+        promise.reject("unsupported", "Waveforms are not supported by this playback");
+    }
+
+    /**
+     * Gradually changes the playback speed
+     * @param rate The new speed
+     * @param duration The ramp duration in milliseconds
+     */
+    public void rampRate(float rate, long duration) {
+        setRate(rate);
     }
 
     public int getState() {
@@ -261,6 +423,9 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
             Integer nextIndex = getCurrentTrackIndex();
             Track next = nextIndex == null ? null : queue.get(nextIndex);
 
+            // The new track emits its tags again, even if they are the same
+            sourceMetadata.reset();
+
             // Track changed because it ended
             // We'll use its duration instead of the last known position
             if (reason == Player.DISCONTINUITY_REASON_PERIOD_TRANSITION && lastKnownWindow != C.INDEX_UNSET) {
@@ -269,7 +434,7 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
                 if(duration != C.TIME_UNSET) lastKnownPosition = duration;
             }
 
-            manager.onTrackUpdate(prevIndex, lastKnownPosition, nextIndex, next);
+            manager.onTrackUpdate(this, prevIndex, lastKnownPosition, nextIndex, next);
         } else if (reason == Player.DISCONTINUITY_REASON_PERIOD_TRANSITION && lastKnownWindow == player.getCurrentWindowIndex()) {
             Integer nextIndex = getCurrentTrackIndex();
             Track next = nextIndex == null ? null : queue.get(nextIndex);
@@ -277,7 +442,7 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
             long duration = player.getCurrentTimeline().getWindow(lastKnownWindow, new Window()).getDurationMs();
             if(duration != C.TIME_UNSET) lastKnownPosition = duration;
 
-            manager.onTrackUpdate(nextIndex, lastKnownPosition, nextIndex, next);
+            manager.onTrackUpdate(this, nextIndex, lastKnownPosition, nextIndex, next);
         }
 
         lastKnownWindow = player.getCurrentWindowIndex();
@@ -315,20 +480,20 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
 
         if(state != previousState) {
             if(Utils.isPlaying(state) && !Utils.isPlaying(previousState)) {
-                manager.onPlay();
+                manager.onPlay(this);
             } else if(Utils.isPaused(state) && !Utils.isPaused(previousState)) {
-                manager.onPause();
+                manager.onPause(this);
             } else if(Utils.isStopped(state) && !Utils.isStopped(previousState)) {
-                manager.onStop();
+                manager.onStop(this);
             }
 
-            manager.onStateChange(state);
+            manager.onStateChange(this, state);
 
             if(previousState != PlaybackStateCompat.STATE_CONNECTING && state == PlaybackStateCompat.STATE_STOPPED) {
                 Integer previous = getCurrentTrackIndex();
                 long position = getPosition();
-                manager.onTrackUpdate(previous, position, null, null);
-                manager.onEnd(getCurrentTrackIndex(), getPosition());
+                manager.onTrackUpdate(this, previous, position, null, null);
+                manager.onEnd(this, getCurrentTrackIndex(), getPosition());
             }
 
             previousState = state;
@@ -347,7 +512,7 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
             code = "playback"; // Other unexpected errors related to the playback
         }
 
-        manager.onError(code, error.getCause().getMessage());
+        manager.onError(this, code, error.getCause().getMessage());
     }
 
     @Override
@@ -362,6 +527,6 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
 
     @Override
     public void onMetadata(@NonNull Metadata metadata) {
-        SourceMetadata.handleMetadata(manager, metadata);
+        sourceMetadata.handleMetadata(metadata);
     }
 }
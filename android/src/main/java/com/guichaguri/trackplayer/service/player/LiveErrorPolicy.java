@@ -0,0 +1,47 @@
+package com.guichaguri.trackplayer.service.player;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DefaultLoadErrorHandlingPolicy;
+import com.guichaguri.trackplayer.service.Metrics;
+
+import java.io.IOException;
+
+/**
+ * Keeps reconnecting to a dropped live stream, backing off exponentially.
+ *
+ * The first retry is almost immediate, so a short drop is barely noticeable, while a longer outage
+ * doesn't flood the server. Errors that can't be fixed by retrying are still fatal.
+ *
+ * @author Guichaguri
+ */
+public class LiveErrorPolicy extends DefaultLoadErrorHandlingPolicy {
+
+    private static final long INITIAL_DELAY_MS = 250;
+    private static final long MAX_DELAY_MS = 16000;
+
+    private final Metrics metrics;
+
+    public LiveErrorPolicy(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public long getRetryDelayMsFor(int dataType, long loadDurationMs, IOException exception, int errorCount) {
+        // Parsing errors and missing files
+        if(super.getRetryDelayMsFor(dataType, loadDurationMs, exception, errorCount) == C.TIME_UNSET) {
+            return C.TIME_UNSET;
+        }
+
+        long delay = INITIAL_DELAY_MS << Math.min(Math.max(errorCount - 1, 0), 6);
+        delay = Math.min(delay, MAX_DELAY_MS);
+
+        metrics.record(Metrics.LIVE_RECONNECT, delay);
+        return delay;
+    }
+
+    @Override
+    public int getMinimumLoadableRetryCount(int dataType) {
+        return Integer.MAX_VALUE;
+    }
+
+}
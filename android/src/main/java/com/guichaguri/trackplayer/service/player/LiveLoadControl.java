@@ -0,0 +1,91 @@
+package com.guichaguri.trackplayer.service.player;
+
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.util.Util;
+
+/**
+ * Starts live streams with a smaller buffer than on-demand tracks.
+ *
+ * A live stream can't be downloaded faster than it plays, so waiting for the regular start buffer only
+ * delays station switches. Everything else is handled by the regular load control.
+ *
+ * @author Guichaguri
+ */
+public class LiveLoadControl implements LoadControl {
+
+    private final LoadControl control;
+    private final long liveBufferUs;
+
+    // Changed by the app thread, read by the playback thread
+    private volatile boolean live = false;
+
+    /**
+     * @param liveBufferMs The buffer needed to start playing a live stream, doubled after a rebuffer
+     */
+    public LiveLoadControl(LoadControl control, long liveBufferMs) {
+        this.control = control;
+        this.liveBufferUs = liveBufferMs * 1000;
+    }
+
+    /**
+     * Sets whether the current track is a live stream
+     */
+    public void setLive(boolean live) {
+        this.live = live;
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, float playbackSpeed, boolean rebuffering) {
+        if(live) {
+            long bufferedUs = Util.getPlayoutDurationForMediaDuration(bufferedDurationUs, playbackSpeed);
+            if(bufferedUs >= (rebuffering ? liveBufferUs * 2 : liveBufferUs)) return true;
+        }
+
+        return control.shouldStartPlayback(bufferedDurationUs, playbackSpeed, rebuffering);
+    }
+
+    @Override
+    public boolean shouldContinueLoading(long bufferedDurationUs, float playbackSpeed) {
+        return control.shouldContinueLoading(bufferedDurationUs, playbackSpeed);
+    }
+
+    @Override
+    public void onPrepared() {
+        control.onPrepared();
+    }
+
+    @Override
+    public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+        control.onTracksSelected(renderers, trackGroups, trackSelections);
+    }
+
+    @Override
+    public void onStopped() {
+        control.onStopped();
+    }
+
+    @Override
+    public void onReleased() {
+        control.onReleased();
+    }
+
+    @Override
+    public Allocator getAllocator() {
+        return control.getAllocator();
+    }
+
+    @Override
+    public long getBackBufferDurationUs() {
+        return control.getBackBufferDurationUs();
+    }
+
+    @Override
+    public boolean retainBackBufferFromKeyframe() {
+        return control.retainBackBufferFromKeyframe();
+    }
+
+}
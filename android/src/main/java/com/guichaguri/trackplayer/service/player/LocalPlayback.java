@@ -1,25 +1,38 @@
 package com.guichaguri.trackplayer.service.player;
 
 import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
+import androidx.annotation.NonNull;
 import com.facebook.react.bridge.Promise;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.SimpleExoPlayer;
-import com.google.android.exoplayer2.database.DatabaseProvider;
-import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.audio.SonicAudioProcessor;
+import com.google.android.exoplayer2.metadata.Metadata;
 import com.google.android.exoplayer2.source.ConcatenatingMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
 import com.google.android.exoplayer2.upstream.DataSource;
-import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
-import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
-import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
-import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
 import com.guichaguri.trackplayer.service.MusicManager;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.audio.AudioRenderersFactory;
+import com.guichaguri.trackplayer.service.audio.EqualizerProcessor;
+import com.guichaguri.trackplayer.service.audio.LoudnessNormalizer;
+import com.guichaguri.trackplayer.service.audio.TimeStretchProcessor;
+import com.guichaguri.trackplayer.service.audio.Visualizer;
+import com.guichaguri.trackplayer.service.audio.WaveformExtractor;
+import com.guichaguri.trackplayer.service.models.EqualizerSettings;
+import com.guichaguri.trackplayer.service.models.FadeCurve;
+import com.guichaguri.trackplayer.service.models.PitchAlgorithm;
 import com.guichaguri.trackplayer.service.models.Track;
-import java.io.File;
+import com.guichaguri.trackplayer.service.session.SessionJournal;
 import java.util.*;
 
 /**
@@ -27,37 +40,112 @@ import java.util.*;
  */
 public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
 
-    private final long cacheMaxSize;
+    private static final long RATE_RAMP_MS = 250;
+    private static final long CHECKPOINT_INTERVAL_MS = 5000;
+    private static final int PREFETCH_MANIFESTS = 2;
+
+    private final AudioRenderersFactory renderers;
 
-    private SimpleCache cache;
     private ConcatenatingMediaSource source;
     private boolean prepared = false;
 
-    public LocalPlayback(Context context, MusicManager manager, SimpleExoPlayer player, long maxCacheSize,
+    private CrossfadeController crossfade;
+    private LoudnessNormalizer normalizer;
+    private SilenceTrimmer trimmer;
+    private Visualizer visualizer;
+    private WaveformExtractor waveforms;
+    private SessionJournal journal;
+    private AdaptiveBitrate.Selection adaptiveBitrate;
+    private LiveLoadControl liveLoadControl;
+    private LiveErrorPolicy liveErrorPolicy;
+
+    private final Runnable checkpoint = this::checkpoint;
+    private long skippedFramesBaseline = 0;
+    private float volume = 1.0F;
+    private float rate = 1.0F;
+    private boolean memoryMapping = false;
+
+    public LocalPlayback(Context context, MusicManager manager, SimpleExoPlayer player, AudioRenderersFactory renderers,
                          boolean autoUpdateMetadata) {
         super(context, manager, player, autoUpdateMetadata);
-        this.cacheMaxSize = maxCacheSize;
+        this.renderers = renderers;
+    }
+
+    /**
+     * Enables overlapping transitions between tracks
+     * @param duration The crossfade duration in milliseconds, 0 disables it
+     * @param curve The curve used for both fading in and out
+     */
+    public void setCrossfade(long duration, FadeCurve curve) {
+        if(crossfade != null) crossfade.destroy();
+
+        crossfade = duration > 0 ? new CrossfadeController(this, manager, player, duration, curve) : null;
+    }
+
+    public void setLoudnessNormalizer(LoudnessNormalizer normalizer) {
+        this.normalizer = normalizer;
+    }
+
+    public void setSilenceTrimmer(SilenceTrimmer trimmer) {
+        this.trimmer = trimmer;
+    }
+
+    /**
+     * Reads local files through memory mapping instead of read calls
+     */
+    public void setMemoryMapping(boolean memoryMapping) {
+        this.memoryMapping = memoryMapping;
+    }
+
+    public boolean isMemoryMapping() {
+        return memoryMapping;
+    }
+
+    public void setLiveLoadControl(LiveLoadControl liveLoadControl) {
+        this.liveLoadControl = liveLoadControl;
+    }
+
+    public LiveErrorPolicy getLiveErrorPolicy() {
+        if(liveErrorPolicy == null) liveErrorPolicy = new LiveErrorPolicy(manager.getMetrics());
+        return liveErrorPolicy;
+    }
+
+    public void setAdaptiveBitrate(AdaptiveBitrate.Selection adaptiveBitrate) {
+        this.adaptiveBitrate = adaptiveBitrate;
+    }
+
+    public void setVisualizer(Visualizer visualizer) {
+        this.visualizer = visualizer;
+    }
+
+    /**
+     * Records every queue mutation and the position into the journal, so the session can be restored
+     */
+    public void setJournal(SessionJournal journal) {
+        this.journal = journal;
     }
 
     @Override
     public void initialize() {
-        if(cacheMaxSize > 0) {
-            File cacheDir = new File(context.getCacheDir(), "TrackPlayer");
-            DatabaseProvider db = new ExoDatabaseProvider(context);
-            cache = new SimpleCache(cacheDir, new LeastRecentlyUsedCacheEvictor(cacheMaxSize), db);
-        } else {
-            cache = null;
-        }
-
         super.initialize();
 
+        if(crossfade != null) crossfade.initialize();
+        if(trimmer != null) trimmer.initialize();
+
         resetQueue();
     }
 
-    public DataSource.Factory enableCaching(DataSource.Factory ds) {
-        if(cache == null || cacheMaxSize <= 0) return ds;
+    public ResourcePool getResourcePool() {
+        return manager.getResourcePool();
+    }
 
-        return new CacheDataSourceFactory(cache, ds, CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+    public ManifestCache getManifestCache() {
+        return manager.getManifestCache();
+    }
+
+    public DataSource.Factory enableCaching(DataSource.Factory ds) {
+        MediaCache cache = manager.getCache();
+        return cache == null ? ds : cache.wrap(ds);
     }
 
     private void prepare() {
@@ -71,9 +159,12 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
     @Override
     public void add(Track track, int index, Promise promise) {
         queue.add(index, track);
+        invalidateQueueIndex();
         MediaSource trackSource = track.toMediaSource(context, this);
         source.addMediaSource(index, trackSource, manager.getHandler(), () -> promise.resolve(index));
 
+        if(journal != null) journal.add(Collections.singletonList(track.originalItem), index);
+
         prepare();
     }
 
@@ -86,8 +177,11 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
         }
 
         queue.addAll(index, tracks);
+        invalidateQueueIndex();
         source.addMediaSources(index, trackList, manager.getHandler(), () -> promise.resolve(index));
 
+        if(journal != null) journal.add(toBundles(tracks), index);
+
         prepare();
     }
 
@@ -97,6 +191,7 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
 
         // Sort the list so we can loop through sequentially
         Collections.sort(indexes);
+        List<Integer> removed = new ArrayList<>();
 
         for(int i = indexes.size() - 1; i >= 0; i--) {
             int index = indexes.get(i);
@@ -109,6 +204,7 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
             }
 
             queue.remove(index);
+            removed.add(index);
 
             if(i == 0) {
                 source.removeMediaSource(index, manager.getHandler(), Utils.toRunnable(promise));
@@ -121,6 +217,9 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
                 lastKnownWindow--;
             }
         }
+
+        if(!removed.isEmpty()) invalidateQueueIndex();
+        if(journal != null && !removed.isEmpty()) journal.remove(removed);
     }
 
     @Override
@@ -132,6 +231,9 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
             queue.remove(i);
             source.removeMediaSource(i);
         }
+
+        invalidateQueueIndex();
+        if(journal != null) journal.removeUpcoming(currentIndex + 1);
     }
 
     @Override
@@ -145,6 +247,7 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
 
     private void resetQueue() {
         queue.clear();
+        invalidateQueueIndex();
 
         source = new ConcatenatingMediaSource();
         player.prepare(source, true, true);
@@ -153,7 +256,106 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
         lastKnownWindow = C.INDEX_UNSET;
         lastKnownPosition = C.POSITION_UNSET;
 
-        manager.onReset();
+        if(journal != null) journal.reset();
+
+        manager.onReset(this);
+    }
+
+    /**
+     * Loads a previous session, without recording it again as new mutations
+     * @param tracks The queue
+     * @param window The index of the current track
+     * @param position The position of the current track in milliseconds
+     */
+    public void restore(List<Track> tracks, int window, long position) {
+        List<MediaSource> trackList = new ArrayList<>(tracks.size());
+
+        for(Track track : tracks) {
+            trackList.add(track.toMediaSource(context, this));
+        }
+
+        queue.addAll(tracks);
+        invalidateQueueIndex();
+        source.addMediaSources(trackList, manager.getHandler(), () -> {
+            if(window >= 0 && window < queue.size()) player.seekTo(window, position);
+        });
+
+        prepare();
+
+        if(journal != null) journal.snapshot(toBundles(tracks), window, position);
+    }
+
+    private static List<Bundle> toBundles(Collection<Track> tracks) {
+        List<Bundle> bundles = new ArrayList<>(tracks.size());
+        for(Track track : tracks) bundles.add(track.originalItem);
+        return bundles;
+    }
+
+    private void checkpoint() {
+        Handler handler = manager.getHandler();
+        if(handler != null) handler.removeCallbacks(checkpoint);
+
+        if(journal == null) return;
+
+        int window = player.getCurrentWindowIndex();
+        if(window != C.INDEX_UNSET) journal.checkpoint(window, player.getCurrentPosition());
+
+        if(handler != null && player.getPlayWhenReady()) handler.postDelayed(checkpoint, CHECKPOINT_INTERVAL_MS);
+    }
+
+    /**
+     * Moves to the next track without any other side effect, used by transitions started natively
+     */
+    void skipToNextTrack() {
+        int next = player.getNextWindowIndex();
+        if(next != C.INDEX_UNSET) skipTo(next, C.TIME_UNSET);
+    }
+
+    /**
+     * Moves to a position without any other side effect, used by transitions started natively
+     * @param position The position in milliseconds or {@link C#TIME_UNSET} for the default position
+     */
+    void skipTo(int window, long position) {
+        lastKnownWindow = player.getCurrentWindowIndex();
+        lastKnownPosition = player.getCurrentPosition();
+
+        player.seekTo(window, position);
+    }
+
+    void setFadeGain(float gain) {
+        player.setVolume(gain);
+    }
+
+    boolean isCrossfading() {
+        return crossfade != null && crossfade.isFading();
+    }
+
+    /**
+     * Gets where the sound of a track starts, after the silence trimmed at its beginning
+     */
+    long getIntroEnd(Track track) {
+        return trimmer == null ? 0 : trimmer.getIntroEnd(track);
+    }
+
+    /**
+     * Gets where the current track ends, before the silence trimmed at its end
+     */
+    long getAudibleEnd() {
+        long duration = player.getDuration();
+        long outro = trimmer == null ? C.TIME_UNSET : trimmer.getOutroStart();
+
+        return outro != C.TIME_UNSET && (duration == C.TIME_UNSET || outro < duration) ? outro : duration;
+    }
+
+    AudioRenderersFactory getRenderers() {
+        return renderers;
+    }
+
+    /**
+     * Gets the normalization gain already known for a track, used by the crossfade player
+     */
+    float getLoudnessGain(Track track) {
+        return normalizer == null ? 1 : normalizer.getGain(track);
     }
 
     @Override
@@ -162,14 +364,22 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
         super.play();
     }
 
+    @Override
+    public void pause() {
+        if(crossfade != null) crossfade.cancel();
+        super.pause();
+    }
+
     @Override
     public void stop() {
+        if(crossfade != null) crossfade.cancel();
         super.stop();
         prepared = false;
     }
 
     @Override
     public void seekTo(long time) {
+        if(crossfade != null) crossfade.cancel();
         prepare();
         super.seekTo(time);
     }
@@ -179,20 +389,101 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
         Integer track = getCurrentTrackIndex();
         long position = player.getCurrentPosition();
 
+        if(crossfade != null) crossfade.cancel();
         super.reset();
         resetQueue();
 
-        manager.onTrackUpdate(track, position, null, null);
+        manager.onTrackUpdate(this, track, position, null, null);
     }
 
     @Override
     public float getPlayerVolume() {
-        return player.getVolume();
+        return volume;
     }
 
     @Override
     public void setPlayerVolume(float volume) {
-        player.setVolume(volume);
+        this.volume = volume;
+        renderers.getVolumeProcessor().setGain(volume);
+    }
+
+    @Override
+    public void fadeTo(float volume, long duration, FadeCurve curve) {
+        this.volume = volume * volumeMultiplier;
+        renderers.getVolumeProcessor().rampTo(this.volume, duration, curve);
+    }
+
+    @Override
+    public void fadeVolumeMultiplier(float multiplier, long duration) {
+        this.volume = getVolume() * multiplier;
+        this.volumeMultiplier = multiplier;
+        renderers.getVolumeProcessor().rampTo(this.volume, duration, FadeCurve.EQUAL_POWER);
+    }
+
+    @Override
+    public float getRate() {
+        return rate;
+    }
+
+    @Override
+    public void setRate(float rate) {
+        rampRate(rate, RATE_RAMP_MS);
+    }
+
+    @Override
+    public void rampRate(float rate, long duration) {
+        // Stores the speed that will really be applied
+        if(renderers.getTimeStretchProcessor() != null) {
+            rate = Util.constrainValue(rate, TimeStretchProcessor.MIN_SPEED, TimeStretchProcessor.MAX_SPEED);
+        } else {
+            rate = Util.constrainValue(rate, SonicAudioProcessor.MINIMUM_SPEED, SonicAudioProcessor.MAXIMUM_SPEED);
+        }
+
+        this.rate = rate;
+        renderers.setRateRampDuration(duration);
+        super.setRate(rate);
+    }
+
+    @Override
+    public boolean setEqualizer(EqualizerSettings settings) {
+        EqualizerProcessor equalizer = renderers.getEqualizer();
+        if(equalizer == null) return false;
+
+        equalizer.setSettings(settings);
+        return true;
+    }
+
+    @Override
+    public boolean setVisualizer(boolean enabled, int bands, int fps) {
+        if(visualizer == null) return false;
+
+        if(enabled) {
+            visualizer.start(bands, fps);
+        } else {
+            visualizer.stop();
+        }
+        return true;
+    }
+
+    @Override
+    public void getWaveform(int index, int buckets, Promise promise) {
+        if(index < 0 || index >= queue.size()) {
+            promise.reject("index_out_of_bounds", "The index is out of bounds");
+            return;
+        }
+
+        Track track = queue.get(index);
+        DataSource.Factory ds = track.resourceId == 0 ? track.createDataSourceFactory(context, this) : null;
+
+        if(waveforms == null) waveforms = new WaveformExtractor(context);
+        waveforms.getWaveform(track, ds, buckets, promise);
+    }
+
+    @Override
+    public void updateTrack(int index, Track track) {
+        super.updateTrack(index, track);
+
+        if(journal != null) journal.update(index, track.originalItem);
     }
 
     @Override
@@ -202,6 +493,79 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
         }
 
         super.onPlayerStateChanged(playWhenReady, playbackState);
+        checkpoint();
+    }
+
+    @Override
+    public long getSkippedSilence() {
+        long trimmed = trimmer == null ? 0 : trimmer.getTrimmedDuration();
+        long frames = renderers.getSkippedSilenceFrames();
+        Format format = player.getAudioFormat();
+
+        // The counter is reset when the audio sink is flushed
+        if(frames < skippedFramesBaseline) skippedFramesBaseline = 0;
+
+        if(format == null || format.sampleRate <= 0) return trimmed;
+
+        return trimmed + (frames - skippedFramesBaseline) * 1000 / format.sampleRate;
+    }
+
+    @Override
+    public void onPositionDiscontinuity(int reason) {
+        boolean changed = player.getCurrentWindowIndex() != lastKnownWindow;
+
+        if(changed) {
+            skippedFramesBaseline = renderers.getSkippedSilenceFrames();
+
+            Track track = getCurrentTrack();
+            if(liveLoadControl != null) liveLoadControl.setLive(track != null && track.isLiveStream);
+        }
+
+        super.onPositionDiscontinuity(reason);
+        checkpoint();
+
+        if(changed) prefetchManifests();
+    }
+
+    /**
+     * Loads the manifests of the upcoming adaptive tracks, so they start without a manifest round-trip
+     */
+    private void prefetchManifests() {
+        int index = player.getCurrentWindowIndex();
+        if(index == C.INDEX_UNSET) return;
+
+        for(int i = index + 1; i < queue.size() && i <= index + PREFETCH_MANIFESTS; i++) {
+            queue.get(i).prefetchManifest(context, this);
+        }
+    }
+
+    @Override
+    public void onTracksChanged(TrackGroupArray trackGroups, @NonNull TrackSelectionArray trackSelections) {
+        super.onTracksChanged(trackGroups, trackSelections);
+
+        TimeStretchProcessor stretch = renderers.getTimeStretchProcessor();
+        Track track = getCurrentTrack();
+
+        if(stretch != null && track != null) {
+            stretch.setProfile(track.pitchAlgorithm == PitchAlgorithm.VOICE ?
+                    TimeStretchProcessor.Profile.SPEECH : TimeStretchProcessor.Profile.MUSIC);
+        }
+
+        if(normalizer == null) return;
+
+        float tagGain = Float.NaN;
+
+        for(int i = 0; i < trackGroups.length && Float.isNaN(tagGain); i++) {
+            TrackGroup group = trackGroups.get(i);
+
+            for(int f = 0; f < group.length && Float.isNaN(tagGain); f++) {
+                Metadata metadata = group.getFormat(f).metadata;
+                if(metadata != null) tagGain = SourceMetadata.getReplayGain(metadata);
+            }
+        }
+
+        int next = player.getNextWindowIndex();
+        normalizer.onTrackChanged(track, tagGain, next >= 0 && next < queue.size() ? queue.get(next) : null);
     }
 
     @Override
@@ -212,16 +576,18 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
 
     @Override
     public void destroy() {
-        super.destroy();
+        checkpoint();
 
-        if(cache != null) {
-            try {
-                cache.release();
-                cache = null;
-            } catch(Exception ex) {
-                Log.w(Utils.LOG, "Couldn't release the cache properly", ex);
-            }
-        }
+        Handler handler = manager.getHandler();
+        if(handler != null) handler.removeCallbacks(checkpoint);
+
+        if(crossfade != null) crossfade.destroy();
+        if(normalizer != null) normalizer.destroy();
+        if(trimmer != null) trimmer.destroy();
+        if(visualizer != null) visualizer.destroy();
+        if(waveforms != null) waveforms.destroy();
+        if(adaptiveBitrate != null) adaptiveBitrate.release();
+        super.destroy();
     }
 
 }
@@ -0,0 +1,294 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParser;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-memory cache of the HLS, DASH and SmoothStreaming manifests, shared by every track and player.
+ *
+ * Manifests are served from memory while they are fresh, and revalidated with their ETag or Last-Modified
+ * date once they expire. Live manifests change on every refresh, so they are never cached.
+ * The manifests of upcoming tracks can be prefetched, so they start without a manifest round-trip.
+ *
+ * @author Guichaguri
+ */
+public class ManifestCache {
+
+    public static final long DEFAULT_TTL_MS = 300000;
+
+    private static final int MAX_ENTRIES = 64;
+
+    // The amount of media playlists prefetched from an HLS master playlist
+    private static final int MAX_PREFETCH_PLAYLISTS = 2;
+
+    private static class Entry {
+        byte[] data;
+        Uri uri;
+        String etag;
+        String lastModified;
+        long fetched;
+    }
+
+    // The cached manifests, ordered from the least recently used
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private volatile long ttl = DEFAULT_TTL_MS;
+
+    /**
+     * @param ttl How long manifests are served without revalidation, in milliseconds. 0 always revalidates
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Wraps the data sources used to load manifests, so they go through this cache.
+     * The upstream should be the network, without the media cache.
+     */
+    public DataSource.Factory wrap(DataSource.Factory upstream) {
+        return () -> new Source(upstream.createDataSource());
+    }
+
+    /**
+     * Loads a manifest in the background, unless it's already fresh
+     * @param hls Whether it's an HLS playlist, which also prefetches its first media playlists
+     */
+    public void prefetch(Uri uri, DataSource.Factory upstream, boolean hls) {
+        executor.execute(() -> {
+            try {
+                byte[] data = load(uri, upstream);
+                if(hls) prefetchPlaylists(uri, data, upstream);
+            } catch(Exception ex) {
+                Log.w(Utils.LOG, "Couldn't prefetch the manifest " + uri, ex);
+            }
+        });
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public void release() {
+        executor.shutdownNow();
+        clear();
+    }
+
+    private void prefetchPlaylists(Uri uri, byte[] data, DataSource.Factory upstream) throws IOException {
+        HlsPlaylist playlist = new HlsPlaylistParser().parse(uri, new ByteArrayInputStream(data));
+        if(!(playlist instanceof HlsMasterPlaylist)) return;
+
+        List<Uri> urls = ((HlsMasterPlaylist)playlist).mediaPlaylistUrls;
+
+        for(int i = 0; i < urls.size() && i < MAX_PREFETCH_PLAYLISTS; i++) {
+            load(urls.get(i), upstream);
+        }
+    }
+
+    private byte[] load(Uri uri, DataSource.Factory upstream) throws IOException {
+        Source source = new Source(upstream.createDataSource());
+
+        try {
+            source.open(new DataSpec(uri));
+            return source.data;
+        } finally {
+            source.close();
+        }
+    }
+
+    @Nullable
+    private synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    private synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Whether the manifest won't change while it's being played
+     */
+    private static boolean isCacheable(byte[] data) {
+        String text = new String(data, StandardCharsets.UTF_8);
+
+        if(text.contains("#EXTM3U")) {
+            // Master playlists and ended media playlists
+            return text.contains("#EXT-X-STREAM-INF") || text.contains("#EXT-X-ENDLIST");
+        } else if(text.contains("<MPD")) {
+            return !text.contains("type=\"dynamic\"");
+        } else if(text.contains("<SmoothStreamingMedia")) {
+            return !text.toLowerCase(Locale.US).contains("islive=\"true\"");
+        }
+
+        return true;
+    }
+
+    @Nullable
+    private static String getHeader(Map<String, List<String>> headers, String name) {
+        for(Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if(name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the whole manifest when opened, either from memory or from the upstream
+     */
+    private class Source implements DataSource {
+
+        private final DataSource upstream;
+        private boolean upstreamOpened = false;
+        private boolean passthrough = false;
+
+        private Uri uri;
+        private byte[] data;
+        private int position;
+
+        private Source(DataSource upstream) {
+            this.upstream = upstream;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            upstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            // Partial requests are not cached
+            if(dataSpec.position != 0 || dataSpec.length != C.LENGTH_UNSET) {
+                passthrough = true;
+                return upstream.open(dataSpec);
+            }
+
+            String key = dataSpec.uri.toString();
+            Entry entry = get(key);
+            long now = SystemClock.elapsedRealtime();
+
+            if(entry != null && now - entry.fetched < ttl) {
+                return serve(entry);
+            }
+
+            Map<String, String> headers = new HashMap<>(dataSpec.httpRequestHeaders);
+
+            if(entry != null) {
+                if(entry.etag != null) headers.put("If-None-Match", entry.etag);
+                if(entry.lastModified != null) headers.put("If-Modified-Since", entry.lastModified);
+            }
+
+            DataSpec spec = new DataSpec(dataSpec.uri, dataSpec.httpMethod, dataSpec.httpBody,
+                    dataSpec.absoluteStreamPosition, dataSpec.position, dataSpec.length, dataSpec.key,
+                    dataSpec.flags, headers);
+
+            try {
+                upstreamOpened = true;
+                upstream.open(spec);
+            } catch(HttpDataSource.InvalidResponseCodeException ex) {
+                if(entry == null || ex.responseCode != 304) throw ex;
+
+                // Not modified, the cached manifest is fresh again
+                entry.fetched = now;
+                put(key, entry);
+                return serve(entry);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+
+            while((read = upstream.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                out.write(buffer, 0, read);
+            }
+
+            Entry fetched = new Entry();
+            fetched.data = out.toByteArray();
+            fetched.uri = upstream.getUri() != null ? upstream.getUri() : dataSpec.uri;
+            fetched.etag = getHeader(upstream.getResponseHeaders(), "ETag");
+            fetched.lastModified = getHeader(upstream.getResponseHeaders(), "Last-Modified");
+            fetched.fetched = now;
+
+            if(isCacheable(fetched.data)) {
+                put(key, fetched);
+            } else {
+                remove(key);
+            }
+
+            return serve(fetched);
+        }
+
+        private long serve(Entry entry) {
+            uri = entry.uri;
+            data = entry.data;
+            position = 0;
+            return data.length;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if(passthrough) return upstream.read(buffer, offset, readLength);
+
+            if(readLength == 0) return 0;
+            if(position >= data.length) return C.RESULT_END_OF_INPUT;
+
+            int length = Math.min(readLength, data.length - position);
+            System.arraycopy(data, position, buffer, offset, length);
+            position += length;
+
+            return length;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return passthrough ? upstream.getUri() : uri;
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return passthrough || upstreamOpened ? upstream.getResponseHeaders() : Collections.emptyMap();
+        }
+
+        @Override
+        public void close() throws IOException {
+            uri = null;
+
+            if(passthrough || upstreamOpened) {
+                passthrough = false;
+                upstreamOpened = false;
+                upstream.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads local files through memory mapped windows instead of read calls.
+ *
+ * The extractors read straight from the page cache, without a system call per read, and seeking only moves
+ * a position. Windows are aligned to {@link #WINDOW_SIZE}, so sequential reads only remap once per window.
+ * Only file paths are supported, content URIs have to use a regular data source.
+ *
+ * @author Guichaguri
+ */
+public class MappedFileDataSource extends BaseDataSource {
+
+    private static final long WINDOW_SIZE = 32 * 1024 * 1024;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private Uri uri;
+    private long position;
+    private long end;
+    private boolean opened = false;
+
+    public MappedFileDataSource() {
+        super(false);
+    }
+
+    /**
+     * Whether the uri can be mapped
+     */
+    public static boolean isSupported(@Nullable Uri uri) {
+        if(uri == null || uri.getPath() == null) return false;
+
+        String scheme = uri.getScheme();
+        return scheme == null || scheme.equals("file");
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        uri = dataSpec.uri;
+        transferInitializing(dataSpec);
+
+        file = new RandomAccessFile(uri.getPath(), "r");
+        channel = file.getChannel();
+
+        long size = channel.size();
+        if(dataSpec.position > size) throw new EOFException();
+
+        long length = dataSpec.length == C.LENGTH_UNSET ? size - dataSpec.position : dataSpec.length;
+        if(dataSpec.position + length > size) throw new EOFException();
+
+        position = dataSpec.position;
+        end = position + length;
+        window = null;
+
+        opened = true;
+        transferStarted(dataSpec);
+
+        return length;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if(readLength == 0) return 0;
+        if(position >= end) return C.RESULT_END_OF_INPUT;
+
+        if(window == null || position < windowStart || position >= windowStart + window.capacity()) {
+            map(position);
+        }
+
+        int windowOffset = (int)(position - windowStart);
+        int length = (int)Math.min(Math.min(readLength, end - position), window.capacity() - windowOffset);
+
+        window.position(windowOffset);
+        window.get(buffer, offset, length);
+
+        position += length;
+        bytesTransferred(length);
+
+        return length;
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start - start % WINDOW_SIZE;
+
+        long size = Math.min(WINDOW_SIZE, channel.size() - windowStart);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return uri;
+    }
+
+    @Override
+    public void close() throws IOException {
+        uri = null;
+
+        // The mapping is released once the buffer is collected
+        window = null;
+
+        try {
+            if(file != null) file.close();
+        } finally {
+            file = null;
+            channel = null;
+
+            if(opened) {
+                opened = false;
+                transferEnded();
+            }
+        }
+    }
+
+}
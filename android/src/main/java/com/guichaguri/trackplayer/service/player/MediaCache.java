@@ -0,0 +1,110 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.core.os.TraceCompat;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.guichaguri.trackplayer.service.Metrics;
+import com.guichaguri.trackplayer.service.MusicManager;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The disk cache shared by the players, opened in the background.
+ *
+ * Loading the index of a large cache can take a while, so it never blocks the player thread.
+ * Until the cache is ready, data sources simply read from the network.
+ *
+ * @author Guichaguri
+ */
+public class MediaCache {
+
+    private static final String DIRECTORY = "TrackPlayer";
+
+    // Opens and releases caches in order, as a folder can only be used by one cache at a time
+    private static final ExecutorService executor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+
+    private final Context context;
+    private final MusicManager manager;
+    private final long maxSize;
+
+    private volatile SimpleCache cache;
+
+    public MediaCache(Context context, MusicManager manager, long maxSize) {
+        this.context = context.getApplicationContext();
+        this.manager = manager;
+        this.maxSize = maxSize;
+    }
+
+    public void open() {
+        executor.execute(this::load);
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isReady() {
+        return cache != null;
+    }
+
+    /**
+     * Wraps the data sources so they go through the cache once it's ready
+     */
+    public DataSource.Factory wrap(DataSource.Factory upstream) {
+        return () -> {
+            SimpleCache cache = this.cache;
+            if(cache == null) return upstream.createDataSource();
+
+            return new CacheDataSource(cache, upstream.createDataSource(), CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+        };
+    }
+
+    public void release() {
+        executor.execute(() -> {
+            SimpleCache cache = this.cache;
+            if(cache == null) return;
+
+            this.cache = null;
+
+            try {
+                cache.release();
+            } catch(Exception ex) {
+                Log.w(Utils.LOG, "Couldn't release the cache properly", ex);
+            }
+        });
+    }
+
+    private void load() {
+        TraceCompat.beginSection("TrackPlayer.openCache");
+        long start = SystemClock.elapsedRealtime();
+
+        try {
+            File directory = new File(context.getCacheDir(), DIRECTORY);
+            SimpleCache cache = new SimpleCache(directory, new LeastRecentlyUsedCacheEvictor(maxSize),
+                    new ExoDatabaseProvider(context));
+
+            // The index is loaded by a thread of its own, this waits for it to finish
+            cache.getCacheSpace();
+
+            this.cache = cache;
+            manager.getMetrics().record(Metrics.CACHE_OPEN, SystemClock.elapsedRealtime() - start);
+        } catch(Exception ex) {
+            Log.w(Utils.LOG, "Couldn't open the cache, playing without it", ex);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+}
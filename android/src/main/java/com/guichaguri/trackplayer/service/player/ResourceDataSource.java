@@ -0,0 +1,99 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads bundled resources through a {@link ResourcePool}.
+ *
+ * Unlike a pre-opened RawResourceDataSource, nothing is opened until the track is actually loaded,
+ * and each load gets its own source, so the same resource can be read concurrently.
+ *
+ * @author Guichaguri
+ */
+public class ResourceDataSource extends BaseDataSource {
+
+    private final ResourcePool pool;
+
+    private ResourcePool.Resource resource;
+    private Uri uri;
+    private long position;
+    private long bytesRemaining;
+    private boolean opened = false;
+
+    public ResourceDataSource(ResourcePool pool) {
+        super(false);
+        this.pool = pool;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        uri = dataSpec.uri;
+        transferInitializing(dataSpec);
+
+        int id;
+
+        try {
+            id = Integer.parseInt(uri.getLastPathSegment());
+        } catch(NumberFormatException | NullPointerException ex) {
+            throw new IOException("Invalid resource uri " + uri, ex);
+        }
+
+        resource = pool.acquire(id);
+
+        long length = resource.getLength();
+        if(dataSpec.position > length) throw new EOFException();
+
+        position = dataSpec.position;
+        bytesRemaining = dataSpec.length == C.LENGTH_UNSET ? length - position : dataSpec.length;
+        if(position + bytesRemaining > length) throw new EOFException();
+
+        opened = true;
+        transferStarted(dataSpec);
+
+        return bytesRemaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if(readLength == 0) return 0;
+        if(bytesRemaining == 0) return C.RESULT_END_OF_INPUT;
+
+        int read = resource.read(position, buffer, offset, (int)Math.min(readLength, bytesRemaining));
+        if(read == -1) throw new EOFException();
+
+        position += read;
+        bytesRemaining -= read;
+        bytesTransferred(read);
+
+        return read;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return uri;
+    }
+
+    @Override
+    public void close() {
+        uri = null;
+
+        if(resource != null) {
+            pool.release(resource);
+            resource = null;
+        }
+
+        if(opened) {
+            opened = false;
+            transferEnded();
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the file descriptors of the bundled resources open, so they are shared between tracks and loads.
+ *
+ * The least recently used descriptors are closed once more than the limit are open.
+ * Descriptors still being read are never closed, they are only closed after being released.
+ *
+ * @author Guichaguri
+ */
+public class ResourcePool {
+
+    public static final int DEFAULT_MAX_OPEN = 16;
+
+    /**
+     * An open resource. Reads are positional, so it can be read by multiple loaders at the same time
+     */
+    public static class Resource {
+        private final int id;
+        private final AssetFileDescriptor fd;
+        private final FileInputStream stream;
+        private final FileChannel channel;
+        private int references = 0;
+
+        private Resource(int id, AssetFileDescriptor fd) {
+            this.id = id;
+            this.fd = fd;
+            this.stream = new FileInputStream(fd.getFileDescriptor());
+            this.channel = stream.getChannel();
+        }
+
+        public long getLength() throws IOException {
+            long length = fd.getLength();
+            return length == AssetFileDescriptor.UNKNOWN_LENGTH ? channel.size() - fd.getStartOffset() : length;
+        }
+
+        /**
+         * Reads from a position relative to the start of the resource
+         * @return The amount of bytes read or -1 if the end of the file was reached
+         */
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            return channel.read(ByteBuffer.wrap(buffer, offset, length), fd.getStartOffset() + position);
+        }
+
+        private void close() {
+            try {
+                stream.close();
+                fd.close();
+            } catch(IOException ex) {
+                // Nothing else to be done
+            }
+        }
+    }
+
+    private final Context context;
+    private final int maxOpen;
+
+    // The open resources, ordered from the least recently used
+    private final LinkedHashMap<Integer, Resource> resources = new LinkedHashMap<>(16, 0.75F, true);
+    private boolean released = false;
+
+    public ResourcePool(Context context, int maxOpen) {
+        this.context = context.getApplicationContext();
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Opens a resource or reuses the one already open. It has to be released after being used
+     */
+    public synchronized Resource acquire(int id) throws IOException {
+        if(released) throw new IOException("The resource pool was released");
+
+        Resource resource = resources.get(id);
+
+        if(resource == null) {
+            AssetFileDescriptor fd;
+
+            try {
+                fd = context.getResources().openRawResourceFd(id);
+            } catch(Resources.NotFoundException ex) {
+                throw new IOException("The resource " + id + " couldn't be opened", ex);
+            }
+
+            // Compressed resources can't be opened as a descriptor
+            if(fd == null) throw new IOException("The resource " + id + " is compressed");
+
+            resource = new Resource(id, fd);
+            resources.put(id, resource);
+            trim();
+        }
+
+        resource.references++;
+        return resource;
+    }
+
+    public synchronized void release(Resource resource) {
+        resource.references--;
+
+        if(resource.references <= 0 && resources.get(resource.id) != resource) {
+            // The resource was evicted or the pool was released while it was being read
+            resource.close();
+        } else {
+            trim();
+        }
+    }
+
+    /**
+     * Closes every resource that is not being read, the remaining ones are closed once released
+     */
+    public synchronized void release() {
+        released = true;
+
+        for(Resource resource : resources.values()) {
+            if(resource.references <= 0) resource.close();
+        }
+
+        resources.clear();
+    }
+
+    private void trim() {
+        Iterator<Resource> it = resources.values().iterator();
+
+        while(resources.size() > maxOpen && it.hasNext()) {
+            Resource resource = it.next();
+            if(resource.references > 0) continue;
+
+            it.remove();
+            resource.close();
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.Handler;
+import androidx.annotation.NonNull;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.guichaguri.trackplayer.service.MusicManager;
+import com.guichaguri.trackplayer.service.audio.SilenceAnalyzer;
+import com.guichaguri.trackplayer.service.audio.SilenceAnalyzer.SilenceMap;
+import com.guichaguri.trackplayer.service.models.Track;
+
+/**
+ * Skips the silence at the beginning and at the end of the tracks, based on their silence map.
+ *
+ * Positions are left untouched: trimming is done by seeking, so the player position
+ * always matches the position in the original file.
+ *
+ * @author Guichaguri
+ */
+public class SilenceTrimmer implements Player.EventListener {
+
+    private static final long CHECK_INTERVAL_MS = 200;
+
+    private final LocalPlayback playback;
+    private final MusicManager manager;
+    private final SimpleExoPlayer player;
+    private final SilenceAnalyzer analyzer;
+
+    private int currentWindow = C.INDEX_UNSET;
+    private SilenceMap map;
+    private long trimmed = 0;
+
+    private final Runnable check = this::check;
+
+    public SilenceTrimmer(LocalPlayback playback, MusicManager manager, SimpleExoPlayer player, SilenceAnalyzer analyzer) {
+        this.playback = playback;
+        this.manager = manager;
+        this.player = player;
+        this.analyzer = analyzer;
+    }
+
+    public void initialize() {
+        player.addListener(this);
+    }
+
+    /**
+     * Gets how much of the current track was trimmed in milliseconds
+     */
+    public long getTrimmedDuration() {
+        return trimmed;
+    }
+
+    /**
+     * Gets where the sound of a track starts, so a crossfade can start it there
+     * @return The position in milliseconds, 0 if it wasn't analysed yet
+     */
+    public long getIntroEnd(Track track) {
+        SilenceMap map = analyzer.get(track);
+        return map == null ? 0 : map.introEnd;
+    }
+
+    /**
+     * Gets where the silence at the end of the current track starts
+     * @return The position in milliseconds or {@link C#TIME_UNSET}
+     */
+    public long getOutroStart() {
+        return map == null ? C.TIME_UNSET : map.outroStart;
+    }
+
+    public void destroy() {
+        player.removeListener(this);
+
+        Handler handler = manager.getHandler();
+        if(handler != null) handler.removeCallbacks(check);
+
+        analyzer.destroy();
+    }
+
+    private void onTrackChanged() {
+        int window = player.getCurrentWindowIndex();
+        if(window == currentWindow) return;
+
+        currentWindow = window;
+        trimmed = 0;
+
+        Track track = playback.getCurrentTrack();
+        map = track == null ? null : analyzer.get(track);
+
+        if(track == null) return;
+
+        if(map == null) {
+            // It will be trimmed next time
+            DataSource.Factory ds = track.resourceId == 0 ? track.createDataSourceFactory(playback.context, playback) : null;
+            analyzer.analyze(track, ds);
+            return;
+        }
+
+        // A crossfade already started the track at the end of the intro
+        if(map.introEnd > 0 && player.getCurrentPosition() < map.introEnd && !playback.isCrossfading()) {
+            trimmed = map.introEnd - player.getCurrentPosition();
+            player.seekTo(map.introEnd);
+        }
+
+        schedule();
+    }
+
+    private void schedule() {
+        Handler handler = manager.getHandler();
+        if(handler == null) return;
+
+        handler.removeCallbacks(check);
+        if(map != null && map.outroStart != C.TIME_UNSET) handler.postDelayed(check, CHECK_INTERVAL_MS);
+    }
+
+    private void check() {
+        if(map == null || map.outroStart == C.TIME_UNSET) return;
+
+        long position = player.getCurrentPosition();
+
+        // A crossfade ends the track at the outro on its own
+        if(player.getPlayWhenReady() && position >= map.outroStart && player.getNextWindowIndex() != C.INDEX_UNSET
+                && !playback.isCrossfading()) {
+            long duration = player.getDuration();
+            if(duration != C.TIME_UNSET) trimmed += duration - position;
+
+            playback.skipToNextTrack();
+            return;
+        }
+
+        schedule();
+    }
+
+    @Override
+    public void onPositionDiscontinuity(int reason) {
+        onTrackChanged();
+    }
+
+    @Override
+    public void onTimelineChanged(@NonNull Timeline timeline, int reason) {
+        if(!timeline.isEmpty()) onTrackChanged();
+    }
+
+    @Override
+    public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+        if(playWhenReady && playbackState == Player.STATE_READY) schedule();
+    }
+
+}
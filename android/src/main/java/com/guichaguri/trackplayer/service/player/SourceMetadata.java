@@ -2,177 +2,310 @@ package com.guichaguri.trackplayer.service.player;
 
 import com.google.android.exoplayer2.extractor.mp4.MdtaMetadataEntry;
 import com.google.android.exoplayer2.metadata.Metadata;
+import com.google.android.exoplayer2.metadata.flac.PictureFrame;
 import com.google.android.exoplayer2.metadata.flac.VorbisComment;
 import com.google.android.exoplayer2.metadata.icy.IcyHeaders;
 import com.google.android.exoplayer2.metadata.icy.IcyInfo;
+import com.google.android.exoplayer2.metadata.id3.ApicFrame;
+import com.google.android.exoplayer2.metadata.id3.ChapterFrame;
+import com.google.android.exoplayer2.metadata.id3.ChapterTocFrame;
 import com.google.android.exoplayer2.metadata.id3.TextInformationFrame;
 import com.google.android.exoplayer2.metadata.id3.UrlLinkFrame;
 import com.guichaguri.trackplayer.service.MusicManager;
-
+import com.guichaguri.trackplayer.service.models.Chapter;
+import com.guichaguri.trackplayer.service.models.Track;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the metadata of the sources and triggers the metadata-received event.
+ *
+ * Every metadata object is read in a single pass over its entries. The last values emitted by each source
+ * are kept until the track changes, so the tags repeated by every format and the ICY titles repeated by
+ * the stream are only emitted once. Embedded pictures and ID3 chapters are attached to the current track.
+ *
+ * @author Guichaguri
+ */
 public class SourceMetadata {
 
+    private static final int FRONT_COVER = 3;
+
     /**
-     * Reads metadata and triggers the metadata-received event
+     * The common tags read from a source
      */
-    public static void handleMetadata(MusicManager manager, Metadata metadata) {
-        handleId3Metadata(manager, metadata);
-        handleIcyMetadata(manager, metadata);
-        handleVorbisCommentMetadata(manager, metadata);
-        handleQuickTimeMetadata(manager, metadata);
+    private static class Tags {
+        String title, url, artist, album, date, genre;
+
+        boolean isEmpty() {
+            return title == null && url == null && artist == null && album == null && date == null && genre == null;
+        }
+
+        private String[] toArray() {
+            return new String[] {title, url, artist, album, date, genre};
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Tags && Arrays.equals(toArray(), ((Tags)o).toArray());
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(toArray());
+        }
+    }
+
+    private final MusicManager manager;
+    private final ExoPlayback playback;
+
+    // The last tags emitted by each source
+    private final Map<String, Tags> lastTags = new HashMap<>();
+
+    public SourceMetadata(MusicManager manager, ExoPlayback playback) {
+        this.manager = manager;
+        this.playback = playback;
     }
 
     /**
-     * ID3 Metadata (MP3)
-     *
-     * https://en.wikipedia.org/wiki/ID3
+     * Reads metadata and triggers the metadata-received event for each source with new tags
      */
-    private static void handleId3Metadata(MusicManager manager, Metadata metadata) {
-        String title = null, url = null, artist = null, album = null, date = null, genre = null;
+    public void handleMetadata(Metadata metadata) {
+        Tags id3 = null, vorbis = null, quicktime = null;
+        byte[] artwork = null;
+        int artworkType = -1;
+        List<ChapterFrame> chapters = null;
+        List<ChapterTocFrame> tocs = null;
 
         for(int i = 0; i < metadata.length(); i++) {
             Metadata.Entry entry = metadata.get(i);
 
-            if (entry instanceof TextInformationFrame) {
-                // ID3 text tag
-                TextInformationFrame id3 = (TextInformationFrame) entry;
-                String id = id3.id.toUpperCase();
-
-                if (id.equals("TIT2") || id.equals("TT2")) {
-                    title = id3.value;
-                } else if (id.equals("TALB") || id.equals("TOAL") || id.equals("TAL")) {
-                    album = id3.value;
-                } else if (id.equals("TOPE") || id.equals("TPE1") || id.equals("TP1")) {
-                    artist = id3.value;
-                } else if (id.equals("TDRC") || id.equals("TOR")) {
-                    date = id3.value;
-                } else if (id.equals("TCON") || id.equals("TCO")) {
-                    genre = id3.value;
+            if(entry instanceof TextInformationFrame || entry instanceof UrlLinkFrame) {
+                if(id3 == null) id3 = new Tags();
+                readId3(id3, entry);
+            } else if(entry instanceof VorbisComment) {
+                if(vorbis == null) vorbis = new Tags();
+                readVorbisComment(vorbis, (VorbisComment)entry);
+            } else if(entry instanceof MdtaMetadataEntry) {
+                if(quicktime == null) quicktime = new Tags();
+                readQuickTime(quicktime, (MdtaMetadataEntry)entry);
+            } else if(entry instanceof IcyHeaders) {
+                dispatch("icy-headers", readIcyHeaders((IcyHeaders)entry));
+            } else if(entry instanceof IcyInfo) {
+                dispatch("icy", readIcyInfo((IcyInfo)entry));
+            } else if(entry instanceof ApicFrame) {
+                // ID3 embedded picture, the front cover is preferred
+                ApicFrame apic = (ApicFrame)entry;
+
+                if(artwork == null || (artworkType != FRONT_COVER && apic.pictureType == FRONT_COVER)) {
+                    artwork = apic.pictureData;
+                    artworkType = apic.pictureType;
                 }
+            } else if(entry instanceof PictureFrame) {
+                // FLAC embedded picture
+                PictureFrame picture = (PictureFrame)entry;
 
-            } else if (entry instanceof UrlLinkFrame) {
-                // ID3 URL tag
-                UrlLinkFrame id3 = (UrlLinkFrame) entry;
-                String id = id3.id.toUpperCase();
-
-                if (id.equals("WOAS") || id.equals("WOAF") || id.equals("WOAR") || id.equals("WAR")) {
-                    url = id3.url;
+                if(artwork == null || (artworkType != FRONT_COVER && picture.pictureType == FRONT_COVER)) {
+                    artwork = picture.pictureData;
+                    artworkType = picture.pictureType;
                 }
-
+            } else if(entry instanceof ChapterFrame) {
+                if(chapters == null) chapters = new ArrayList<>();
+                chapters.add((ChapterFrame)entry);
+            } else if(entry instanceof ChapterTocFrame) {
+                if(tocs == null) tocs = new ArrayList<>();
+                tocs.add((ChapterTocFrame)entry);
             }
         }
 
-        if (title != null || url != null || artist != null || album != null || date != null || genre != null) {
-            manager.onMetadataReceived("id3", title, url, artist, album, date, genre);
+        if(artwork != null || chapters != null) {
+            Track track = playback.getCurrentTrack();
+
+            if(track != null && artwork != null && track.embeddedArtwork == null) {
+                // Only the reference is kept, the image is decoded when it's displayed
+                track.embeddedArtwork = artwork;
+                manager.onEmbeddedArtwork(playback, track);
+            }
+
+            if(track != null && chapters != null && track.chapters.isEmpty()) {
+                track.chapters = Chapter.fromFrames(chapters, tocs != null ? tocs : Collections.emptyList());
+                manager.onChaptersReceived(playback, track.chapters);
+            }
         }
+
+        if(id3 != null) dispatch("id3", id3);
+        if(vorbis != null) dispatch("vorbis-comment", vorbis);
+        if(quicktime != null) dispatch("quicktime", quicktime);
     }
 
     /**
-     * Shoutcast / Icecast metadata (ICY protocol)
-     *
-     * https://cast.readme.io/docs/icy
+     * Forgets the last emitted tags, called when the track changes
      */
-    private static void handleIcyMetadata(MusicManager manager, Metadata metadata) {
-        for (int i = 0; i < metadata.length(); i++) {
-            Metadata.Entry entry = metadata.get(i);
-
-            if(entry instanceof IcyHeaders) {
-                // ICY headers
-                IcyHeaders icy = (IcyHeaders)entry;
+    public void reset() {
+        lastTags.clear();
+    }
 
-                manager.onMetadataReceived("icy-headers", icy.name, icy.url, null, null, null, icy.genre);
+    private void dispatch(String source, Tags tags) {
+        if(tags.isEmpty() || tags.equals(lastTags.get(source))) return;
 
-            } else if(entry instanceof IcyInfo) {
-                // ICY data
-                IcyInfo icy = (IcyInfo)entry;
-
-                String artist, title;
-                int index = icy.title == null ? -1 : icy.title.indexOf(" - ");
-
-                if (index != -1) {
-                    artist = icy.title.substring(0, index);
-                    title = icy.title.substring(index + 3);
-                } else {
-                    artist = null;
-                    title = icy.title;
-                }
+        lastTags.put(source, tags);
+        manager.onMetadataReceived(playback, source, tags.title, tags.url, tags.artist, tags.album, tags.date, tags.genre);
+    }
 
-                manager.onMetadataReceived("icy", title, icy.url, artist, null, null, null);
+    /**
+     * Reads the ReplayGain track gain from the tags
+     * @return The gain in dB or {@link Float#NaN} if it isn't tagged
+     */
+    public static float getReplayGain(Metadata metadata) {
+        for(int i = 0; i < metadata.length(); i++) {
+            Metadata.Entry entry = metadata.get(i);
 
+            try {
+                if(entry instanceof TextInformationFrame) {
+                    // ID3 user defined text frame (TXXX)
+                    TextInformationFrame id3 = (TextInformationFrame) entry;
+
+                    if("REPLAYGAIN_TRACK_GAIN".equalsIgnoreCase(id3.description)) {
+                        return parseGain(id3.value);
+                    }
+                } else if(entry instanceof VorbisComment) {
+                    VorbisComment comment = (VorbisComment) entry;
+
+                    if("REPLAYGAIN_TRACK_GAIN".equalsIgnoreCase(comment.key)) {
+                        return parseGain(comment.value);
+                    } else if("R128_TRACK_GAIN".equalsIgnoreCase(comment.key)) {
+                        // Opus: Q7.8 fixed point relative to -23 LUFS, converted to the ReplayGain reference
+                        return Integer.parseInt(comment.value.trim()) / 256F + 5;
+                    }
+                }
+            } catch(NumberFormatException ex) {
+                // Ignored
             }
         }
+
+        return Float.NaN;
+    }
+
+    private static float parseGain(String value) {
+        // Usually formatted as "-6.54 dB"
+        return Float.parseFloat(value.replaceAll("(?i)db", "").trim());
     }
 
     /**
-     * Vorbis Comments (Vorbis, FLAC, Opus, Speex, Theora)
+     * ID3 Metadata (MP3)
      *
-     * https://xiph.org/vorbis/doc/v-comment.html
+     * https://en.wikipedia.org/wiki/ID3
      */
-    private static void handleVorbisCommentMetadata(MusicManager manager, Metadata metadata) {
-        String title = null, url = null, artist = null, album = null, date = null, genre = null;
+    private static void readId3(Tags tags, Metadata.Entry entry) {
+        if (entry instanceof TextInformationFrame) {
+            // ID3 text tag
+            TextInformationFrame id3 = (TextInformationFrame) entry;
+            String id = id3.id.toUpperCase();
+
+            if (id.equals("TIT2") || id.equals("TT2")) {
+                tags.title = id3.value;
+            } else if (id.equals("TALB") || id.equals("TOAL") || id.equals("TAL")) {
+                tags.album = id3.value;
+            } else if (id.equals("TOPE") || id.equals("TPE1") || id.equals("TP1")) {
+                tags.artist = id3.value;
+            } else if (id.equals("TDRC") || id.equals("TOR")) {
+                tags.date = id3.value;
+            } else if (id.equals("TCON") || id.equals("TCO")) {
+                tags.genre = id3.value;
+            }
 
-        for (int i = 0; i < metadata.length(); i++) {
-            Metadata.Entry entry = metadata.get(i);
+        } else if (entry instanceof UrlLinkFrame) {
+            // ID3 URL tag
+            UrlLinkFrame id3 = (UrlLinkFrame) entry;
+            String id = id3.id.toUpperCase();
 
-            if (!(entry instanceof VorbisComment)) continue;
-
-            VorbisComment comment = (VorbisComment) entry;
-            String key = comment.key;
-
-            if (key.equals("TITLE")) {
-                title = comment.value;
-            } else if (key.equals("ARTIST")) {
-                artist = comment.value;
-            } else if (key.equals("ALBUM")) {
-                album = comment.value;
-            } else if (key.equals("DATE")) {
-                date = comment.value;
-            } else if (key.equals("GENRE")) {
-                genre = comment.value;
-            } else if (key.equals("URL")) {
-                url = comment.value;
+            if (id.equals("WOAS") || id.equals("WOAF") || id.equals("WOAR") || id.equals("WAR")) {
+                tags.url = id3.url;
             }
-        }
 
-        if (title != null || url != null || artist != null || album != null || date != null || genre != null) {
-            manager.onMetadataReceived("vorbis-comment", title, url, artist, album, date, genre);
         }
     }
 
     /**
-     * QuickTime MDTA metadata (mov, qt)
+     * Shoutcast / Icecast headers (ICY protocol)
      *
-     * https://developer.apple.com/library/archive/documentation/QuickTime/QTFF/Metadata/Metadata.html
+     * https://cast.readme.io/docs/icy
      */
-    private static void handleQuickTimeMetadata(MusicManager manager, Metadata metadata) {
-        String title = null, artist = null, album = null, date = null, genre = null;
-
-        for (int i = 0; i < metadata.length(); i++) {
-            Metadata.Entry entry = metadata.get(i);
+    private static Tags readIcyHeaders(IcyHeaders icy) {
+        Tags tags = new Tags();
+        tags.title = icy.name;
+        tags.url = icy.url;
+        tags.genre = icy.genre;
+        return tags;
+    }
 
-            if (!(entry instanceof MdtaMetadataEntry)) continue;
+    /**
+     * Shoutcast / Icecast stream data (ICY protocol)
+     */
+    private static Tags readIcyInfo(IcyInfo icy) {
+        Tags tags = new Tags();
+        int index = icy.title == null ? -1 : icy.title.indexOf(" - ");
+
+        if (index != -1) {
+            tags.artist = icy.title.substring(0, index);
+            tags.title = icy.title.substring(index + 3);
+        } else {
+            tags.title = icy.title;
+        }
 
-            MdtaMetadataEntry mdta = (MdtaMetadataEntry) entry;
-            String key = mdta.key;
+        tags.url = icy.url;
+        return tags;
+    }
 
-            try {
-                if (key.equals("com.apple.quicktime.title")) {
-                    title = new String(mdta.value, "UTF-8");
-                } else if (key.equals("com.apple.quicktime.artist")) {
-                    artist = new String(mdta.value, "UTF-8");
-                } else if (key.equals("com.apple.quicktime.album")) {
-                    album = new String(mdta.value, "UTF-8");
-                } else if (key.equals("com.apple.quicktime.creationdate")) {
-                    date = new String(mdta.value, "UTF-8");
-                } else if (key.equals("com.apple.quicktime.genre")) {
-                    genre = new String(mdta.value, "UTF-8");
-                }
-            } catch(Exception ex) {
-                // Ignored
-            }
+    /**
+     * Vorbis Comments (Vorbis, FLAC, Opus, Speex, Theora)
+     *
+     * https://xiph.org/vorbis/doc/v-comment.html
+     */
+    private static void readVorbisComment(Tags tags, VorbisComment comment) {
+        String key = comment.key;
+
+        if (key.equals("TITLE")) {
+            tags.title = comment.value;
+        } else if (key.equals("ARTIST")) {
+            tags.artist = comment.value;
+        } else if (key.equals("ALBUM")) {
+            tags.album = comment.value;
+        } else if (key.equals("DATE")) {
+            tags.date = comment.value;
+        } else if (key.equals("GENRE")) {
+            tags.genre = comment.value;
+        } else if (key.equals("URL")) {
+            tags.url = comment.value;
         }
+    }
 
-        if (title != null || artist != null || album != null || date != null || genre != null) {
-            manager.onMetadataReceived("quicktime", title, null, artist, album, date, genre);
+    /**
+     * QuickTime MDTA metadata (mov, qt)
+     *
+     * https://developer.apple.com/library/archive/documentation/QuickTime/QTFF/Metadata/Metadata.html
+     */
+    private static void readQuickTime(Tags tags, MdtaMetadataEntry mdta) {
+        String key = mdta.key;
+
+        try {
+            if (key.equals("com.apple.quicktime.title")) {
+                tags.title = new String(mdta.value, "UTF-8");
+            } else if (key.equals("com.apple.quicktime.artist")) {
+                tags.artist = new String(mdta.value, "UTF-8");
+            } else if (key.equals("com.apple.quicktime.album")) {
+                tags.album = new String(mdta.value, "UTF-8");
+            } else if (key.equals("com.apple.quicktime.creationdate")) {
+                tags.date = new String(mdta.value, "UTF-8");
+            } else if (key.equals("com.apple.quicktime.genre")) {
+                tags.genre = new String(mdta.value, "UTF-8");
+            }
+        } catch(Exception ex) {
+            // Ignored
         }
     }
 
@@ -0,0 +1,385 @@
+package com.guichaguri.trackplayer.service.session;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.guichaguri.trackplayer.service.Metrics;
+import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.library.SearchIndex;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The browsable tree shown by Android Auto, Wear OS and the Assistant.
+ *
+ * The tree is registered once from JS and kept in memory, along with a snapshot on disk, so browse requests
+ * are answered natively, even when JS isn't running. Playable items that have an url are played natively too.
+ *
+ * @author Guichaguri
+ */
+public class BrowseTree {
+
+    public static final String ROOT_ID = "/";
+
+    private static final String FILE = "TrackPlayerBrowse.tree";
+    private static final int MAGIC = 0x52544232;
+
+    public interface Listener {
+        void onChildrenChanged(String parentId);
+    }
+
+    public interface ChildrenCallback {
+        void onChildren(@Nullable List<MediaItem> children);
+    }
+
+    /**
+     * A playable item along with its playable siblings, which will be queued with it
+     */
+    public static class Queue {
+        public final List<Bundle> tracks = new ArrayList<>();
+        public int index;
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Metrics metrics;
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // The items of each parent, in the order they were registered
+    private final Map<String, List<MediaItem>> children = new HashMap<>();
+    // The playable items of each parent and their track bundles
+    private final Map<String, List<String>> playable = new HashMap<>();
+    private final Map<String, Bundle> tracks = new LinkedHashMap<>();
+    private final Map<String, String> parents = new HashMap<>();
+
+    // The playable items indexed for voice searches, built when needed
+    @Nullable
+    private SearchIndex index;
+
+    private boolean loaded = false;
+    private boolean loading = false;
+    private final List<Runnable> pending = new ArrayList<>();
+
+    @Nullable
+    private Listener listener;
+
+    public BrowseTree(Context context, Handler handler, Metrics metrics) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.metrics = metrics;
+        this.file = new File(this.context.getFilesDir(), FILE);
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Replaces the tree. Each item may have a "children" list, which makes it browsable
+     * @param items The items of the root
+     */
+    public void set(List<Bundle> items) {
+        List<String> nodeParents = new ArrayList<>();
+        List<Bundle> nodes = new ArrayList<>();
+        flatten(ROOT_ID, items, nodeParents, nodes);
+
+        Set<String> changed;
+
+        synchronized(this) {
+            changed = new HashSet<>(children.keySet());
+            build(nodeParents, nodes);
+            changed.addAll(children.keySet());
+            loaded = true;
+        }
+
+        executor.execute(() -> write(nodeParents, nodes));
+        executor.execute(this::getSearchIndex);
+        runPending();
+
+        if(listener != null) {
+            for(String parentId : changed) listener.onChildrenChanged(parentId);
+        }
+    }
+
+    /**
+     * Gets a page of children, reading the snapshot first if needed. The callback is called in the handler thread
+     * @param options The browse options, with the page and page size
+     */
+    public void loadChildren(String parentId, Bundle options, ChildrenCallback callback) {
+        long start = SystemClock.elapsedRealtime();
+
+        whenLoaded(() -> {
+            callback.onChildren(getChildren(parentId, options));
+            metrics.record(Metrics.BROWSE_LOAD, SystemClock.elapsedRealtime() - start);
+        });
+    }
+
+    /**
+     * Gets the queue built from a playable item, or null if it can't be played natively
+     */
+    @Nullable
+    public Queue getQueue(String mediaId) {
+        // The item might be played before anything was browsed
+        if(!isLoaded()) load();
+
+        synchronized(this) {
+            Bundle track = tracks.get(mediaId);
+            if(track == null) return null;
+
+            Queue queue = new Queue();
+
+            for(String id : playable.get(parents.get(mediaId))) {
+                if(id.equals(mediaId)) queue.index = queue.tracks.size();
+                queue.tracks.add(tracks.get(id));
+            }
+
+            return queue;
+        }
+    }
+
+    /**
+     * Finds the playable items matching a voice search, the best match first
+     * @param fields The {@link SearchIndex} fields that are searched
+     * @return The media ids
+     */
+    public List<String> search(String query, int fields) {
+        if(!isLoaded()) load();
+
+        SearchIndex index = getSearchIndex();
+        List<String> ids = new ArrayList<>();
+
+        for(int doc : index.search(query, fields)) ids.add(index.getId(doc));
+        return ids;
+    }
+
+    /**
+     * Gets the track bundles of playable items
+     */
+    public synchronized List<Bundle> getTracks(List<String> ids) {
+        List<Bundle> list = new ArrayList<>(ids.size());
+
+        for(String id : ids) {
+            Bundle track = tracks.get(id);
+            if(track != null) list.add(track);
+        }
+
+        return list;
+    }
+
+    public void release() {
+        listener = null;
+        executor.shutdown();
+    }
+
+    @Nullable
+    private synchronized List<MediaItem> getChildren(String parentId, Bundle options) {
+        List<MediaItem> items = children.get(parentId);
+        if(items == null) return parentId.equals(ROOT_ID) ? new ArrayList<>() : null;
+
+        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+
+        if(page < 0 || pageSize < 1) return new ArrayList<>(items);
+
+        int from = Math.min(page * pageSize, items.size());
+        return new ArrayList<>(items.subList(from, Math.min(from + pageSize, items.size())));
+    }
+
+    private synchronized SearchIndex getSearchIndex() {
+        if(index == null) {
+            SearchIndex.Builder builder = new SearchIndex.Builder();
+
+            for(Map.Entry<String, Bundle> track : tracks.entrySet()) {
+                builder.add(track.getKey(), track.getValue());
+            }
+
+            index = builder.build();
+        }
+
+        return index;
+    }
+
+    private synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    private void whenLoaded(Runnable runnable) {
+        synchronized(this) {
+            if(!loaded) {
+                pending.add(runnable);
+
+                if(!loading) {
+                    loading = true;
+                    executor.execute(this::read);
+                }
+                return;
+            }
+        }
+
+        runnable.run();
+    }
+
+    private void runPending() {
+        List<Runnable> list;
+
+        synchronized(this) {
+            list = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        for(Runnable runnable : list) runnable.run();
+    }
+
+    private static void flatten(String parentId, List<?> items, List<String> nodeParents, List<Bundle> nodes) {
+        for(Object obj : items) {
+            if(!(obj instanceof Bundle) || ((Bundle)obj).getString("id") == null) continue;
+
+            Bundle item = new Bundle((Bundle)obj);
+            Object itemChildren = item.get("children");
+            item.remove("children");
+
+            if(itemChildren instanceof List) item.putBoolean("browsable", true);
+
+            nodeParents.add(parentId);
+            nodes.add(item);
+
+            if(itemChildren instanceof List) {
+                flatten(item.getString("id"), (List<?>)itemChildren, nodeParents, nodes);
+            }
+        }
+    }
+
+    private void build(List<String> nodeParents, List<Bundle> nodes) {
+        children.clear();
+        playable.clear();
+        tracks.clear();
+        parents.clear();
+        index = null;
+
+        for(int i = 0; i < nodes.size(); i++) {
+            String parentId = nodeParents.get(i);
+            Bundle item = nodes.get(i);
+            String id = item.getString("id");
+            boolean browsable = item.getBoolean("browsable", false);
+            boolean isPlayable = item.getBoolean("playable", !browsable);
+
+            MediaDescriptionCompat.Builder description = new MediaDescriptionCompat.Builder()
+                    .setMediaId(id)
+                    .setTitle(item.getString("title"))
+                    .setSubtitle(item.containsKey("subtitle") ? item.getString("subtitle") : item.getString("artist"));
+
+            Uri artwork = Utils.getUri(context, item, "artwork");
+            if(artwork != null) description.setIconUri(artwork);
+
+            int flags = (browsable ? MediaItem.FLAG_BROWSABLE : 0) | (isPlayable ? MediaItem.FLAG_PLAYABLE : 0);
+            add(children, parentId, new MediaItem(description.build(), flags));
+            parents.put(id, parentId);
+
+            if(isPlayable && item.containsKey("url")) {
+                add(playable, parentId, id);
+                tracks.put(id, item);
+            }
+        }
+    }
+
+    private static <T> void add(Map<String, List<T>> map, String key, T value) {
+        List<T> list = map.get(key);
+        if(list == null) map.put(key, list = new ArrayList<>());
+        list.add(value);
+    }
+
+    private void read() {
+        load();
+
+        synchronized(this) {
+            loading = false;
+        }
+
+        handler.post(this::runPending);
+
+        // Warms up the voice searches
+        getSearchIndex();
+    }
+
+    private void load() {
+        List<String> nodeParents = new ArrayList<>();
+        List<Bundle> nodes = new ArrayList<>();
+
+        if(file.exists()) {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+                if(in.readInt() == MAGIC) {
+                    int count = in.readInt();
+
+                    for(int i = 0; i < count; i++) {
+                        nodeParents.add(BundleCodec.readString(in));
+
+                        byte[] data = new byte[in.readInt()];
+                        in.readFully(data);
+                        nodes.add(BundleCodec.decode(data));
+                    }
+                }
+            } catch(IOException ex) {
+                Log.w(Utils.LOG, "Couldn't read the browse tree", ex);
+                nodeParents.clear();
+                nodes.clear();
+            }
+        }
+
+        synchronized(this) {
+            // The tree was replaced while the snapshot was read
+            if(loaded) return;
+
+            build(nodeParents, nodes);
+            loaded = true;
+        }
+    }
+
+    private void write(List<String> nodeParents, List<Bundle> nodes) {
+        File temp = new File(file.getPath() + ".tmp");
+
+        List<String> parentIds = new ArrayList<>(nodes.size());
+        List<byte[]> data = new ArrayList<>(nodes.size());
+
+        for(int i = 0; i < nodes.size(); i++) {
+            try {
+                data.add(BundleCodec.encode(nodes.get(i)));
+                parentIds.add(nodeParents.get(i));
+            } catch(Exception ex) {
+                // The item is left out of the snapshot, the tree in memory still has it
+                Log.w(Utils.LOG, "Couldn't store a browse item", ex);
+            }
+        }
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(data.size());
+
+            for(int i = 0; i < data.size(); i++) {
+                BundleCodec.writeString(out, parentIds.get(i));
+                out.writeInt(data.get(i).length);
+                out.write(data.get(i));
+            }
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't write the browse tree", ex);
+            temp.delete();
+            return;
+        }
+
+        if(!temp.renameTo(file)) {
+            Log.w(Utils.LOG, "Couldn't replace the browse tree");
+            temp.delete();
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.guichaguri.trackplayer.service.session;
+
+import android.os.Bundle;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact and stable binary format for the bundles received from JS.
+ *
+ * {@link android.os.Parcel} can't be used for anything stored on disk, as its format may change between
+ * Android versions. Only the types produced by the bridge are supported, anything else is skipped.
+ * Strings are stored as their length followed by their UTF-8 bytes, so they aren't limited to 64KB.
+ *
+ * @author Guichaguri
+ */
+class BundleCodec {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte BUNDLE = 6;
+    private static final byte LIST = 7;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static byte[] encode(Bundle bundle) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        try(DataOutputStream out = new DataOutputStream(bytes)) {
+            write(out, bundle);
+        } catch(IOException ex) {
+            // Never happens with an in-memory stream
+            throw new RuntimeException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    static Bundle decode(byte[] data) {
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            return read(in);
+        } catch(IOException ex) {
+            return new Bundle();
+        }
+    }
+
+    private static void write(DataOutputStream out, Bundle bundle) throws IOException {
+        int count = 0;
+        for(String key : bundle.keySet()) if(isSupported(bundle.get(key))) count++;
+
+        out.writeInt(count);
+
+        for(String key : bundle.keySet()) {
+            Object value = bundle.get(key);
+            if(!isSupported(value)) continue;
+
+            writeString(out, key);
+            writeValue(out, value);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if(value == null) {
+            out.writeByte(NULL);
+        } else if(value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String)value);
+        } else if(value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double)value);
+        } else if(value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer)value);
+        } else if(value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long)value);
+        } else if(value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean)value);
+        } else if(value instanceof Bundle) {
+            out.writeByte(BUNDLE);
+            write(out, (Bundle)value);
+        } else if(value instanceof List) {
+            List<?> list = (List<?>)value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+
+            // Unsupported items are kept as nulls, so the indexes don't change
+            for(Object item : list) writeValue(out, isSupported(item) ? item : null);
+        } else {
+            out.writeByte(NULL);
+        }
+    }
+
+    private static Bundle read(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Bundle bundle = new Bundle(count);
+
+        for(int i = 0; i < count; i++) {
+            String key = readString(in);
+
+            switch(in.readByte()) {
+                case STRING:
+                    bundle.putString(key, readString(in));
+                    break;
+                case DOUBLE:
+                    bundle.putDouble(key, in.readDouble());
+                    break;
+                case INT:
+                    bundle.putInt(key, in.readInt());
+                    break;
+                case LONG:
+                    bundle.putLong(key, in.readLong());
+                    break;
+                case BOOLEAN:
+                    bundle.putBoolean(key, in.readBoolean());
+                    break;
+                case BUNDLE:
+                    bundle.putBundle(key, read(in));
+                    break;
+                case LIST:
+                    bundle.putSerializable(key, readList(in));
+                    break;
+                default:
+                    bundle.putString(key, null);
+                    break;
+            }
+        }
+
+        return bundle;
+    }
+
+    private static ArrayList<Object> readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        ArrayList<Object> list = new ArrayList<>(Math.min(size, 1024));
+
+        for(int i = 0; i < size; i++) {
+            switch(in.readByte()) {
+                case STRING:
+                    list.add(readString(in));
+                    break;
+                case DOUBLE:
+                    list.add(in.readDouble());
+                    break;
+                case INT:
+                    list.add(in.readInt());
+                    break;
+                case LONG:
+                    list.add(in.readLong());
+                    break;
+                case BOOLEAN:
+                    list.add(in.readBoolean());
+                    break;
+                case BUNDLE:
+                    list.add(read(in));
+                    break;
+                case LIST:
+                    list.add(readList(in));
+                    break;
+                default:
+                    list.add(null);
+                    break;
+            }
+        }
+
+        return list;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) throw new IOException("Invalid string length");
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static boolean isSupported(Object value) {
+        return value == null || value instanceof String || value instanceof Double || value instanceof Integer
+                || value instanceof Long || value instanceof Boolean || value instanceof Bundle || value instanceof List;
+    }
+
+}
@@ -0,0 +1,363 @@
+package com.guichaguri.trackplayer.service.session;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An append-only journal of the queue mutations and position checkpoints, used to restore the
+ * session after the process is killed.
+ *
+ * Every mutation is a small record appended by a background thread, so playing or editing the queue never
+ * rewrites the whole queue. The journal is compacted into a snapshot once it has too many records.
+ * A record cut short by the process being killed is simply ignored when replaying.
+ *
+ * @author Guichaguri
+ */
+public class SessionJournal {
+
+    private static final String FILE = "TrackPlayerSession.journal";
+    private static final int MAGIC = 0x52544a32;
+
+    private static final byte OPTIONS = 1;
+    private static final byte ADD = 2;
+    private static final byte REMOVE = 3;
+    private static final byte REMOVE_UPCOMING = 4;
+    private static final byte RESET = 5;
+    private static final byte UPDATE = 6;
+    private static final byte CHECKPOINT = 7;
+
+    // The amount of records appended before the journal is compacted
+    private static final int COMPACT_RECORDS = 1000;
+
+    /**
+     * The state rebuilt from the journal. Tracks are kept serialized until they are needed
+     */
+    public static class Session {
+        byte[] options;
+        final List<byte[]> tracks = new ArrayList<>();
+        public int window = 0;
+        public long position = 0;
+
+        @Nullable
+        public Bundle getOptions() {
+            return options == null ? null : BundleCodec.decode(options);
+        }
+
+        public List<Bundle> getTracks() {
+            List<Bundle> bundles = new ArrayList<>(tracks.size());
+            for(byte[] track : tracks) bundles.add(BundleCodec.decode(track));
+            return bundles;
+        }
+
+        public boolean isEmpty() {
+            return tracks.isEmpty();
+        }
+    }
+
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // Only accessed by the executor
+    private DataOutputStream out;
+    private byte[] options;
+    private int records = 0;
+
+    public SessionJournal(Context context) {
+        this.file = new File(context.getFilesDir(), FILE);
+    }
+
+    /**
+     * Replays the journal
+     * @return The last session or null if there is none
+     */
+    @Nullable
+    public Session read() {
+        if(!file.exists()) return null;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if(in.readInt() != MAGIC) return null;
+
+            Session session = new Session();
+            replay(in, session);
+            return session;
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't read the session journal", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Starts a new journal, discarding the previous session
+     */
+    public void start(Bundle options) {
+        byte[] data = BundleCodec.encode(options);
+
+        executor.execute(() -> {
+            Session session = new Session();
+            session.options = data;
+            writeSnapshot(session);
+        });
+    }
+
+    /**
+     * Replaces the journal with a snapshot of the current state
+     */
+    public void snapshot(List<Bundle> tracks, int window, long position) {
+        List<byte[]> data = encode(tracks);
+
+        executor.execute(() -> {
+            Session session = new Session();
+            session.options = options;
+            session.tracks.addAll(data);
+            session.window = window;
+            session.position = position;
+            writeSnapshot(session);
+        });
+    }
+
+    public void add(List<Bundle> tracks, int index) {
+        List<byte[]> data = encode(tracks);
+
+        append(out -> {
+            out.writeByte(ADD);
+            out.writeInt(index);
+            out.writeInt(data.size());
+
+            for(byte[] track : data) {
+                out.writeInt(track.length);
+                out.write(track);
+            }
+        });
+    }
+
+    /**
+     * @param indexes The removed indexes, in the same order they were removed
+     */
+    public void remove(List<Integer> indexes) {
+        List<Integer> list = new ArrayList<>(indexes);
+
+        append(out -> {
+            out.writeByte(REMOVE);
+            out.writeInt(list.size());
+            for(int index : list) out.writeInt(index);
+        });
+    }
+
+    public void removeUpcoming(int fromIndex) {
+        append(out -> {
+            out.writeByte(REMOVE_UPCOMING);
+            out.writeInt(fromIndex);
+        });
+    }
+
+    public void reset() {
+        append(out -> out.writeByte(RESET));
+    }
+
+    public void update(int index, Bundle track) {
+        byte[] data = encode(track);
+
+        append(out -> {
+            out.writeByte(UPDATE);
+            out.writeInt(index);
+            out.writeInt(data.length);
+            out.write(data);
+        });
+    }
+
+    public void checkpoint(int window, long position) {
+        append(out -> {
+            out.writeByte(CHECKPOINT);
+            out.writeInt(window);
+            out.writeLong(position);
+        });
+    }
+
+    /**
+     * Deletes the journal, so there is nothing to restore
+     */
+    public void clear() {
+        executor.execute(() -> {
+            closeStream();
+            if(file.exists() && !file.delete()) Log.w(Utils.LOG, "Couldn't delete the session journal");
+        });
+    }
+
+    public void destroy() {
+        executor.execute(this::closeStream);
+        executor.shutdown();
+    }
+
+    private interface Record {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(Record record) {
+        executor.execute(() -> {
+            try {
+                if(out == null) {
+                    if(!file.exists()) return;
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                }
+
+                record.write(out);
+                out.flush();
+
+                if(++records >= COMPACT_RECORDS) compact();
+            } catch(IOException ex) {
+                Log.w(Utils.LOG, "Couldn't write to the session journal", ex);
+            }
+        });
+    }
+
+    private void compact() {
+        Session session = read();
+        if(session != null) writeSnapshot(session);
+    }
+
+    private void writeSnapshot(Session session) {
+        closeStream();
+
+        File temp = new File(file.getPath() + ".tmp");
+
+        try(DataOutputStream snapshot = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536))) {
+            snapshot.writeInt(MAGIC);
+
+            if(session.options != null) {
+                snapshot.writeByte(OPTIONS);
+                snapshot.writeInt(session.options.length);
+                snapshot.write(session.options);
+            }
+
+            snapshot.writeByte(ADD);
+            snapshot.writeInt(0);
+            snapshot.writeInt(session.tracks.size());
+
+            for(byte[] track : session.tracks) {
+                snapshot.writeInt(track.length);
+                snapshot.write(track);
+            }
+
+            snapshot.writeByte(CHECKPOINT);
+            snapshot.writeInt(session.window);
+            snapshot.writeLong(session.position);
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't write the session snapshot", ex);
+            return;
+        }
+
+        if(!temp.renameTo(file)) {
+            Log.w(Utils.LOG, "Couldn't replace the session journal");
+            temp.delete();
+        }
+
+        options = session.options;
+        records = 0;
+    }
+
+    private void closeStream() {
+        if(out == null) return;
+
+        try {
+            out.close();
+        } catch(IOException ex) {
+            // Nothing else to be done
+        }
+
+        out = null;
+    }
+
+    private static List<byte[]> encode(List<Bundle> tracks) {
+        List<byte[]> data = new ArrayList<>(tracks.size());
+        for(Bundle track : tracks) data.add(encode(track));
+        return data;
+    }
+
+    /**
+     * Encodes a track, or an empty bundle if it can't be, so the indexes of the other tracks stay the same
+     */
+    private static byte[] encode(Bundle track) {
+        try {
+            return BundleCodec.encode(track);
+        } catch(Exception ex) {
+            Log.w(Utils.LOG, "Couldn't store a track in the session journal", ex);
+            return BundleCodec.encode(Bundle.EMPTY);
+        }
+    }
+
+    private static void replay(DataInputStream in, Session session) {
+        List<byte[]> tracks = session.tracks;
+
+        try {
+            while(true) {
+                int type = in.read();
+                if(type < 0) break;
+
+                switch(type) {
+                    case OPTIONS:
+                        session.options = readBytes(in);
+                        break;
+                    case ADD:
+                        int index = in.readInt();
+                        int count = in.readInt();
+                        List<byte[]> added = new ArrayList<>(count);
+                        for(int i = 0; i < count; i++) added.add(readBytes(in));
+                        tracks.addAll(Math.min(Math.max(index, 0), tracks.size()), added);
+                        break;
+                    case REMOVE:
+                        int removed = in.readInt();
+                        int[] indexes = new int[removed];
+                        for(int i = 0; i < removed; i++) indexes[i] = in.readInt();
+                        for(int i : indexes) if(i >= 0 && i < tracks.size()) tracks.remove(i);
+                        break;
+                    case REMOVE_UPCOMING:
+                        int from = in.readInt();
+                        if(from >= 0 && from < tracks.size()) tracks.subList(from, tracks.size()).clear();
+                        break;
+                    case RESET:
+                        tracks.clear();
+                        session.window = 0;
+                        session.position = 0;
+                        break;
+                    case UPDATE:
+                        int updated = in.readInt();
+                        byte[] track = readBytes(in);
+                        if(updated >= 0 && updated < tracks.size()) tracks.set(updated, track);
+                        break;
+                    case CHECKPOINT:
+                        int window = in.readInt();
+                        long position = in.readLong();
+                        session.window = window;
+                        session.position = position;
+                        break;
+                    default:
+                        // Unknown record, the rest of the journal can't be trusted
+                        return;
+                }
+            }
+        } catch(IOException ex) {
+            // The last record was cut short, everything before it is still valid
+        }
+
+        if(session.window >= tracks.size()) {
+            session.window = 0;
+            session.position = 0;
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
+}
@@ -1,4 +1,4 @@
-import { NativeModules } from 'react-native'
+import { EmitterSubscription, NativeModules } from 'react-native'
 const { TrackPlayerModule: TrackPlayer } = NativeModules
 
 export enum IOSCategory {
@@ -49,10 +49,20 @@ export interface PlayerOptions {
    * Minimum time in seconds that needs to be buffered to start playing.
    */
   playBuffer?: number
+  /**
+   * Minimum time in seconds that needs to be buffered to start playing a live stream.
+   * Defaults to `1`.
+   */
+  liveBuffer?: number
   /**
    * Maximum cache size in kilobytes.
    */
   maxCacheSize?: number
+  /**
+   * How long the manifests of adaptive tracks are reused before being revalidated, in seconds.
+   * Defaults to `300`.
+   */
+  manifestCacheTtl?: number
   /**
    * [AVAudioSession.Category](https://developer.apple.com/documentation/avfoundation/avaudiosession/1616615-category) for iOS.
    * Sets on `play()`.
@@ -78,6 +88,221 @@ export interface PlayerOptions {
    * Defaults to `true`.
    */
   autoUpdateMetadata?: boolean
+  /**
+   * Time in seconds the end of a track overlaps with the beginning of the next one. `0` disables crossfading.
+   * Defaults to `0`.
+   */
+  crossfadeDuration?: number
+  /**
+   * The curve used to fade the tracks in and out during a crossfade.
+   * Defaults to `FadeCurve.EqualPower`.
+   */
+  crossfadeCurve?: FadeCurve
+  /**
+   * Normalizes the loudness of the tracks using ReplayGain or a measured loudness.
+   * Defaults to `false`.
+   */
+  loudnessNormalization?: boolean
+  /**
+   * Target loudness in LUFS used by the loudness normalization.
+   * Defaults to `-18`.
+   */
+  loudnessTarget?: number
+  /**
+   * Skips silent parts of the tracks while playing.
+   * Defaults to `false`.
+   */
+  skipSilence?: boolean
+  /**
+   * Trims the silence at the beginning and at the end of the tracks. Tracks are analysed the first time they are played.
+   * Defaults to `false`.
+   */
+  trimSilence?: boolean
+  /**
+   * Level in dBFS under which the audio is considered silent.
+   * Defaults to `-30`.
+   */
+  silenceThreshold?: number
+  /**
+   * Minimum duration in seconds of a silence to be skipped.
+   * Defaults to `0.15`.
+   */
+  minSilenceDuration?: number
+  /**
+   * Duration in seconds of silence kept around the skipped parts.
+   * Defaults to `0.02`.
+   */
+  silencePadding?: number
+  /**
+   * The engine used to change the playback rate. `TimeStretch.Wsola` supports
+   * rate ramps and adapts to the `pitchAlgorithm` of each track.
+   * Defaults to `TimeStretch.Sonic`.
+   */
+  timeStretch?: TimeStretch
+  /**
+   * Whether the equalizer stage is added to the audio pipeline, see `setEqualizer()`.
+   * Defaults to `false`.
+   */
+  equalizer?: boolean
+  /**
+   * Whether the visualization tap is added to the audio pipeline, see `setVisualizer()`.
+   * Defaults to `false`.
+   */
+  visualizer?: boolean
+  /**
+   * Whether the queue and the position are persisted, so they are restored after the app is killed.
+   * Defaults to `false`.
+   */
+  persistSession?: boolean
+  /**
+   * Whether local files are read through memory mapping, avoiding a read call for each chunk.
+   * Content URIs and bundled resources are read normally.
+   * Defaults to `false`.
+   */
+  memoryMappedFiles?: boolean
+  /**
+   * Whether the bandwidth estimate of each network type is persisted,
+   * so adaptive streams start at the right rendition in the next session.
+   * Defaults to `true`.
+   */
+  persistBandwidth?: boolean
+  /**
+   * The maximum bitrate of adaptive streams while the network is metered, in kbps.
+   * Defaults to `0`, which disables the cap.
+   */
+  maxMeteredBitrate?: number
+}
+
+/** Holds exactly the amount of buckets requested, which can't be more than 4096 */
+export interface Waveform {
+  /** The lowest sample of each bucket */
+  min: number[]
+  /** The highest sample of each bucket */
+  max: number[]
+}
+
+export interface Chapter {
+  id: string
+  title?: string
+  url?: string
+  /** The start in seconds */
+  start: number
+  /** The end in seconds */
+  end: number
+}
+
+export interface BrowseItem extends Partial<Track> {
+  id: string
+  title: string
+  subtitle?: string
+  /** Whether it can be played. Items without children are playable by default */
+  playable?: boolean
+  /** Makes the item browsable */
+  children?: BrowseItem[]
+}
+
+export interface LibraryQuery {
+  album?: string
+  artist?: string
+  /** A folder relative to the storage root, such as "Music/Jazz". Includes its subfolders */
+  folder?: string
+  /** Part of the title, artist or album */
+  search?: string
+}
+
+export interface Metric {
+  /** The amount of measurements */
+  count: number
+  /** The last measurement */
+  last: number
+  min: number
+  max: number
+  average: number
+}
+
+export interface SoundEffect {
+  /** A local file, a bundled asset or a remote url. Remote sounds are downloaded once when registered */
+  url: string | ResourceObject
+}
+
+export interface SecondaryPlayer {
+  add(tracks: Track | Track[], insertBeforeIndex?: number): Promise<void>
+  remove(tracks: number | number[]): Promise<void>
+  skip(trackIndex: number): Promise<void>
+  skipToNext(): Promise<void>
+  skipToPrevious(): Promise<void>
+  reset(): Promise<void>
+  play(): Promise<void>
+  pause(): Promise<void>
+  stop(): Promise<void>
+  seekTo(position: number): Promise<void>
+  setVolume(level: number): Promise<void>
+  fadeTo(level: number, duration: number, curve?: FadeCurve): Promise<void>
+  setRepeatMode(mode: RepeatMode): Promise<void>
+  getVolume(): Promise<number>
+  getQueue(): Promise<Track[]>
+  getCurrentTrack(): Promise<number>
+  getPosition(): Promise<number>
+  getDuration(): Promise<number>
+  getState(): Promise<State>
+  /** Listens to a playback event of this player only */
+  // eslint-disable-next-line @typescript-eslint/no-explicit-any
+  addEventListener(event: Event, listener: (data: any) => void): EmitterSubscription
+}
+
+export interface VisualizerSettings {
+  /** Defaults to `true` */
+  enabled?: boolean
+  /** The amount of bands per frame, up to 128. Defaults to `32` */
+  bands?: number
+  /** The amount of frames per second, up to 60. Defaults to `30` */
+  fps?: number
+}
+
+export enum EqualizerPreset {
+  Flat = 'flat',
+  Bass = 'bass',
+  Treble = 'treble',
+  Vocal = 'vocal',
+  Rock = 'rock',
+  Pop = 'pop',
+  Jazz = 'jazz',
+  Classical = 'classical',
+}
+
+export interface EqualizerBand {
+  /** The center frequency in Hz */
+  frequency: number
+  /** The gain in dB */
+  gain: number
+  /** The quality factor, defaults to `1.41` */
+  q?: number
+}
+
+export interface EqualizerSettings {
+  /** Defaults to `true` */
+  enabled?: boolean
+  /** A 10-band preset, ignored when `bands` is set. Defaults to `EqualizerPreset.Flat` */
+  preset?: EqualizerPreset
+  /** Up to 10 parametric bands */
+  bands?: EqualizerBand[]
+  /** The gain in dB applied before the equalizer */
+  preamp?: number
+  /** The gain in dB of a low shelf at 100 Hz */
+  bassBoost?: number
+  /** Whether the output is limited to -1 dBFS. Defaults to `true` */
+  limiter?: boolean
+}
+
+export enum TimeStretch {
+  Sonic = 'sonic',
+  Wsola = 'wsola',
+}
+
+export enum FadeCurve {
+  Linear = 'linear',
+  EqualPower = 'equalPower',
+  Exponential = 'exponential',
 }
 
 export enum RatingType {
@@ -132,6 +357,8 @@ export interface MetadataOptions {
   // android
   stopWithApp?: boolean
   alwaysPauseOnInterruption?: boolean
+  /** Executes skips and seeks from remote controls natively, then fires the events with `handled` */
+  nativeRemoteActions?: boolean
   notificationCapabilities?: Capability[]
   compactCapabilities?: Capability[]
 
@@ -152,6 +379,9 @@ export enum Event {
   PlaybackQueueEnded = 'playback-queue-ended',
   PlaybackTrackChanged = 'playback-track-changed',
   PlaybackMetadataReceived = 'playback-metadata-received',
+  PlaybackVisualization = 'playback-visualization',
+  PlaybackChaptersReceived = 'playback-chapters-received',
+  PlayerEvent = 'player-event',
   RemotePlay = 'remote-play',
   RemotePlayId = 'remote-play-id',
   RemotePlaySearch = 'remote-play-search',
@@ -222,6 +452,7 @@ export interface Track extends TrackMetadataBase {
   userAgent?: string
   contentType?: string
   pitchAlgorithm?: PitchAlgorithm
+  replayGain?: number
   // eslint-disable-next-line @typescript-eslint/no-explicit-any
   headers?: { [key: string]: any }
   // eslint-disable-next-line @typescript-eslint/no-explicit-any
@@ -10,6 +10,16 @@ import {
   TrackMetadataBase,
   NowPlayingMetadata,
   RepeatMode,
+  FadeCurve,
+  EqualizerSettings,
+  VisualizerSettings,
+  Waveform,
+  Metric,
+  SecondaryPlayer,
+  SoundEffect,
+  Chapter,
+  LibraryQuery,
+  BrowseItem,
 } from './interfaces'
 
 const { TrackPlayerModule: TrackPlayer } = NativeModules
@@ -22,6 +32,35 @@ function resolveImportedPath(path?: number | string) {
   return resolveAssetSource(path) || path
 }
 
+function resolveTracks(tracks: Track | Track[]): Track[] {
+  // Clone the array before modifying it
+  if (Array.isArray(tracks)) {
+    tracks = [...tracks]
+  } else {
+    tracks = [tracks]
+  }
+
+  for (let i = 0; i < tracks.length; i++) {
+    // Clone the object before modifying it
+    tracks[i] = { ...tracks[i] }
+
+    // Resolve the URLs
+    tracks[i].url = resolveImportedPath(tracks[i].url)
+    tracks[i].artwork = resolveImportedPath(tracks[i].artwork)
+  }
+
+  return tracks
+}
+
+function resolveBrowseItems(items: BrowseItem[]): BrowseItem[] {
+  return items.map((item) => ({
+    ...item,
+    url: resolveImportedPath(item.url),
+    artwork: resolveImportedPath(item.artwork),
+    children: item.children && resolveBrowseItems(item.children),
+  }))
+}
+
 // MARK: - General API
 
 /**
@@ -67,24 +106,10 @@ function isServiceRunning(): Promise<boolean> {
  * Adds one or more tracks to the queue.
  */
 async function add(tracks: Track | Track[], insertBeforeIndex?: number): Promise<void> {
-  // Clone the array before modifying it
-  if (Array.isArray(tracks)) {
-    tracks = [...tracks]
-  } else {
-    tracks = [tracks]
-  }
+  tracks = resolveTracks(tracks)
 
   if (tracks.length < 1) return
 
-  for (let i = 0; i < tracks.length; i++) {
-    // Clone the object before modifying it
-    tracks[i] = { ...tracks[i] }
-
-    // Resolve the URLs
-    tracks[i].url = resolveImportedPath(tracks[i].url)
-    tracks[i].artwork = resolveImportedPath(tracks[i].artwork)
-  }
-
   // Note: we must be careful about passing nulls to non nullable parameters on Android.
   return TrackPlayer.add(tracks, insertBeforeIndex === undefined ? -1 : insertBeforeIndex)
 }
@@ -221,6 +246,27 @@ async function setVolume(level: number): Promise<void> {
   return TrackPlayer.setVolume(level)
 }
 
+/**
+ * Gradually changes the volume of the player.
+ */
+async function fadeTo(level: number, duration: number, curve: FadeCurve = FadeCurve.Linear): Promise<void> {
+  return TrackPlayer.fadeTo(level, duration, curve)
+}
+
+/**
+ * Replaces the equalizer settings.
+ */
+async function setEqualizer(settings: EqualizerSettings): Promise<void> {
+  return TrackPlayer.setEqualizer(settings)
+}
+
+/**
+ * Starts or stops emitting visualization events.
+ */
+async function setVisualizer(settings: VisualizerSettings): Promise<void> {
+  return TrackPlayer.setVisualizer(settings)
+}
+
 /**
  * Sets the playback rate.
  */
@@ -228,6 +274,13 @@ async function setRate(rate: number): Promise<void> {
   return TrackPlayer.setRate(rate)
 }
 
+/**
+ * Gradually changes the playback rate.
+ */
+async function rampRate(rate: number, duration: number): Promise<void> {
+  return TrackPlayer.rampRate(rate, duration)
+}
+
 /**
  * Sets the repeat mode.
  */
@@ -265,6 +318,14 @@ async function getQueue(): Promise<Track[]> {
   return TrackPlayer.getQueue()
 }
 
+/**
+ * Gets the min/max peaks of a track in the queue, each between -1 and 1.
+ * The amount of buckets must be between 1 and 4096, exactly that many are returned.
+ */
+async function getWaveform(trackIndex: number, buckets: number): Promise<Waveform> {
+  return TrackPlayer.getWaveform(trackIndex, buckets)
+}
+
 /**
  * Gets the index of the current track.
  */
@@ -293,6 +354,14 @@ async function getPosition(): Promise<number> {
   return TrackPlayer.getPosition()
 }
 
+/**
+ * Gets how much silence was skipped in the current track in seconds.
+ * The position is not affected by skipped silence.
+ */
+async function getSkippedSilence(): Promise<number> {
+  return TrackPlayer.getSkippedSilence()
+}
+
 /**
  * Gets the state of the player.
  */
@@ -300,6 +369,13 @@ async function getState(): Promise<State> {
   return TrackPlayer.getState()
 }
 
+/**
+ * Gets the timings measured natively, in milliseconds.
+ */
+async function getMetrics(): Promise<{ [name: string]: Metric }> {
+  return TrackPlayer.getMetrics()
+}
+
 /**
  * Gets the repeat mode.
  */
@@ -307,6 +383,150 @@ async function getRepeatMode(): Promise<RepeatMode> {
   return TrackPlayer.getRepeatMode()
 }
 
+// MARK: - Chapters API
+
+/**
+ * Gets the chapters embedded in the current track.
+ */
+async function getChapters(): Promise<Chapter[]> {
+  return TrackPlayer.getChapters()
+}
+
+/**
+ * Gets the index of the chapter being played.
+ */
+async function getCurrentChapter(): Promise<number | null> {
+  return TrackPlayer.getCurrentChapter()
+}
+
+/**
+ * Seeks to the start of a chapter of the current track.
+ */
+async function skipToChapter(index: number): Promise<void> {
+  return TrackPlayer.skipToChapter(index)
+}
+
+/**
+ * Seeks to the start of the next chapter.
+ */
+async function skipToNextChapter(): Promise<void> {
+  return TrackPlayer.skipToNextChapter()
+}
+
+/**
+ * Seeks to the start of the previous chapter.
+ */
+async function skipToPreviousChapter(): Promise<void> {
+  return TrackPlayer.skipToPreviousChapter()
+}
+
+// MARK: - Library API
+
+/**
+ * Indexes the music stored on the device and keeps the index updated. Resolves with the amount of songs.
+ */
+async function scanLibrary(): Promise<number> {
+  return TrackPlayer.scanLibrary()
+}
+
+/**
+ * Gets the indexed songs that match the query.
+ */
+async function queryLibrary(query: LibraryQuery = {}): Promise<Track[]> {
+  return TrackPlayer.queryLibrary(query)
+}
+
+/**
+ * Adds the indexed songs that match the query to the queue, without sending them through the bridge.
+ */
+async function addFromLibrary(query: LibraryQuery = {}, insertBeforeIndex?: number): Promise<void> {
+  return TrackPlayer.addFromLibrary(query, insertBeforeIndex === undefined ? -1 : insertBeforeIndex)
+}
+
+// MARK: - Browse API
+
+/**
+ * Registers the tree browsed by Android Auto and other controllers, replacing the previous one.
+ */
+async function setBrowseTree(items: BrowseItem[]): Promise<void> {
+  return TrackPlayer.setBrowseTree(resolveBrowseItems(items))
+}
+
+// MARK: - Sound Effects API
+
+/**
+ * Loads a short sound into memory, so it can be played with minimal latency.
+ */
+async function registerSound(id: string, sound: SoundEffect): Promise<void> {
+  return TrackPlayer.registerSound(id, { ...sound, url: resolveImportedPath(sound.url) })
+}
+
+/**
+ * Releases a sound loaded with `registerSound()`.
+ */
+async function unregisterSound(id: string): Promise<void> {
+  return TrackPlayer.unregisterSound(id)
+}
+
+/**
+ * Plays a registered sound over anything else that is playing.
+ */
+async function playSound(id: string, volume = 1, rate = 1): Promise<void> {
+  return TrackPlayer.playSound(id, volume, rate)
+}
+
+// MARK: - Secondary Players API
+
+/**
+ * Creates a secondary player, which plays alongside the main one with its own queue and events.
+ * A player with the same id is replaced.
+ */
+async function createPlayer(id: string, options: PlayerOptions = {}): Promise<void> {
+  return TrackPlayer.createPlayer(id, options || {})
+}
+
+/**
+ * Destroys a secondary player, resolving with whether it existed.
+ */
+async function destroyPlayer(id: string): Promise<boolean> {
+  return TrackPlayer.destroyPlayer(id)
+}
+
+/**
+ * Gets the functions that control a secondary player.
+ */
+function getPlayer(id: string): SecondaryPlayer {
+  return {
+    add: async (tracks, insertBeforeIndex) => {
+      tracks = resolveTracks(tracks)
+      if (tracks.length < 1) return
+      return TrackPlayer.playerAdd(id, tracks, insertBeforeIndex === undefined ? -1 : insertBeforeIndex)
+    },
+    remove: async (tracks) => TrackPlayer.playerRemove(id, Array.isArray(tracks) ? tracks : [tracks]),
+    skip: async (trackIndex) => TrackPlayer.playerSkip(id, trackIndex),
+    skipToNext: async () => TrackPlayer.playerSkipToNext(id),
+    skipToPrevious: async () => TrackPlayer.playerSkipToPrevious(id),
+    reset: async () => TrackPlayer.playerReset(id),
+    play: async () => TrackPlayer.playerPlay(id),
+    pause: async () => TrackPlayer.playerPause(id),
+    stop: async () => TrackPlayer.playerStop(id),
+    seekTo: async (position) => TrackPlayer.playerSeekTo(id, position),
+    setVolume: async (level) => TrackPlayer.playerSetVolume(id, level),
+    fadeTo: async (level, duration, curve = FadeCurve.Linear) => TrackPlayer.playerFadeTo(id, level, duration, curve),
+    setRepeatMode: async (mode) => TrackPlayer.playerSetRepeatMode(id, mode),
+    getVolume: async () => TrackPlayer.playerGetVolume(id),
+    getQueue: async () => TrackPlayer.playerGetQueue(id),
+    getCurrentTrack: async () => TrackPlayer.playerGetCurrentTrack(id),
+    getPosition: async () => TrackPlayer.playerGetPosition(id),
+    getDuration: async () => TrackPlayer.playerGetDuration(id),
+    getState: async () => TrackPlayer.playerGetState(id),
+    addEventListener: (event, listener) =>
+      emitter.addListener(Event.PlayerEvent, (data) => {
+        if (data.playerId === id && data.type === event) listener(data)
+      }),
+  }
+}
+
 export default {
   // MARK: - General API
   setupPlayer,
@@ -336,7 +556,11 @@ export default {
   stop,
   seekTo,
   setVolume,
+  fadeTo,
+  setEqualizer,
+  setVisualizer,
   setRate,
+  rampRate,
   setRepeatMode,
 
   // MARK: - Getters
@@ -344,10 +568,38 @@ export default {
   getRate,
   getTrack,
   getQueue,
+  getWaveform,
   getCurrentTrack,
   getDuration,
   getBufferedPosition,
   getPosition,
+  getSkippedSilence,
   getState,
   getRepeatMode,
+  getMetrics,
+
+  // MARK: - Chapters API
+  getChapters,
+  getCurrentChapter,
+  skipToChapter,
+  skipToNextChapter,
+  skipToPreviousChapter,
+
+  // MARK: - Library API
+  scanLibrary,
+  queryLibrary,
+  addFromLibrary,
+
+  // MARK: - Browse API
+  setBrowseTree,
+
+  // MARK: - Sound Effects API
+  registerSound,
+  unregisterSound,
+  playSound,
+
+  // MARK: - Secondary Players API
+  createPlayer,
+  destroyPlayer,
+  getPlayer,
 }